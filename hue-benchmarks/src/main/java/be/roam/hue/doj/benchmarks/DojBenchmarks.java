@@ -0,0 +1,61 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with allocation profiling enabled.
+ * <p>
+ * Accepts the same arguments as JMH itself. Unless other profilers are
+ * given, the GC profiler is added, so every result comes with the number of
+ * bytes allocated per operation (<code>gc.alloc.rate.norm</code>). Without
+ * any arguments, all benchmarks are run:
+ * </p>
+ * <pre><code>
+ * java -jar target/benchmarks.jar
+ * java -jar target/benchmarks.jar DojTraversalBenchmark -p elements=10000
+ * java -jar target/benchmarks.jar -rf json -rff results.json
+ * </code></pre>
+ * <p>
+ * <code>baseline/results.txt</code> summarizes a baseline run, along with
+ * the command and the hardware it was produced with: compare against it to
+ * spot regressions.
+ * </p>
+ */
+public final class DojBenchmarks {
+
+    private DojBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import be.roam.hue.doj.Doj;
+import be.roam.hue.doj.DojTable;
+import be.roam.hue.doj.FieldSpec;
+import be.roam.hue.doj.MatchType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks the filters of {@link Doj} and extracting texts, attributes and
+ * values from the matched elements.
+ * <p>
+ * Each benchmark returns its result so it can't be optimized away. Run
+ * through {@link DojBenchmarks} to profile allocations as well.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class DojExtractionBenchmark {
+
+    public Pattern textPattern = Pattern.compile("\\s*Item [24]\\s*");
+
+    public Pattern hrefPattern = Pattern.compile(".*/3");
+
+    @Benchmark
+    public Doj withTag(PageState state) {
+        return state.nested.withTag("li");
+    }
+
+    @Benchmark
+    public Doj withClass(PageState state) {
+        return state.items.withClass("even");
+    }
+
+    @Benchmark
+    public Doj withAttribute(PageState state) {
+        return state.links.withAttribute("title", MatchType.EQUALS, "Item 3");
+    }
+
+    @Benchmark
+    public Doj withAttributeMatching(PageState state) {
+        return state.links.withAttributeMatching("href", hrefPattern);
+    }
+
+    @Benchmark
+    public Doj withTextContaining(PageState state) {
+        return state.items.withTextContaining("Item 3");
+    }
+
+    @Benchmark
+    public Doj withTextMatching(PageState state) {
+        return state.items.withTextMatching(textPattern);
+    }
+
+    @Benchmark
+    public String text(PageState state) {
+        return state.sections.text();
+    }
+
+    @Benchmark
+    public String[] texts(PageState state) {
+        return state.links.texts();
+    }
+
+    @Benchmark
+    public String trimmedText(PageState state) {
+        return state.sections.trimmedText();
+    }
+
+    @Benchmark
+    public String[] trimmedTexts(PageState state) {
+        return state.links.trimmedTexts();
+    }
+
+    @Benchmark
+    public String[] attributes(PageState state) {
+        return state.links.attributes("href");
+    }
+
+    @Benchmark
+    public String[][] attributes_perKey(PageState state) {
+        return new String[][]{state.items.attributes("class"), state.items.attributes("data-index"), state.items.attributes("id")};
+    }
+
+    @Benchmark
+    public String[][] project(PageState state) {
+        return state.items.project("class", "data-index", "id");
+    }
+
+    @Benchmark
+    public String[][] fields_perField(PageState state) {
+        Doj sections = state.sections;
+        String[][] columns = new String[4][sections.size()];
+        for (int row = 0; row < columns[0].length; ++row) {
+            Doj section = sections.get(row);
+            columns[0][row] = section.attribute("id");
+            columns[1][row] = section.getFirst("h2").trimmedText();
+            columns[2][row] = section.getFirst("a").attribute("href");
+            columns[3][row] = section.getFirst("a").attribute("title");
+        }
+        return columns;
+    }
+
+    @Benchmark
+    public DojTable extract(PageState state) {
+        return state.sections.extract(FieldSpec.attribute("id", null, "id"), FieldSpec.trimmedText("title", "h2"),
+                FieldSpec.attribute("href", "a", "href"), FieldSpec.attribute("linkTitle", "a", "title"));
+    }
+
+    @Benchmark
+    public String[] classValues(PageState state) {
+        return state.items.classValues();
+    }
+
+    @Benchmark
+    public String[] values(PageState state) {
+        return state.root.getByTag("input").withType("text").values();
+    }
+
+    @Benchmark
+    public boolean hasClass(PageState state) {
+        return state.items.hasClass("missing");
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import be.roam.hue.doj.CompiledSelector;
+import be.roam.hue.doj.Doj;
+import be.roam.hue.doj.DojCssSelector;
+import be.roam.hue.doj.MatchType;
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the compiled matchers Doj uses for compound selectors with
+ * interpreting the simple selectors one by one, by matching every element
+ * of the page.
+ * <p>
+ * The <code>compiled</code> benchmarks go through
+ * {@link Doj#not(CompiledSelector)}, which matches every context element.
+ * The <code>interpreted</code> ones do the same with the reference
+ * interpreter below - a copy of the one the matchers are verified against
+ * in the tests - collecting the elements that don't match just like
+ * <code>not</code> does. Run through {@link DojBenchmarks} to profile
+ * allocations as well.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class DojMatcherBenchmark {
+
+    public HtmlElement[] elements;
+
+    public Doj all;
+
+    public CompiledSelector tag = new CompiledSelector("a");
+
+    public CompiledSelector compound = new CompiledSelector("li.item.odd[data-index]:nth-child(odd)");
+
+    @Setup(Level.Trial)
+    public void setup(PageState state) {
+        List<HtmlElement> list = new ArrayList<HtmlElement>();
+        for (HtmlElement element : state.page.getHtmlElementDescendants()) {
+            list.add(element);
+        }
+        elements = list.toArray(new HtmlElement[list.size()]);
+        all = Doj.on(elements);
+    }
+
+    @Benchmark
+    public List<HtmlElement> tag_interpreted() {
+        return notInterpreted(tag);
+    }
+
+    @Benchmark
+    public Doj tag_compiled() {
+        return all.not(tag);
+    }
+
+    @Benchmark
+    public List<HtmlElement> compound_interpreted() {
+        return notInterpreted(compound);
+    }
+
+    @Benchmark
+    public Doj compound_compiled() {
+        return all.not(compound);
+    }
+
+    private List<HtmlElement> notInterpreted(CompiledSelector selector) {
+        List<DojCssSelector> simpleSelectors = selector.getGroups().get(0);
+        List<HtmlElement> result = new ArrayList<HtmlElement>();
+        for (HtmlElement element : elements) {
+            if (!matches(element, simpleSelectors)) {
+                result.add(element);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether the element matches the simple selectors of a compound
+     * selector, switching on the type of each of them.
+     */
+    private static boolean matches(HtmlElement element, List<DojCssSelector> compound) {
+        for (int index = 0, size = compound.size(); index < size; ++index) {
+            DojCssSelector selector = compound.get(index);
+            switch (selector.getType()) {
+                case ELEMENT:
+                    if (!selector.getValue().equalsIgnoreCase(element.getTagName())) {
+                        return false;
+                    }
+                    break;
+                case HTML_CLASS:
+                    if (!MatchType.CONTAINED_WITH_WHITESPACE.isMatch(element.getAttribute("class"), selector.getValue())) {
+                        return false;
+                    }
+                    break;
+                case ID:
+                    if (!MatchType.EQUALS.isMatch(element.getAttribute("id"), selector.getValue())) {
+                        return false;
+                    }
+                    break;
+                case UNIVERSAL:
+                    break;
+                case ATTRIBUTE:
+                    if (!selector.getMatchType().isMatch(element.getAttribute(selector.getAttribute()), selector.getValue())) {
+                        return false;
+                    }
+                    break;
+                case FIRST_CHILD:
+                    if (sibling(element, false) != null) {
+                        return false;
+                    }
+                    break;
+                case LAST_CHILD:
+                    if (sibling(element, true) != null) {
+                        return false;
+                    }
+                    break;
+                case NTH_CHILD:
+                    int position = 1;
+                    for (DomNode sibling = sibling(element, false); sibling != null; sibling = sibling(sibling, false)) {
+                        ++position;
+                    }
+                    if (!isNth(position, selector.getStep(), selector.getOffset())) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNth(int position, int step, int offset) {
+        int difference = position - offset;
+        if (step == 0) {
+            return difference == 0;
+        }
+        return difference / step >= 0 && difference % step == 0;
+    }
+
+    private static DomNode sibling(DomNode node, boolean next) {
+        DomNode sibling = next ? node.getNextSibling() : node.getPreviousSibling();
+        while (sibling != null && sibling.getNodeType() != Node.ELEMENT_NODE) {
+            sibling = next ? sibling.getNextSibling() : sibling.getPreviousSibling();
+        }
+        return sibling;
+    }
+}
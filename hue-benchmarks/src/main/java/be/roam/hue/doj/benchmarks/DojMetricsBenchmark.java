@@ -0,0 +1,82 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import be.roam.hue.doj.Doj;
+import be.roam.hue.doj.DojMetrics;
+import be.roam.hue.doj.DojMetricsRecorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the overhead of {@link DojMetrics}: the same cheap operations
+ * without metrics and with a {@link DojMetricsRecorder} installed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class DojMetricsBenchmark {
+
+    @Param({"none", "recorder"})
+    public String metrics;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        DojMetrics.install("recorder".equals(metrics) ? new DojMetricsRecorder() : null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        DojMetrics.install(null);
+    }
+
+    @Benchmark
+    public Doj getById(PageState state) {
+        return state.root.getById(state.middleSectionId);
+    }
+
+    @Benchmark
+    public Doj getFirst(PageState state) {
+        return state.sections.getFirst("li");
+    }
+
+    @Benchmark
+    public Doj withClass(PageState state) {
+        return state.sections.withClass("section");
+    }
+
+    @Benchmark
+    public Doj next(PageState state) {
+        return state.items.next();
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import be.roam.hue.doj.Doj;
+import be.roam.hue.doj.DojStream;
+import com.gargoylesoftware.htmlunit.WebClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares extracting the section titles and links of a synthetic page (see
+ * {@link SyntheticPage}) by parsing it into an HtmlPage with extracting them
+ * while streaming through it with {@link DojStream}.
+ * <p>
+ * Both benchmarks start from the bytes of the page and return the number of
+ * extracted values. Run through {@link DojBenchmarks} to profile
+ * allocations as well.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class DojStreamBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"1000", "10000", "100000"})
+    public int elements;
+
+    public byte[] html;
+
+    public WebClient client;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        html = SyntheticPage.html(elements).getBytes(UTF_8);
+        client = SyntheticPage.createWebClient();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public int htmlPage() throws IOException {
+        Doj root = Doj.on(SyntheticPage.parse(client, new String(html, UTF_8)));
+        return root.get("div.section > h2.title").trimmedTexts().length + root.get("li.item > a").attributes("href").length;
+    }
+
+    @Benchmark
+    public int stream() throws IOException {
+        Counter counter = new Counter();
+        DojStream.over(new ByteArrayInputStream(html), UTF_8)
+                .trimmedTexts("div.section > h2.title", counter)
+                .attributes("li.item > a", "href", counter)
+                .run();
+        return counter.count;
+    }
+
+    private static final class Counter implements DojStream.Listener {
+
+        private int count;
+
+        public void matched(String value) {
+            ++count;
+        }
+    }
+}
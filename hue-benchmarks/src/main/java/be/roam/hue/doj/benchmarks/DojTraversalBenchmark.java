@@ -0,0 +1,246 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import be.roam.hue.doj.CompiledSelector;
+import be.roam.hue.doj.Doj;
+import be.roam.hue.doj.MatchType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks the traversal methods of {@link Doj}: selectors, lookups by
+ * tag, class, id and attribute, siblings and parents, combining Doj
+ * instances and lazy pipelines (see {@link Doj#lazy()}).
+ * <p>
+ * Each benchmark returns its result so it can't be optimized away. Run
+ * through {@link DojBenchmarks} to profile allocations as well.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class DojTraversalBenchmark {
+
+    public CompiledSelector compiledSelector = new CompiledSelector("div.section ul li a");
+
+    public Pattern hrefPattern = Pattern.compile("/sections/\\d+/3");
+
+    @Benchmark
+    public Doj get_selector(PageState state) {
+        return state.root.get("div.section ul li a");
+    }
+
+    @Benchmark
+    public Doj get_selectorGroup(PageState state) {
+        return state.root.get("h2.title, li.even a");
+    }
+
+    @Benchmark
+    public Doj get_selectorWithId(PageState state) {
+        return state.root.get("#" + state.middleSectionId + " li");
+    }
+
+    @Benchmark
+    public Doj get_selectorWithIdInCompound(PageState state) {
+        return state.root.get("div#" + state.middleSectionId + " > ul li");
+    }
+
+    @Benchmark
+    public Doj get_combinators(PageState state) {
+        return state.root.get("h2 + p ~ ul.items > li:nth-child(odd) > a[href$='/3']");
+    }
+
+    @Benchmark
+    public Doj get_combinators_stepByStep(PageState state) {
+        return state.root.getByTag("h2").next("p").next("ul").withClass("items").getByTag("li")
+                .withClass("odd").getByTag("a").withAttribute("href", MatchType.ENDING_WITH, "/3");
+    }
+
+    @Benchmark
+    public Doj get_compiledSelector(PageState state) {
+        return state.root.get(compiledSelector);
+    }
+
+    @Benchmark
+    public Doj get_selectorNestedContext(PageState state) {
+        return state.nested.get("a");
+    }
+
+    @Benchmark
+    public Doj getByTag_nestedContext(PageState state) {
+        return state.nested.getByTag("a");
+    }
+
+    @Benchmark
+    public Doj getByAttribute_nestedContext(PageState state) {
+        return state.nested.getByAttribute("href", MatchType.ENDING_WITH, "/3");
+    }
+
+    @Benchmark
+    public Doj getScopedById(PageState state) {
+        return state.root.getScopedById(state.middleSectionId);
+    }
+
+    @Benchmark
+    public Doj getScopedById_byAttribute(PageState state) {
+        return state.root.getByAttribute("id", state.middleSectionId);
+    }
+
+    @Benchmark
+    public boolean contains(PageState state) {
+        return state.sections.contains(state.links);
+    }
+
+    @Benchmark
+    public Doj sortedInDocumentOrder(PageState state) {
+        return state.nested.sortedInDocumentOrder();
+    }
+
+    @Benchmark
+    public String get_firstOnly(PageState state) {
+        return state.root.get("li.even a").attribute("href");
+    }
+
+    @Benchmark
+    public String getFirst(PageState state) {
+        return state.root.getFirst("li.even a").attribute("href");
+    }
+
+    @Benchmark
+    public boolean exists(PageState state) {
+        return state.root.exists("form.search input");
+    }
+
+    @Benchmark
+    public Doj getById(PageState state) {
+        return state.root.getById(state.middleSectionId);
+    }
+
+    @Benchmark
+    public Doj getByTag(PageState state) {
+        return state.root.getByTag("li");
+    }
+
+    @Benchmark
+    public Doj getByTag_fromSections(PageState state) {
+        return state.sections.getByTag("a");
+    }
+
+    @Benchmark
+    public Doj getByClass(PageState state) {
+        return state.root.getByClass("even");
+    }
+
+    @Benchmark
+    public Doj getByAttribute(PageState state) {
+        return state.root.getByAttribute("data-index", "3");
+    }
+
+    @Benchmark
+    public Doj getByAttribute_startingWith(PageState state) {
+        return state.root.getByAttribute("name", MatchType.STARTING_WITH, "q-");
+    }
+
+    @Benchmark
+    public Doj getByAttributeMatching(PageState state) {
+        return state.root.getByAttributeMatching("href", hrefPattern);
+    }
+
+    @Benchmark
+    public Doj next(PageState state) {
+        return state.items.next();
+    }
+
+    @Benchmark
+    public Doj next_tag(PageState state) {
+        return state.sections.getByTag("h2").next("ul");
+    }
+
+    @Benchmark
+    public Doj previous(PageState state) {
+        return state.items.previous();
+    }
+
+    @Benchmark
+    public Doj previous_tag(PageState state) {
+        return state.sections.getByTag("form").previous("h2");
+    }
+
+    @Benchmark
+    public Doj parent(PageState state) {
+        return state.links.parent();
+    }
+
+    @Benchmark
+    public Doj parent_tag(PageState state) {
+        return state.links.parent("div");
+    }
+
+    @Benchmark
+    public Doj unique(PageState state) {
+        return state.links.parent("ul").unique();
+    }
+
+    @Benchmark
+    public Doj merge(PageState state) {
+        return state.items.merge(state.sections);
+    }
+
+    @Benchmark
+    public Doj mergeAll(PageState state) {
+        return Doj.mergeAll(state.links, state.items, state.sections);
+    }
+
+    @Benchmark
+    public Doj slice(PageState state) {
+        return state.items.slice(state.items.size() / 4, state.items.size() / 2);
+    }
+
+    @Benchmark
+    public String[] pipeline(PageState state) {
+        return state.root.getByTag("div").withClass("section").getByTag("li").withClass("even")
+                .getByTag("a").withAttribute("title", MatchType.EQUALS, "Item 2").attributes("href");
+    }
+
+    @Benchmark
+    public String[] pipeline_lazy(PageState state) {
+        return state.root.lazy().getByTag("div").withClass("section").getByTag("li").withClass("even")
+                .getByTag("a").withAttribute("title", MatchType.EQUALS, "Item 2").attributes("href");
+    }
+
+    @Benchmark
+    public int iterate(PageState state) {
+        int count = 0;
+        for (Doj item : state.items) {
+            count += item.size();
+        }
+        return count;
+    }
+}
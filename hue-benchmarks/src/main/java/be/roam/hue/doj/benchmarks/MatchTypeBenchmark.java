@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import be.roam.hue.doj.MatchType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link MatchType#isMatch(java.lang.String, java.lang.String)}.
+ * <p>
+ * Run with the GC profiler to verify matching doesn't allocate -
+ * <code>gc.alloc.rate.norm</code> should be (close to) 0 bytes per operation:
+ * </p>
+ * <pre><code>
+ * java -jar target/benchmarks.jar MatchTypeBenchmark -prof gc
+ * </code></pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchTypeBenchmark {
+
+    @Param({"article", "col-3 module main-content", "col-3 module main-content sidebar-left highlighted"})
+    public String value;
+
+    public String present;
+
+    public String missing = "footer";
+
+    public String language = "en-US";
+
+    @Setup
+    public void setup() {
+        String[] tokens = value.split(" ");
+        present = tokens[tokens.length - 1];
+    }
+
+    @Benchmark
+    public boolean containedWithWhitespace_hit() {
+        return MatchType.CONTAINED_WITH_WHITESPACE.isMatch(value, present);
+    }
+
+    @Benchmark
+    public boolean containedWithWhitespace_miss() {
+        return MatchType.CONTAINED_WITH_WHITESPACE.isMatch(value, missing);
+    }
+
+    @Benchmark
+    public boolean containedWithHyphens() {
+        return MatchType.CONTAINED_WITH_HYPHENS.isMatch(language, "US");
+    }
+
+    @Benchmark
+    public boolean equals_miss() {
+        return MatchType.EQUALS.isMatch(value, missing);
+    }
+
+    @Benchmark
+    public boolean startingWith() {
+        return MatchType.STARTING_WITH.isMatch(value, "col");
+    }
+
+    @Benchmark
+    public boolean containing() {
+        return MatchType.CONTAINING.isMatch(value, "main");
+    }
+}
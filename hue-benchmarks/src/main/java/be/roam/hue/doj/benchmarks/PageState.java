@@ -0,0 +1,98 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import be.roam.hue.doj.Doj;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * A synthetic page (see {@link SyntheticPage}) of 1k, 10k or 100k elements,
+ * together with a couple of Doj instances to start from.
+ * <p>
+ * The page is parsed once per trial. None of the benchmarks using it modify
+ * the DOM.
+ * </p>
+ */
+@State(Scope.Benchmark)
+public class PageState {
+
+    @Param({"1000", "10000", "100000"})
+    public int elements;
+
+    public WebClient client;
+
+    public HtmlPage page;
+
+    /**
+     * The page itself.
+     */
+    public Doj root;
+
+    /**
+     * All <code>div.section</code> elements.
+     */
+    public Doj sections;
+
+    /**
+     * All <code>li</code> elements.
+     */
+    public Doj items;
+
+    /**
+     * All <code>a</code> elements.
+     */
+    public Doj links;
+
+    /**
+     * The sections followed by the items, so every item is also a
+     * descendant of another context element.
+     */
+    public Doj nested;
+
+    /**
+     * The id of the section in the middle of the page.
+     */
+    public String middleSectionId;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        client = SyntheticPage.createWebClient();
+        page = SyntheticPage.parse(client, SyntheticPage.html(elements));
+        root = Doj.on(page);
+        sections = root.getByClass("section");
+        items = root.getByTag("li");
+        links = root.getByTag("a");
+        nested = sections.merge(items);
+        middleSectionId = "section-" + (SyntheticPage.sections(elements) / 2);
+        if (items.size() != SyntheticPage.sections(elements) * SyntheticPage.ITEMS_PER_SECTION) {
+            throw new IllegalStateException("Unexpected number of items: " + items.size());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+    }
+}
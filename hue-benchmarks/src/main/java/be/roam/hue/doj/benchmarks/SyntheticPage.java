@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj.benchmarks;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.StringWebResponse;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Generates synthetic pages of a given size and parses them offline.
+ * <p>
+ * A page consists of sections of {@link #ELEMENTS_PER_SECTION} elements each,
+ * grouped per ten in a <code>div.group</code>:
+ * </p>
+ * <pre><code>
+ * &lt;div class="section" id="section-7"&gt;
+ *   &lt;h2 class="title"&gt;Section 7&lt;/h2&gt;
+ *   &lt;p class="summary"&gt;Summary of &lt;span&gt;section 7&lt;/span&gt;&lt;/p&gt;
+ *   &lt;ul class="items"&gt;
+ *     &lt;li class="item odd" data-index="1"&gt;&lt;a href="/sections/7/1" title="Item 1"&gt; Item 1 &lt;/a&gt;&lt;/li&gt;
+ *     ... (5 items)
+ *   &lt;/ul&gt;
+ *   &lt;form class="search" action="/search"&gt;&lt;input type="text" name="q-7" value="7"&gt;&lt;input type="checkbox" name="c-7"&gt;&lt;/form&gt;
+ *   &lt;div class="footer"&gt;&lt;em&gt;End of section 7&lt;/em&gt;&lt;/div&gt;
+ * &lt;/div&gt;
+ * </code></pre>
+ * <p>
+ * The page is generated in memory and parsed with a {@link StringWebResponse},
+ * so no network access is involved. JavaScript and CSS are disabled.
+ * </p>
+ */
+public final class SyntheticPage {
+
+    /**
+     * The number of elements in a single section.
+     */
+    public static final int ELEMENTS_PER_SECTION = 20;
+
+    /**
+     * The number of items in a single section.
+     */
+    public static final int ITEMS_PER_SECTION = 5;
+
+    private static final int SECTIONS_PER_GROUP = 10;
+
+    private SyntheticPage() {
+    }
+
+    /**
+     * Returns the number of sections on a page with (about) the given number
+     * of elements.
+     * @param elements the number of elements
+     * @return the number of sections
+     */
+    public static int sections(int elements) {
+        return Math.max(1, elements / ELEMENTS_PER_SECTION);
+    }
+
+    /**
+     * Generates the HTML of a page with (about) the given number of elements.
+     * @param elements the number of elements
+     * @return the HTML of the page
+     */
+    public static String html(int elements) {
+        int sections = sections(elements);
+        StringBuilder html = new StringBuilder(elements * 64);
+        html.append("<html><head><title>Synthetic page of ").append(elements).append(" elements</title></head>");
+        html.append("<body><div id=\"container\">");
+        for (int section = 0; section < sections; ++section) {
+            if (section % SECTIONS_PER_GROUP == 0) {
+                if (section > 0) {
+                    html.append("</div>");
+                }
+                html.append("<div class=\"group\" id=\"group-").append(section / SECTIONS_PER_GROUP).append("\">");
+            }
+            html.append("<div class=\"section\" id=\"section-").append(section).append("\">");
+            html.append("<h2 class=\"title\">Section ").append(section).append("</h2>");
+            html.append("<p class=\"summary\">Summary of <span>section ").append(section).append("</span></p>");
+            html.append("<ul class=\"items\">");
+            for (int item = 1; item <= ITEMS_PER_SECTION; ++item) {
+                html.append("<li class=\"item ").append(item % 2 == 0 ? "even" : "odd")
+                        .append("\" data-index=\"").append(item).append("\">");
+                html.append("<a href=\"/sections/").append(section).append('/').append(item)
+                        .append("\" title=\"Item ").append(item).append("\"> Item ").append(item).append(" </a>");
+                html.append("</li>");
+            }
+            html.append("</ul>");
+            html.append("<form class=\"search\" action=\"/search\">");
+            html.append("<input type=\"text\" name=\"q-").append(section).append("\" value=\"").append(section).append("\">");
+            html.append("<input type=\"checkbox\" name=\"c-").append(section).append("\">");
+            html.append("</form>");
+            html.append("<div class=\"footer\"><em>End of section ").append(section).append("</em></div>");
+            html.append("</div>");
+        }
+        html.append("</div></div></body></html>");
+        return html.toString();
+    }
+
+    /**
+     * Creates a web client suited for parsing synthetic pages.
+     * @return the web client
+     */
+    public static WebClient createWebClient() {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        client.getOptions().setJavaScriptEnabled(false);
+        client.getOptions().setCssEnabled(false);
+        return client;
+    }
+
+    /**
+     * Parses the HTML into a page, without any network access.
+     * @param client the web client to parse the page with
+     * @param html the HTML to parse
+     * @return the page
+     * @throws IOException when the page can't be parsed
+     */
+    public static HtmlPage parse(WebClient client, String html) throws IOException {
+        StringWebResponse response = new StringWebResponse(html, new URL("http://localhost/synthetic.html"));
+        return (HtmlPage) client.loadWebResponseInto(response, client.getCurrentWindow());
+    }
+}
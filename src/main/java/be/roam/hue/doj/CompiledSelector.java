@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable result of compiling a (grouped) CSS selector.
+ * <p>
+ * Compile a selector once and pass it to {@link Doj#get(CompiledSelector)} to
+ * avoid parsing the selector string over and over again:
+ * </p>
+ * <pre><code>
+ * private static final CompiledSelector PRICE = DojCssSelector.compileCached("#content .product span.price");
+ * ...
+ * String price = Doj.on(page).get(PRICE).trimmedText();
+ * </code></pre>
+ * @see DojCssSelector#compileCached(java.lang.String)
+ */
+public final class CompiledSelector {
+
+    private final String selector;
+
+    private final List<List<DojCssSelector>> groups;
+
+    private final DojSelectorEngine.Chain[] chains;
+
+    /**
+     * Compiles the given selector - the result is not cached.
+     * @param selector the selector to compile
+     * @see DojCssSelector#compileCached(java.lang.String)
+     */
+    public CompiledSelector(String selector) {
+        this(selector, new DojCssSelector().compile(selector));
+    }
+
+    CompiledSelector(String selector, List<List<DojCssSelector>> groups) {
+        this.selector = selector;
+        List<List<DojCssSelector>> copy = new ArrayList<List<DojCssSelector>>(groups.size());
+        for (List<DojCssSelector> group : groups) {
+            copy.add(Collections.unmodifiableList(new ArrayList<DojCssSelector>(group)));
+        }
+        this.groups = Collections.unmodifiableList(copy);
+        this.chains = new DojSelectorEngine.Chain[copy.size()];
+        for (int index = 0; index < chains.length; ++index) {
+            chains[index] = new DojSelectorEngine.Chain(copy.get(index));
+        }
+    }
+
+    /**
+     * Returns the selector string this selector was compiled from.
+     * @return the selector string this selector was compiled from
+     */
+    public String getSelector() {
+        return selector;
+    }
+
+    /**
+     * Returns the compiled selectors, one list per comma-separated group.
+     * @return the compiled selectors, one (unmodifiable) list per group
+     */
+    public List<List<DojCssSelector>> getGroups() {
+        return groups;
+    }
+
+    DojSelectorEngine.Chain[] getChains() {
+        return chains;
+    }
+
+    @Override
+    public String toString() {
+        return selector;
+    }
+
+}
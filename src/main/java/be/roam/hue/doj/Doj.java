@@ -15,20 +15,19 @@
  */
 package be.roam.hue.doj;
 
-import com.gargoylesoftware.htmlunit.ElementNotFoundException;
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.html.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.UUID;
+import java.util.Map;
 import java.util.regex.Pattern;
-import org.w3c.dom.Node;
 import static be.roam.hue.doj.MatchType.*;
 
 /**
@@ -130,18 +129,279 @@ public abstract class Doj implements Iterable<Doj> {
     /**
      * Merges the Doj instance with the current instance to create a new
      * Doj instance containing the context elements of both.
+     * <p>
+     * The context elements of the new instance are in document order.
+     * </p>
      * @param doj doj to merge with this one
      * @return new Doj instance
+     * @see #mergeAll(be.roam.hue.doj.Doj[])
      */
     public Doj merge(Doj doj) {
-        List<HtmlElement> result = new ArrayList<HtmlElement>();
-        for (HtmlElement element : allElements()) {
-            result.add(element);
+        return mergeAll(this, doj);
+    }
+
+    /**
+     * Merges the Doj instances to create a new Doj instance containing the
+     * context elements of all of them.
+     * <p>
+     * The context elements of the new instance are unique and in document
+     * order. Merging takes time linear to the number of context elements
+     * (and the size of the page), no matter how many instances are merged.
+     * A handful of context elements are compared with each other instead,
+     * unless the page has been numbered already.
+     * </p>
+     * @param dojs the Doj instances to merge
+     * @return new Doj instance
+     * @see #union(be.roam.hue.doj.Doj)
+     */
+    public static Doj mergeAll(Doj... dojs) {
+        int size = 0;
+        HtmlElement first = null;
+        for (Doj doj : dojs) {
+            if (doj != null && !doj.isEmpty()) {
+                size += doj.size();
+                first = (first == null ? doj.getElement(0) : first);
+            }
         }
-        for (HtmlElement element : doj.allElements()) {
-            result.add(element);
+        if (size == 0) {
+            return EMPTY;
         }
-        return on(result);
+        DojPageState state = DojNodeNumbering.numberedState(first, size);
+        if (state != null) {
+            DojNodeNumbering numbering = state.getNumbering();
+            BitSet numbers = new BitSet(numbering.size());
+            for (Doj doj : dojs) {
+                BitSet dojNumbers = (doj == null || numbers == null ? null : doj.elements().numbers(numbering));
+                if (dojNumbers != null) {
+                    numbers.or(dojNumbers);
+                } else if (doj != null) {
+                    numbers = null;
+                }
+            }
+            if (numbers != null) {
+                return onUnique(DojElements.numbered(numbering, numbers));
+            }
+        }
+        HtmlElement[] elements = new HtmlElement[size];
+        int position = 0;
+        for (Doj doj : dojs) {
+            if (doj != null) {
+                HtmlElement[] dojElements = doj.allElements();
+                System.arraycopy(dojElements, 0, elements, position, dojElements.length);
+                position += dojElements.length;
+            }
+        }
+        return onUnique(DojNodeNumbering.sortedElements(elements));
+    }
+
+    /**
+     * Creates a new Doj instance containing the context elements of this
+     * instance and those of the given one - the same as
+     * {@link #merge(be.roam.hue.doj.Doj)}.
+     * @param doj the Doj instance to add
+     * @return new Doj instance
+     */
+    public Doj union(Doj doj) {
+        return mergeAll(this, doj);
+    }
+
+    /**
+     * Creates a new Doj instance containing the context elements of this
+     * instance that are also context elements of the given one.
+     * <p>
+     * Like when merging, the context elements of the new instance are in
+     * document order. When the elements belong to the same page, they're
+     * combined as bitsets of their numbers, so it takes time linear to the
+     * number of context elements rather than to the product of both sizes.
+     * Otherwise they keep the order of this instance.
+     * </p>
+     * @param doj the Doj instance to intersect with
+     * @return new Doj instance
+     */
+    public Doj intersect(Doj doj) {
+        return combine(doj, true);
+    }
+
+    /**
+     * Creates a new Doj instance containing the context elements of this
+     * instance that are not context elements of the given one. The context
+     * elements of the new instance are in document order, see
+     * {@link #intersect(be.roam.hue.doj.Doj)}.
+     * @param doj the Doj instance with the context elements to leave out
+     * @return new Doj instance
+     */
+    public Doj except(Doj doj) {
+        return combine(doj, false);
+    }
+
+    /**
+     * Does the actual combining for {@link #intersect(be.roam.hue.doj.Doj)}
+     * and {@link #except(be.roam.hue.doj.Doj)}.
+     * @param intersect true to keep the elements in both instances, false to
+     * keep those that are only in this one
+     */
+    private Doj combine(Doj doj, boolean intersect) {
+        boolean otherEmpty = (doj == null || doj.isEmpty());
+        if (isEmpty() || (intersect && otherEmpty)) {
+            return EMPTY;
+        }
+        DojElements elements = elements();
+        DojElements others = (otherEmpty ? DojElements.of(new HtmlElement[0]) : doj.elements());
+        DojPageState state = DojPageState.of(elements.get(0));
+        if (state != null) {
+            DojNodeNumbering numbering = state.getNumbering();
+            BitSet numbers = elements.numbers(numbering);
+            BitSet otherNumbers = (numbers == null ? null : others.numbers(numbering));
+            if (otherNumbers != null) {
+                if (intersect) {
+                    numbers.and(otherNumbers);
+                } else {
+                    numbers.andNot(otherNumbers);
+                }
+                return onUnique(DojElements.numbered(numbering, numbers));
+            }
+        }
+        Map<HtmlElement, Boolean> otherSet = new IdentityHashMap<HtmlElement, Boolean>(others.size());
+        for (HtmlElement element : others) {
+            otherSet.put(element, Boolean.TRUE);
+        }
+        List<HtmlElement> list = new ArrayList<HtmlElement>();
+        for (HtmlElement element : elements) {
+            if (otherSet.containsKey(element) == intersect) {
+                list.add(element);
+            }
+        }
+        return onUnique(list.toArray(new HtmlElement[list.size()]));
+    }
+
+    /**
+     * Checks whether all context elements of the given instance are
+     * descendants of the context elements of this instance.
+     * <p>
+     * When the elements belong to the same page, the descendants of each
+     * context element are an interval of the numbering of the page, so this
+     * takes <code>n log n</code> time instead of walking the ancestors of
+     * every element of the given instance.
+     * </p>
+     * @param doj the Doj instance with the possible descendants
+     * @return true when all of its context elements are descendants of the
+     * context elements of this instance, false when either is empty
+     */
+    public boolean contains(Doj doj) {
+        if (isEmpty() || doj == null || doj.isEmpty()) {
+            return false;
+        }
+        DojElements elements = elements();
+        DojPageState state = DojPageState.of(elements.get(0));
+        DojNodeNumbering numbering = (state == null ? null : state.getNumbering());
+        BitSet numbers = (numbering == null ? null : elements.numbers(numbering));
+        if (numbers == null) {
+            return containsWalking(elements, doj.elements());
+        }
+        // The subtrees of the context elements that aren't nested in another
+        // one, in document order
+        int[] starts = new int[numbers.cardinality()];
+        int[] ends = new int[starts.length];
+        int count = 0;
+        for (int number = numbers.nextSetBit(0); number >= 0; number = numbers.nextSetBit(ends[count - 1] + 1)) {
+            starts[count] = number;
+            ends[count] = numbering.end(number);
+            ++count;
+        }
+        for (HtmlElement element : doj.elements()) {
+            int number = numbering.indexOf(element);
+            if (number < 0) {
+                if (element.getPage() != state.getPage() || !containsWalking(elements, DojElements.of(new HtmlElement[]{element}))) {
+                    return false;
+                }
+                continue;
+            }
+            int subtree = Arrays.binarySearch(starts, 0, count, number);
+            subtree = (subtree >= 0 ? subtree - 1 : -subtree - 2);
+            if (subtree < 0 || !numbering.isAncestor(starts[subtree], number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Does the same as {@link #contains(be.roam.hue.doj.Doj)} by walking the
+     * ancestors of the possible descendants.
+     */
+    private static boolean containsWalking(DojElements elements, DojElements descendants) {
+        Map<HtmlElement, Boolean> ancestors = new IdentityHashMap<HtmlElement, Boolean>(elements.size());
+        for (HtmlElement element : elements) {
+            ancestors.put(element, Boolean.TRUE);
+        }
+        for (HtmlElement descendant : descendants) {
+            boolean contained = false;
+            for (DomNode node = descendant.getParentNode(); node instanceof HtmlElement && !contained; node = node.getParentNode()) {
+                contained = ancestors.containsKey(node);
+            }
+            if (!contained) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a new Doj instance containing the context elements in document
+     * order. Context elements of different pages are kept together, the
+     * pages in the order in which their first element appears.
+     * <p>
+     * Traversing from several context elements returns the elements found
+     * under each of them in turn, which isn't document order when a context
+     * element comes before one of the elements preceding it. Sorting takes
+     * time linear to the number of context elements and the size of the
+     * page, see {@link #mergeAll(be.roam.hue.doj.Doj[])}.
+     * </p>
+     * @return new Doj instance
+     */
+    public Doj sortedInDocumentOrder() {
+        return size() <= 1 ? this : onUnique(DojNodeNumbering.sortedElements(allElements()));
+    }
+
+    /**
+     * Creates a new Doj instance containing the context elements that don't
+     * match the given selector, in the same order.
+     * <p>
+     * An element matches the selector when it matches the last compound
+     * selector of one of the groups and the elements it's related to by the
+     * combinators match the others. Unlike with {@link #get(java.lang.String)},
+     * these elements can be anywhere in the page: "#sidebar a" matches all
+     * links in the sidebar. For instance:
+     * <code>Doj.on(page).get("form input").not("[disabled]")</code>
+     * </p>
+     * @param selector selector the elements to leave out match
+     * @return new Doj instance
+     * @throws IllegalArgumentException when the selector is invalid
+     */
+    public Doj not(String selector) {
+        return not(DojCssSelector.compileCached(selector));
+    }
+
+    /**
+     * Creates a new Doj instance containing the context elements that don't
+     * match the given compiled selector.
+     * @param selector compiled selector the elements to leave out match
+     * @return new Doj instance
+     * @see #not(java.lang.String)
+     */
+    public Doj not(CompiledSelector selector) {
+        DojSelectorEngine.Chain[] chains = selector.getChains();
+        List<HtmlElement> list = new ArrayList<HtmlElement>();
+        for (HtmlElement element : elements()) {
+            boolean matched = false;
+            for (int index = 0; index < chains.length && !matched; ++index) {
+                matched = DojSelectorEngine.matches(element, chains[index]);
+            }
+            if (!matched) {
+                list.add(element);
+            }
+        }
+        return onUnique(list.toArray(new HtmlElement[list.size()]));
     }
 
     /**
@@ -153,13 +413,32 @@ public abstract class Doj implements Iterable<Doj> {
      * for the element with the given id as a descendant of the context
      * elements, but for the element with the given id. For instance:
      * <code>Doj.on(page).getById("header").getById("header").size()</code>
-     * will not return 0 as you would expect, but 1.
+     * will not return 0 as you would expect, but 1. Use
+     * {@link #getScopedById(java.lang.String)} to only find the element when
+     * it's a descendant of the context elements.
      * </p>
      * @param id id to match
      * @return new Doj instance
      */
     public abstract Doj getById(String id);
 
+    /**
+     * Creates a new Doj instance containing the descendants of the context
+     * elements that have the given id.
+     * <p>
+     * This returns the same elements as
+     * <code>getByAttribute("id", id)</code>, but instead of walking the
+     * subtrees of the context elements, it looks the id up in the id map of
+     * the page - just like {@link #getById(java.lang.String)} - and then
+     * verifies that the elements found are descendants of the context
+     * elements by walking their ancestors. Unlike
+     * <code>getByAttribute("id", id)</code>, an empty id never matches.
+     * </p>
+     * @param id id to match
+     * @return new Doj instance
+     */
+    public abstract Doj getScopedById(String id);
+
     /**
      * Creates a new Doj instance containing the next sibling elements of the
      * current context elements.
@@ -224,27 +503,102 @@ public abstract class Doj implements Iterable<Doj> {
      * where possible.
      * </p>
      * <p>
-     * Note that in order to function correctly, this method will need to set
-     * some data on the element to serve as a hash code - which is missing in
-     * HtmlUnit's {@link HtmlElement} - but only if there's no id to use.
+     * Elements are compared by identity, so the DOM is never modified. The
+     * order of the remaining elements is the order in which they first
+     * appear in the context.
      * </p>
      * @return new Doj instance
      */
     public abstract Doj unique();
 
+    /**
+     * Enables the element index for the pages of the context elements and
+     * returns the current instance.
+     * <p>
+     * Once a page is indexed, descendant lookups by tag, class or attribute
+     * and the selectors used with {@link #get(java.lang.String)} are answered
+     * from an index of the page's elements rather than by walking the DOM.
+     * The index is built once - the first time it's needed - and is rebuilt
+     * automatically when the DOM or the attributes of its elements change.
+     * </p>
+     * <p>
+     * Indexing pays off for pages that are queried over and over again:
+     * </p>
+     * <pre><code>
+     * Doj onPage = Doj.on(page).indexed();
+     * </code></pre>
+     * @return current instance
+     */
+    public abstract Doj indexed();
+
+    /**
+     * Enables the text cache for the pages of the context elements and
+     * returns the current instance.
+     * <p>
+     * {@link #withTextContaining(java.lang.String)} and
+     * {@link #withTextMatching(java.util.regex.Pattern)} render the text of
+     * every context element. With the text cache enabled, the rendered text
+     * is kept for each element, so filtering the same elements over and over
+     * again - the rows of a table, for instance - doesn't render them again.
+     * The cache is dropped when the DOM, the text or the attributes of the
+     * page change. Changes that don't show up as such - checking a checkbox,
+     * for instance - are not noticed.
+     * </p>
+     * @return current instance
+     */
+    public abstract Doj textCached();
+
+    /**
+     * Creates a lazy Doj instance with the same context elements.
+     * <p>
+     * Traversals (like {@link #get(java.lang.String)} or
+     * {@link #getByTag(java.lang.String)}) and filters (like
+     * {@link #withTag(java.lang.String)},
+     * {@link #withAttribute(java.lang.String, be.roam.hue.doj.MatchType, java.lang.String)}
+     * or {@link #withTextContaining(java.lang.String)}) called on a lazy
+     * instance are only recorded. They are executed as soon as the context
+     * elements are needed - by {@link #size()}, {@link #text()},
+     * {@link #attributes(java.lang.String)}, iterating, ... The filters are
+     * applied while the traversal preceding them runs, so no intermediate
+     * Doj instances or arrays are created:
+     * </p>
+     * <pre><code>
+     * String[] names = Doj.on(page).lazy().get("form").withClass("search").get("input").names();
+     * </code></pre>
+     * <p>
+     * The result is the same as without the call to lazy(), but it reflects
+     * the DOM as it is when the traversals are executed. That only happens
+     * once: the result is reused by every following call.
+     * </p>
+     * @return new lazy Doj instance
+     */
+    public Doj lazy() {
+        return new LazyDoj(this);
+    }
+
     /**
      * Creates a new Doj instance containing the elements matching the given
-     * (simple) CSS selector.
+     * CSS selector.
      * <p>
      * Following selectors are allowed:
      * </p>
      * <dl>
      * <dt>type selectors</dt>
      * <dd>HTML element tag names, e.g. "h1" will only match h1 elements</dd>
+     * <dt>the universal selector</dt>
+     * <dd>"*" matches any element</dd>
      * <dt>class selectors</dt>
      * <dd>passing ".something" will only match the elements with the class "something"</dd>
      * <dt>id selectors</dt>
      * <dd>pass "#theid" to math the element with id "theid"</dd>
+     * <dt>attribute selectors</dt>
+     * <dd>"[title]", "[type=text]", "[class~=item]", "[href^='/sections']",
+     * "[href$='.pdf']", "[title*=\"of this\"]" and "[lang|=en]" match like the
+     * corresponding {@link MatchType} - so blank attribute values never match</dd>
+     * <dt>structural pseudo-classes</dt>
+     * <dd>":first-child", ":last-child" and ":nth-child(2n+1)" (as well as
+     * "odd", "even" and plain numbers) match elements by their position among
+     * the element children of their parent</dd>
      * <dt>a combination of the above selectors</dt>
      * <dd>passing "div.article" wil only match the div elements with class "article"</dd>
      * <dt>selectors with descendant combinators</dt>
@@ -253,15 +607,43 @@ public abstract class Doj implements Iterable<Doj> {
      * selector such as "div.article p#someid", remember that HtmlUnit will
      * look for the element with the given id anywhere on the page, not
      * just within divs with class "article".</dd>
+     * <dt>selectors with child and sibling combinators</dt>
+     * <dd>"ul &gt; li" only matches the list items that are children of an
+     * unordered list, "h2 + div" the divs immediately following an h2 and
+     * "h2 ~ p" the paragraphs following an h2 with the same parent. An id
+     * selector on either side of these combinators is matched like any other
+     * selector, it's not looked up page-wide.</dd>
      * <dt>grouped selectors</dt>
      * <dd>pass "p, div, a.someClass" to matches all paragraphs, divs and anchors
-     * (with class "someClass")</dd>
+     * (with class "someClass") - the matches of all groups are returned in
+     * document order</dd>
      * </dl>
+     * <p>
+     * Special characters in names - such as the colon in "foo:bar" - should
+     * be escaped with a backslash. A colon in an id or class name that isn't
+     * followed by a supported pseudo-class doesn't need to be: "#form:name"
+     * matches the element with id "form:name".
+     * </p>
      * @param selector selector to use to match elements
      * @return new Doj instance
+     * @throws IllegalArgumentException when the selector is invalid
      */
     public abstract Doj get(String selector);
 
+    /**
+     * Creates a new Doj instance containing the elements matching the given
+     * compiled selector.
+     * <p>
+     * Behaves exactly like {@link #get(java.lang.String)}, but skips the
+     * parsing of the selector. Use it for selectors that are used over and
+     * over again.
+     * </p>
+     * @param selector compiled selector to use to match elements
+     * @return new Doj instance
+     * @see DojCssSelector#compileCached(java.lang.String)
+     */
+    public abstract Doj get(CompiledSelector selector);
+
     /**
      * Shorthand for <code>get(selector).get(indexOfElement)</code>.
      * @param selector selector to use
@@ -272,6 +654,90 @@ public abstract class Doj implements Iterable<Doj> {
         return get(selector).get(index);
     }
 
+    /**
+     * Creates a new Doj instance containing the first element matching the
+     * given selector - the same element as <code>get(selector).first()</code>.
+     * <p>
+     * The DOM is only walked until that element is found, so the time this
+     * takes depends on where the element is located rather than on the size
+     * of the page. Use it to get a single field from a page.
+     * </p>
+     * @param selector selector to use to match elements
+     * @return new Doj instance
+     * @see #getFirst(be.roam.hue.doj.CompiledSelector)
+     */
+    public Doj getFirst(String selector) {
+        return getFirst(DojCssSelector.compileCached(selector));
+    }
+
+    /**
+     * Creates a new Doj instance containing the first element matching the
+     * given compiled selector.
+     * @param selector compiled selector to use to match elements
+     * @return new Doj instance
+     * @see #getFirst(java.lang.String)
+     */
+    public abstract Doj getFirst(CompiledSelector selector);
+
+    /**
+     * Checks whether there's an element matching the selector, stopping at
+     * the first one that's found.
+     * @param selector selector to use to match elements
+     * @return true when <code>get(selector)</code> would not be empty
+     */
+    public boolean exists(String selector) {
+        return !getFirst(selector).isEmpty();
+    }
+
+    /**
+     * Executes the selector like {@link #get(java.lang.String)} does and
+     * returns how it was executed: the steps taken for each group - id
+     * lookups, index lookups and walks of the DOM - with the number of
+     * elements they were expected to visit and actually visited, and the
+     * time they took. Use it to find out why a selector is slow:
+     * <pre><code>
+     * System.out.println(Doj.on(page).explain("#sidebar form.search input"));
+     * </code></pre>
+     * @param selector selector to explain
+     * @return the plan, which holds the result as well
+     * @throws IllegalArgumentException when the selector is invalid
+     */
+    public DojPlan explain(String selector) {
+        return explain(DojCssSelector.compileCached(selector));
+    }
+
+    /**
+     * Executes the compiled selector and returns how it was executed.
+     * @param selector compiled selector to explain
+     * @return the plan, which holds the result as well
+     * @see #explain(java.lang.String)
+     */
+    public DojPlan explain(CompiledSelector selector) {
+        DojPlan plan = new DojPlan(selector, size());
+        long start = System.nanoTime();
+        HtmlElement[] context = elements().asArray();
+        DojSelectorEngine.Chain[] chains = selector.getChains();
+        Doj[] groups = new Doj[chains.length];
+        for (int index = 0; index < chains.length; ++index) {
+            plan.startGroup(index);
+            groups[index] = on(DojSelectorEngine.select(context, chains[index], plan));
+        }
+        Doj result;
+        if (groups.length == 1) {
+            result = groups[0];
+        } else {
+            long mergeStart = System.nanoTime();
+            result = mergeAll(groups);
+            int merged = 0;
+            for (Doj group : groups) {
+                merged += group.size();
+            }
+            plan.add(DojPlan.Strategy.MERGE, null, merged, merged, result.size(), System.nanoTime() - mergeStart);
+        }
+        plan.finish(result, System.nanoTime() - start);
+        return plan;
+    }
+
     /**
      * Creates a new Doj instance containing all child elements of the current
      * context elements with the given tag.
@@ -646,6 +1112,78 @@ public abstract class Doj implements Iterable<Doj> {
      */
     public abstract String[] attributes(String key);
 
+    /**
+     * Returns the values of several attributes of all context elements, by
+     * attribute: <code>project(keys)[index]</code> holds the same values as
+     * <code>attributes(keys[index])</code>.
+     * <p>
+     * The context elements are only walked once, no matter how many
+     * attributes are asked for.
+     * </p>
+     * @param keys the names of the attributes
+     * @return the values, an array per attribute with a value per context
+     * element
+     */
+    public String[][] project(String... keys) {
+        DojElements elements = elements();
+        String[][] columns = new String[keys.length][elements.size()];
+        int row = 0;
+        for (HtmlElement element : elements) {
+            for (int column = 0; column < keys.length; ++column) {
+                columns[column][row] = element.getAttribute(keys[column]);
+            }
+            ++row;
+        }
+        return columns;
+    }
+
+    /**
+     * Extracts the fields from all context elements into a table with a row
+     * per context element and a column per field.
+     * <p>
+     * The context elements are only walked once, no matter how many fields
+     * are extracted, and the fields with the same selector share its lookup.
+     * </p>
+     * @param fields the fields to extract
+     * @return the table
+     * @throws IllegalArgumentException when two fields have the same name
+     * @see FieldSpec
+     */
+    public DojTable extract(FieldSpec... fields) {
+        DojElements elements = elements();
+        int rowCount = elements.size();
+        String[] names = new String[fields.length];
+        String[][] columns = new String[fields.length][rowCount];
+        List<CompiledSelector> selectors = new ArrayList<CompiledSelector>();
+        int[] selectorIndices = new int[fields.length];
+        for (int column = 0; column < fields.length; ++column) {
+            names[column] = fields[column].getName();
+            CompiledSelector selector = fields[column].getCompiledSelector();
+            int selectorIndex = (selector == null ? -1 : selectors.indexOf(selector));
+            if (selector != null && selectorIndex < 0) {
+                selectorIndex = selectors.size();
+                selectors.add(selector);
+            }
+            selectorIndices[column] = selectorIndex;
+        }
+        DojTable table = new DojTable(names, columns, rowCount);
+        HtmlElement[] context = new HtmlElement[1];
+        HtmlElement[] selected = new HtmlElement[selectors.size()];
+        int row = 0;
+        for (HtmlElement element : elements) {
+            context[0] = element;
+            for (int index = 0; index < selected.length; ++index) {
+                selected[index] = DojSelectorEngine.selectFirst(context, selectors.get(index).getChains());
+            }
+            for (int column = 0; column < fields.length; ++column) {
+                HtmlElement source = (selectorIndices[column] < 0 ? element : selected[selectorIndices[column]]);
+                columns[column][row] = (source == null ? null : fields[column].valueOf(source));
+            }
+            ++row;
+        }
+        return table;
+    }
+
     /**
      * Sets the attribute of each context element to the given value.
      * @param key key of the attribute
@@ -766,6 +1304,19 @@ public abstract class Doj implements Iterable<Doj> {
      */
     public abstract Doj first();
 
+    /**
+     * Creates a new Doj instance containing only the first context element,
+     * just like {@link #first()}.
+     * <p>
+     * On a lazy Doj instance (see {@link #lazy()}), the last traversal stops
+     * as soon as it has found the first element.
+     * </p>
+     * @return new Doj instance
+     */
+    public Doj findFirst() {
+        return first();
+    }
+
     /**
      * Returns the first context element (not wrapped).
      * @return the first context element (not wrapped)
@@ -820,6 +1371,13 @@ public abstract class Doj implements Iterable<Doj> {
         return sliceElements(0, size());
     }
 
+    /**
+     * Returns the context elements as an element set.
+     */
+    DojElements elements() {
+        return DojElements.of(allElements());
+    }
+
     public Iterator<Doj> iterator() {
         return new DojIterator(this);
     }
@@ -873,6 +1431,65 @@ public abstract class Doj implements Iterable<Doj> {
         return (page == null ? EMPTY : new NonEmptyDoj(page));
     }
 
+    /**
+     * Creates a Doj instance for context elements that are known to be
+     * unique, skipping the call to {@link #unique()}.
+     */
+    static Doj onUnique(HtmlElement[] uniqueElements) {
+        return (uniqueElements.length == 0 ? EMPTY : new NonEmptyDoj(uniqueElements));
+    }
+
+    /**
+     * Creates a Doj instance for an element set that is known to be unique.
+     */
+    static Doj onUnique(DojElements uniqueElements) {
+        return (uniqueElements.size() == 0 ? EMPTY : new NonEmptyDoj(uniqueElements));
+    }
+
+    /**
+     * Replaces every run of whitespace by a single space and trims the
+     * result - the same as <code>text.replaceAll("\\s+", " ").trim()</code>,
+     * in a single pass and without copying when there's nothing to replace.
+     */
+    static String normalizeWhitespace(String text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') {
+            ++start;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            --end;
+        }
+        // The characters at start and end - 1 aren't whitespace, so every run
+        // in between is followed by another character
+        StringBuilder builder = null;
+        for (int index = start; index < end; ++index) {
+            char character = text.charAt(index);
+            if (isWhitespace(character) && (character != ' ' || isWhitespace(text.charAt(index + 1)))) {
+                if (builder == null) {
+                    builder = new StringBuilder(end - start).append(text, start, index);
+                }
+                builder.append(' ');
+                while (isWhitespace(text.charAt(index + 1))) {
+                    ++index;
+                }
+            } else if (builder != null) {
+                builder.append(character);
+            }
+        }
+        if (builder != null) {
+            return builder.toString();
+        }
+        return (start == 0 && end == text.length() ? text : text.substring(start, end));
+    }
+
+    /**
+     * Checks whether the character is matched by <code>\\s</code>.
+     */
+    private static boolean isWhitespace(char character) {
+        return character == ' ' || (character >= '\t' && character <= '\r');
+    }
+
     /**
      * Iterator for looping over the context elements of a Doj instance.
      */
@@ -900,11 +1517,14 @@ public abstract class Doj implements Iterable<Doj> {
 
     private static class NonEmptyDoj extends Doj {
 
-        protected final HtmlElement[] contextElements;
+        protected final DojElements contextElements;
 
         public Doj get(int index) {
-            HtmlElement element = getElement(index);
-            return element == null ? EMPTY : on(element);
+            int size = size();
+            if (index < -size || index >= size) {
+                return EMPTY;
+            }
+            return onUnique(contextElements.slice(index >= 0 ? index : size + index, 1));
         }
 
         public HtmlElement getElement(int index) {
@@ -913,19 +1533,26 @@ public abstract class Doj implements Iterable<Doj> {
                 return null;
             }
             index = (index >= 0 ? index : size + index);
-            return contextElements[index];
+            return contextElements.get(index);
         }
 
         public Doj unique() {
-            Set<String> retained = new HashSet<String>();
-            List<HtmlElement> list = new ArrayList<HtmlElement>();
+            // HtmlElement does not override equals/hashCode, so identity is
+            // exactly what we need - and it leaves the DOM untouched
+            int size = size();
+            if (size == 1) {
+                return this;
+            }
+            Map<HtmlElement, Boolean> retained = new IdentityHashMap<HtmlElement, Boolean>(size);
+            List<HtmlElement> list = new ArrayList<HtmlElement>(size);
             for (HtmlElement element : contextElements) {
-                String identifier = uniqueId(element);
-                if (!retained.contains(identifier)) {
-                    retained.add(identifier);
+                if (retained.put(element, Boolean.TRUE) == null) {
                     list.add(element);
                 }
             }
+            if (list.size() == size) {
+                return this;
+            }
             // This is a one-off: everything that creates a new Doj object
             // should pass via on(...) - but since unique is used all over,
             // this is the easiest way to make sure all Doj instances carry
@@ -933,21 +1560,6 @@ public abstract class Doj implements Iterable<Doj> {
             return list.isEmpty() ? EMPTY : new NonEmptyDoj(list);
         }
 
-        protected String uniqueId(HtmlElement element) {
-            String identifier = element.getId();
-            if (!StringUtils.isBlank(identifier)) {
-                return identifier;
-            }
-            final String attribute = "data-doj-id";
-            identifier = element.getAttribute(attribute);
-            if (!StringUtils.isBlank(identifier)) {
-                return identifier;
-            }
-            identifier = UUID.randomUUID().toString();
-            element.setAttribute(attribute, identifier);
-            return identifier;
-        }
-
         public Doj remove(int index) {
             int size = size();
             if (index < -size || index >= size) {
@@ -956,82 +1568,106 @@ public abstract class Doj implements Iterable<Doj> {
             if (size == 1 && (index == 0 || index == -1)) {
                 return EMPTY;
             }
-            int indexElementToRemove = (index >= 0 ? index : size + index);
-            HtmlElement[] newContextElements = new HtmlElement[size - 1];
-            for (int loop = 0; loop < size; ++loop) {
-                if (loop == indexElementToRemove) {
-                    continue;
-                }
-                newContextElements[loop < indexElementToRemove ? loop : loop - 1] = contextElements[loop];
-            }
-            return on(newContextElements);
+            return onUnique(contextElements.remove(index >= 0 ? index : size + index));
         }
 
         public Doj get(String selectorString) {
-            List<List<DojCssSelector>> selectorList = new DojCssSelector().compile(selectorString);
-            Doj all = EMPTY;
-            for (List<DojCssSelector> selectors : selectorList) {
-                Doj doj = this;
-                boolean descend = true;
-                for (DojCssSelector selector : selectors) {
-                    if (selector.getType() == DojCssSelector.Type.DESCENDANT) {
-                        descend = true;
-                    } else {
-                        doj = applySimpleSelector(selector, doj, descend);
-                        descend = false;
-                    }
-                }
-                all = all.merge(doj);
+            return get(DojCssSelector.compileCached(selectorString));
+        }
+
+        public Doj get(CompiledSelector compiledSelector) {
+            return apply(DojTraversal.select(compiledSelector));
+        }
+
+        public Doj getFirst(CompiledSelector compiledSelector) {
+            DojMetrics metrics = DojMetrics.active();
+            long start = (metrics == null ? 0L : System.nanoTime());
+            int[] visited = new int[1];
+            HtmlElement first = DojTraversal.select(compiledSelector).first(contextElements, null, visited);
+            Doj result = (first == null ? EMPTY : onUnique(new HtmlElement[]{first}));
+            return report(metrics, "getFirst", compiledSelector.getSelector(), start, visited[0], result);
+        }
+
+        public Doj getById(String id) {
+            return apply(DojTraversal.byId(id));
+        }
+
+        public Doj getScopedById(String id) {
+            return apply(DojTraversal.byScopedId(id));
+        }
+
+        /**
+         * Reports the operation to the metrics, if any, and returns its
+         * result.
+         */
+        private Doj report(DojMetrics metrics, String operation, String selector, long start, int visited, Doj result) {
+            if (metrics != null) {
+                metrics.record(operation, selector, size(), visited, result.size(), System.nanoTime() - start);
             }
-            return all;
-        }
-
-        protected Doj applySimpleSelector(DojCssSelector selector, Doj doj, boolean descend) {
-            String value = selector.getValue();
-            switch (selector.getType()) {
-                case ELEMENT:
-                    return descend ? doj.getByTag(value) : doj.withTag(value);
-                case HTML_CLASS:
-                    return descend ? doj.getByClass(value) : doj.withClass(value);
-                case ID:
-                    return descend ? doj.getById(value) : doj.withId(value);
+            return result;
+        }
+
+        /**
+         * Applies the traversal to the context elements and reports it to
+         * the metrics, if any.
+         */
+        private Doj apply(DojTraversal traversal) {
+            DojMetrics metrics = DojMetrics.active();
+            long start = (metrics == null ? 0L : System.nanoTime());
+            int[] visited = new int[1];
+            Doj result = onUnique(traversal.apply(contextElements, null, visited));
+            return report(metrics, traversal.getOperation(), metrics == null ? null : traversal.describe(), start, visited[0], result);
+        }
+
+        /**
+         * Keeps the context elements accepted by the filter and reports it to
+         * the metrics, if any.
+         */
+        private Doj filter(DojTraversal.Filter filter) {
+            DojMetrics metrics = DojMetrics.active();
+            long start = (metrics == null ? 0L : System.nanoTime());
+            int[] visited = new int[1];
+            Doj result = onUnique(DojTraversal.CONTEXT.apply(contextElements, filter, visited));
+            return report(metrics, filter.getOperation(), metrics == null ? null : filter.describe(), start, visited[0], result);
+        }
+
+        public Doj indexed() {
+            for (DojPageState state : pageStates()) {
+                state.enableIndex();
             }
-            return EMPTY;
+            return this;
         }
 
-        public Doj getById(String id) {
+        public Doj textCached() {
+            for (DojPageState state : pageStates()) {
+                state.enableTextCache();
+            }
+            return this;
+        }
+
+        /**
+         * Returns the states of the pages of the context elements.
+         */
+        private List<DojPageState> pageStates() {
+            List<DojPageState> states = new ArrayList<DojPageState>(1);
+            DojPageState state = null;
             for (HtmlElement element : contextElements) {
-                try {
-                    HtmlElement elementWithId = ((HtmlPage)element.getPage()).getHtmlElementById(id);
-                    if (elementWithId != null) {
-                        return on(elementWithId);
+                if (state == null || element.getPage() != state.getPage()) {
+                    state = DojPageState.of(element);
+                    if (state != null && !states.contains(state)) {
+                        states.add(state);
                     }
-                } catch (ElementNotFoundException e) {
-                    // Ignore
                 }
             }
-            return EMPTY;
+            return states;
         }
 
         public Doj getByTag(String tag) {
-            List<HtmlElement> list = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                DomNodeList<HtmlElement> domList = element.getElementsByTagName(tag);
-                list.addAll(domList);
-            }
-            return on(list);
+            return apply(DojTraversal.byTag(tag));
         }
 
         public Doj getByAttribute(String attribute, MatchType matchType, String value) {
-            List<HtmlElement> list = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                for (HtmlElement child : element.getHtmlElementDescendants()) {
-                    if (matchType.isMatch(child.getAttribute(attribute), value)) {
-                        list.add(child);
-                    }
-                }
-            }
-            return on(list);
+            return apply(DojTraversal.byAttribute(attribute, matchType, value));
         }
 
         public boolean hasClass(String valueToContain) {
@@ -1048,23 +1684,11 @@ public abstract class Doj implements Iterable<Doj> {
         }
 
         public Doj withTag(String tag) {
-            List<HtmlElement> list = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                if (tag.equalsIgnoreCase(element.getTagName())) {
-                    list.add(element);
-                }
-            }
-            return on(list);
+            return filter(DojTraversal.withTag(tag));
         }
 
         public Doj withAttribute(String key, MatchType matchType, String value) {
-            List<HtmlElement> list = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                if (matchType.isMatch(element.getAttribute(key), value)) {
-                    list.add(element);
-                }
-            }
-            return on(list);
+            return filter(DojTraversal.withAttribute(key, matchType, value));
         }
 
         public boolean hasAttribute(String key, MatchType matchType, String value) {
@@ -1084,22 +1708,22 @@ public abstract class Doj implements Iterable<Doj> {
             int size = size();
             String[] texts = new String[size];
             for (int index = 0; index < size; ++index) {
-                texts[index] = contextElements[index].getTextContent();
+                texts[index] = contextElements.get(index).getTextContent();
             }
             return texts;
         }
 
         public String trimmedText() {
             String text = text();
-            return text == null ? null : text.replaceAll("\\s+", " ").trim();
+            return text == null ? null : normalizeWhitespace(text);
         }
 
         public String[] trimmedTexts() {
             int size = size();
             String[] texts = new String[size];
             for (int index = 0; index < size; ++index) {
-                String text = contextElements[index].getTextContent();
-                texts[index] = (text == null ? null : text.replaceAll("\\s+", " ").trim());
+                String text = contextElements.get(index).getTextContent();
+                texts[index] = (text == null ? null : normalizeWhitespace(text));
             }
             return texts;
         }
@@ -1109,10 +1733,10 @@ public abstract class Doj implements Iterable<Doj> {
         }
 
         public String[] attributes(String key) {
-            int length = contextElements.length;
+            int length = contextElements.size();
             String[] values = new String[length];
             for (int index = 0; index < length; ++index) {
-                values[index] = contextElements[index].getAttribute(key);
+                values[index] = contextElements.get(index).getAttribute(key);
             }
             return values;
         }
@@ -1164,7 +1788,7 @@ public abstract class Doj implements Iterable<Doj> {
         }
 
         public int size() {
-            return contextElements.length;
+            return contextElements.size();
         }
 
         public boolean isEmpty() {
@@ -1172,18 +1796,36 @@ public abstract class Doj implements Iterable<Doj> {
         }
 
         public Doj first() {
-            return on(firstElement());
+            return onUnique(contextElements.slice(0, 1));
         }
 
         public Doj last() {
-            return on(lastElement());
+            return onUnique(contextElements.slice(size() - 1, 1));
         }
 
         public Doj slice(int startIndex, int nrItems) {
-            return on(sliceElements(startIndex, nrItems));
+            return onUnique(sliceView(startIndex, nrItems));
         }
 
         public HtmlElement[] sliceElements(int startIndex, int nrItems) {
+            return sliceView(startIndex, nrItems).toArray();
+        }
+
+        @Override
+        public HtmlElement[] allElements() {
+            return contextElements.toArray();
+        }
+
+        @Override
+        DojElements elements() {
+            return contextElements;
+        }
+
+        /**
+         * Returns a view on the elements {@link #sliceElements(int, int)}
+         * returns.
+         */
+        private DojElements sliceView(int startIndex, int nrItems) {
             int size = size();
             if (startIndex < 0) {
                 nrItems = (nrItems > -startIndex ? -startIndex : nrItems);
@@ -1193,109 +1835,48 @@ public abstract class Doj implements Iterable<Doj> {
             if (startIndex > size) {
                 startIndex = size - 1;
             }
-            nrItems = Math.min(size - startIndex, nrItems);
-            HtmlElement[] result = new HtmlElement[nrItems];
-            for (int index = startIndex; index < nrItems + startIndex; ++index) {
-                result[index - startIndex] = contextElements[index];
-            }
-            return result;
+            nrItems = Math.max(0, Math.min(size - startIndex, nrItems));
+            return contextElements.slice(startIndex, nrItems);
         }
 
         public NonEmptyDoj(HtmlElement... contextElements) {
-            this.contextElements = contextElements;
+            this.contextElements = DojElements.of(contextElements);
         }
 
         public NonEmptyDoj(Collection<? extends HtmlElement> contextElements) {
-            this.contextElements = new HtmlElement[contextElements.size()];
-            int index = -1;
-            for (HtmlElement element : contextElements) {
-                this.contextElements[++index] = element;
-            }
+            this.contextElements = DojElements.of(contextElements.toArray(new HtmlElement[contextElements.size()]));
         }
 
         public NonEmptyDoj(HtmlPage page) {
-            this.contextElements = new HtmlElement[]{page.getDocumentElement()};
+            this.contextElements = DojElements.of(new HtmlElement[]{page.getDocumentElement()});
+        }
+
+        NonEmptyDoj(DojElements contextElements) {
+            this.contextElements = contextElements;
         }
 
         public Doj next() {
-            List<HtmlElement> siblings = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                DomNode node = element.getNextSibling();
-                while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
-                    node = node.getNextSibling();
-                }
-                if (node != null) {
-                    siblings.add((HtmlElement) node);
-                }
-            }
-            return on(siblings);
+            return apply(DojTraversal.sibling(true, null));
         }
 
         public Doj next(String tag) {
-            List<HtmlElement> siblings = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                DomNode node = element.getNextSibling();
-                while (node != null && (node.getNodeType() != Node.ELEMENT_NODE || !node.getNodeName().equalsIgnoreCase(tag))) {
-                    node = node.getNextSibling();
-                }
-                if (node != null && node.getNodeName().equalsIgnoreCase(tag)) {
-                    siblings.add((HtmlElement) node);
-                }
-            }
-            return on(siblings);
+            return apply(DojTraversal.sibling(true, tag));
         }
 
         public Doj previous() {
-            List<HtmlElement> siblings = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                DomNode node = element.getPreviousSibling();
-                while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
-                    node = node.getPreviousSibling();
-                }
-                if (node != null) {
-                    siblings.add((HtmlElement) node);
-                }
-            }
-            return on(siblings);
+            return apply(DojTraversal.sibling(false, null));
         }
 
         public Doj previous(String tag) {
-            List<HtmlElement> siblings = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                DomNode node = element.getPreviousSibling();
-                while (node != null && (node.getNodeType() != Node.ELEMENT_NODE || !node.getNodeName().equalsIgnoreCase(tag))) {
-                    node = node.getPreviousSibling();
-                }
-                if (node != null && node.getNodeName().equalsIgnoreCase(tag)) {
-                    siblings.add((HtmlElement) node);
-                }
-            }
-            return on(siblings);
+            return apply(DojTraversal.sibling(false, tag));
         }
 
         public Doj parent() {
-            List<HtmlElement> parents = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                HtmlElement parent = (HtmlElement) element.getParentNode();
-                if (parent != null) {
-                    parents.add(parent);
-                }
-            }
-            return on(parents);
+            return apply(DojTraversal.parent(null));
         }
 
         public Doj parent(String tag) {
-            List<HtmlElement> parents = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                HtmlElement parent = (HtmlElement) element.getParentNode();
-                while (parent != null && !parent.getTagName().equalsIgnoreCase(tag)) {
-                    parent = (HtmlElement) parent.getParentNode();
-                }
-                if (parent != null) {
-                    parents.add(parent);
-                }
-            }
-            return on(parents);
+            return apply(DojTraversal.parent(tag));
         }
 
         public Doj verifyNotEmpty() throws DojIsEmptyException {
@@ -1321,59 +1902,43 @@ public abstract class Doj implements Iterable<Doj> {
         }
 
         public Doj withTextContaining(String textToContain) {
-            List<HtmlElement> retained = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                String text = element.asText();
-                if (text != null && text.contains(textToContain)) {
-                    retained.add(element);
-                }
-            }
-            return on(retained);
+            return filter(DojTraversal.withTextContaining(textToContain));
         }
 
         public Doj withTextMatching(String pattern) {
-            return withTextMatching(Pattern.compile(pattern));
+            return withTextMatching(DojPattern.compileCached(pattern));
         }
 
         public Doj withTextMatching(Pattern pattern) {
-            List<HtmlElement> retained = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                String text = element.asText();
-                if (text != null && pattern.matcher(text).matches()) {
-                    retained.add(element);
-                }
-            }
-            return on(retained);
+            return withTextMatching(DojPattern.of(pattern));
+        }
+
+        private Doj withTextMatching(DojPattern pattern) {
+            return filter(DojTraversal.withTextMatching(pattern));
         }
 
         public Doj withAttributeMatching(String key, String pattern) {
-            return withAttributeMatching(key, Pattern.compile(pattern));
+            return withAttributeMatching(key, DojPattern.compileCached(pattern));
         }
 
         public Doj withAttributeMatching(String key, Pattern pattern) {
-            List<HtmlElement> list = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                if (pattern.matcher(element.getAttribute(key)).matches()) {
-                    list.add(element);
-                }
-            }
-            return on(list);
+            return withAttributeMatching(key, DojPattern.of(pattern));
+        }
+
+        private Doj withAttributeMatching(String key, DojPattern pattern) {
+            return filter(DojTraversal.withAttributeMatching(key, pattern));
         }
 
         public Doj getByAttributeMatching(String attribute, String pattern) {
-            return getByAttributeMatching(attribute, Pattern.compile(pattern));
+            return getByAttributeMatching(attribute, DojPattern.compileCached(pattern));
         }
 
         public Doj getByAttributeMatching(String attribute, Pattern pattern) {
-            List<HtmlElement> list = new ArrayList<HtmlElement>();
-            for (HtmlElement element : contextElements) {
-                for (HtmlElement child : element.getHtmlElementDescendants()) {
-                    if (pattern.matcher(child.getAttribute(attribute)).matches()) {
-                        list.add(child);
-                    }
-                }
-            }
-            return on(list);
+            return getByAttributeMatching(attribute, DojPattern.of(pattern));
+        }
+
+        private Doj getByAttributeMatching(String attribute, DojPattern pattern) {
+            return apply(DojTraversal.byAttributeMatching(attribute, pattern));
         }
 
         public Page check() {
@@ -1440,6 +2005,22 @@ public abstract class Doj implements Iterable<Doj> {
             return this;
         }
 
+        public Doj indexed() {
+            return this;
+        }
+
+        public Doj textCached() {
+            return this;
+        }
+
+        public Doj lazy() {
+            return this;
+        }
+
+        public Doj getFirst(CompiledSelector selector) {
+            return this;
+        }
+
         public Doj withTag(String tag) {
             return this;
         }
@@ -1472,6 +2053,10 @@ public abstract class Doj implements Iterable<Doj> {
             return this;
         }
 
+        public Doj getScopedById(String id) {
+            return this;
+        }
+
         public Doj getByTag(String tag) {
             return this;
         }
@@ -1576,6 +2161,10 @@ public abstract class Doj implements Iterable<Doj> {
             return this;
         }
 
+        public Doj get(CompiledSelector selector) {
+            return this;
+        }
+
         public Doj verifyNotEmpty() throws DojIsEmptyException {
             throw new DojIsEmptyException();
         }
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an extraction on many pages in parallel.
+ * <p>
+ * Each page is handled by a single task: the extractor gets
+ * <code>Doj.on(page)</code> and any exception it throws ends up in the result
+ * for that page, without affecting the other pages. The results are streamed
+ * in the order in which they complete:
+ * </p>
+ * <pre><code>
+ * DojBatch batch = DojBatch.forkJoin(8);
+ * Map&lt;String, String&gt; selectors = new LinkedHashMap&lt;String, String&gt;();
+ * selectors.put("title", "h1");
+ * selectors.put("price", "#product .price");
+ * DojBatch.Results&lt;Map&lt;String, String&gt;&gt; results = batch.run(pages, DojBatch.fields(selectors));
+ * while (results.hasNext()) {
+ *      DojBatch.Result&lt;Map&lt;String, String&gt;&gt; result = results.next();
+ *      ...
+ * }
+ * System.out.println(results.getMetrics());
+ * batch.shutdown();
+ * </code></pre>
+ * <p>
+ * Pages are only handed to the executor as results are consumed: at most
+ * <code>maximumPending</code> pages are being extracted or waiting to be
+ * picked up at any time. A slow consumer slows down the extraction instead
+ * of piling up results - and the pages are only pulled from the given
+ * iterable when there's room, so they can be loaded on the fly.
+ * </p>
+ */
+public final class DojBatch {
+
+    /**
+     * Extracts a value from a single page.
+     * @param <T> type of the extracted value
+     */
+    public interface Extractor<T> {
+
+        /**
+         * Extracts the value.
+         * @param page the page to extract from, as <code>Doj.on(page)</code>
+         * @return the extracted value
+         * @throws Exception when the extraction fails
+         */
+        T extract(Doj page) throws Exception;
+
+    }
+
+    private final ExecutorService executor;
+
+    private final int maximumPending;
+
+    private final boolean ownExecutor;
+
+    /**
+     * Creates a batch running on the given executor. The executor is not
+     * shut down by {@link #shutdown()}.
+     * @param executor the executor to run the extractions on
+     * @param maximumPending maximum number of pages submitted to the
+     * executor whose results haven't been consumed yet
+     */
+    public DojBatch(ExecutorService executor, int maximumPending) {
+        this(executor, maximumPending, false);
+    }
+
+    private DojBatch(ExecutorService executor, int maximumPending, boolean ownExecutor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("An executor is required");
+        }
+        if (maximumPending < 1) {
+            throw new IllegalArgumentException("The maximum number of pending pages should be at least 1, not " + maximumPending);
+        }
+        this.executor = executor;
+        this.maximumPending = maximumPending;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * Creates a batch running on its own fork-join pool.
+     * @param parallelism the number of pages to extract at the same time
+     * @return the new batch
+     */
+    public static DojBatch forkJoin(int parallelism) {
+        return new DojBatch(new ForkJoinPool(parallelism), parallelism * 4, true);
+    }
+
+    /**
+     * Creates a batch running every page on its own virtual thread when the
+     * JVM supports those, or on a fork-join pool with the default parallelism
+     * otherwise.
+     * @param maximumPending maximum number of pages submitted whose results
+     * haven't been consumed yet
+     * @return the new batch
+     * @see #isVirtualThreadsAvailable()
+     */
+    public static DojBatch virtualThreads(int maximumPending) {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        return new DojBatch(executor == null ? new ForkJoinPool() : executor, maximumPending, true);
+    }
+
+    /**
+     * Checks whether the JVM supports virtual threads.
+     * @return true when {@link #virtualThreads(int)} uses virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            return false;
+        }
+        executor.shutdown();
+        return true;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            // Looked up reflectively: virtual threads require Java 21
+            return (ExecutorService) java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates an extractor returning the trimmed text (see
+     * {@link Doj#trimmedText()}) of the first element matching each of the
+     * selectors, or null when there's no such element.
+     * @param selectors the selectors to apply, by the name of the field
+     * @return the extractor, returning the values by the name of the field
+     * in the same order as the selectors
+     */
+    public static Extractor<Map<String, String>> fields(Map<String, String> selectors) {
+        final Map<String, CompiledSelector> compiled = new LinkedHashMap<String, CompiledSelector>();
+        for (Map.Entry<String, String> entry : selectors.entrySet()) {
+            compiled.put(entry.getKey(), DojCssSelector.compileCached(entry.getValue()));
+        }
+        return new Extractor<Map<String, String>>() {
+
+            public Map<String, String> extract(Doj page) {
+                Map<String, String> values = new LinkedHashMap<String, String>();
+                for (Map.Entry<String, CompiledSelector> entry : compiled.entrySet()) {
+                    values.put(entry.getKey(), page.getFirst(entry.getValue()).trimmedText());
+                }
+                return values;
+            }
+        };
+    }
+
+    /**
+     * Starts running the extractor on the pages.
+     * @param pages the pages to extract from
+     * @param extractor the extractor to run on each page
+     * @param <T> type of the extracted values
+     * @return the results, as they complete
+     */
+    public <T> Results<T> run(Iterable<? extends HtmlPage> pages, Extractor<T> extractor) {
+        return new Results<T>(this, pages.iterator(), extractor);
+    }
+
+    /**
+     * Shuts down the executor if it was created by this batch.
+     */
+    public void shutdown() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The outcome of running the extractor on a single page.
+     * @param <T> type of the extracted value
+     */
+    public static final class Result<T> {
+
+        private final HtmlPage page;
+
+        private final T value;
+
+        private final Throwable failure;
+
+        private final long latencyNanos;
+
+        Result(HtmlPage page, T value, Throwable failure, long latencyNanos) {
+            this.page = page;
+            this.value = value;
+            this.failure = failure;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public HtmlPage getPage() {
+            return page;
+        }
+
+        /**
+         * @return the extracted value or null if the extraction failed
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * @return what the extractor threw or null if it succeeded
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isFailed() {
+            return failure != null;
+        }
+
+        /**
+         * @return the time it took to extract the value, in nanoseconds
+         */
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+    }
+
+    /**
+     * The results of a batch, in the order in which they complete.
+     * <p>
+     * Consuming the results is what feeds new pages to the executor: call
+     * {@link #next()} from a single thread.
+     * </p>
+     * @param <T> type of the extracted values
+     */
+    public static final class Results<T> implements Iterator<Result<T>> {
+
+        private final Iterator<? extends HtmlPage> pages;
+
+        private final Extractor<T> extractor;
+
+        private final int maximumPending;
+
+        private final CompletionService<Result<T>> completionService;
+
+        private final Metrics metrics = new Metrics();
+
+        private int pending;
+
+        Results(DojBatch batch, Iterator<? extends HtmlPage> pages, Extractor<T> extractor) {
+            this.pages = pages;
+            this.extractor = extractor;
+            this.maximumPending = batch.maximumPending;
+            this.completionService = new ExecutorCompletionService<Result<T>>(batch.executor);
+            submit();
+        }
+
+        public boolean hasNext() {
+            submit();
+            return pending > 0;
+        }
+
+        /**
+         * Waits for the next result.
+         * <p>
+         * An {@link Error} thrown while extracting a page - like an
+         * {@link OutOfMemoryError} - isn't turned into a failed result, but
+         * thrown from here.
+         * </p>
+         * @return the next result to complete
+         * @throws NoSuchElementException when all results have been consumed
+         * @throws IllegalStateException when interrupted while waiting
+         */
+        public Result<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Future<Result<T>> future;
+            try {
+                future = completionService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next result", e);
+            }
+            --pending;
+            Result<T> result;
+            try {
+                result = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next result", e);
+            } catch (ExecutionException e) {
+                // Only errors get here: the task turns every exception into
+                // a failed result for its page, but an error is fatal
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException("The extraction failed unexpectedly", e.getCause());
+            }
+            metrics.record(result);
+            submit();
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("Results can't be removed");
+        }
+
+        /**
+         * Returns the metrics of the results consumed so far.
+         * @return the metrics of the batch
+         */
+        public Metrics getMetrics() {
+            return metrics;
+        }
+
+        private void submit() {
+            while (pending < maximumPending && pages.hasNext()) {
+                completionService.submit(new Extraction<T>(pages.next(), extractor));
+                ++pending;
+            }
+        }
+    }
+
+    /**
+     * Runs the extractor on a single page.
+     */
+    private static final class Extraction<T> implements Callable<Result<T>> {
+
+        private final HtmlPage page;
+
+        private final Extractor<T> extractor;
+
+        Extraction(HtmlPage page, Extractor<T> extractor) {
+            this.page = page;
+            this.extractor = extractor;
+        }
+
+        public Result<T> call() {
+            long start = System.nanoTime();
+            try {
+                T value = extractor.extract(Doj.on(page));
+                return new Result<T>(page, value, null, System.nanoTime() - start);
+            } catch (Exception e) {
+                return new Result<T>(page, null, e, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Throughput and latency of a batch.
+     * <p>
+     * The latency of a page is the time spent extracting its value, the
+     * throughput is the number of results consumed per second since the
+     * batch was started. The latencies are counted in a histogram of a fixed
+     * size, however many pages the batch runs on.
+     * </p>
+     */
+    public static final class Metrics {
+
+        private final long start = System.nanoTime();
+
+        private long end = start;
+
+        private int pages;
+
+        private int failures;
+
+        private final DojLatencyHistogram latencies = new DojLatencyHistogram();
+
+        private long totalLatency;
+
+        synchronized void record(Result<?> result) {
+            end = System.nanoTime();
+            ++pages;
+            latencies.record(result.getLatencyNanos());
+            totalLatency += result.getLatencyNanos();
+            if (result.isFailed()) {
+                ++failures;
+            }
+        }
+
+        /**
+         * @return the number of results consumed so far
+         */
+        public synchronized int getPages() {
+            return pages;
+        }
+
+        /**
+         * @return the number of failed extractions
+         */
+        public synchronized int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the time between the start of the batch and the last
+         * result, in nanoseconds
+         */
+        public synchronized long getElapsedNanos() {
+            return end - start;
+        }
+
+        /**
+         * @return the number of pages per second
+         */
+        public synchronized double getThroughput() {
+            long elapsed = end - start;
+            return elapsed == 0 ? 0.0 : pages * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+
+        /**
+         * @return the mean latency in nanoseconds
+         */
+        public synchronized long getMeanLatencyNanos() {
+            return pages == 0 ? 0L : totalLatency / pages;
+        }
+
+        /**
+         * Returns the latency below which the given percentage of the
+         * extractions completed, rounded up to the highest value of its
+         * histogram bucket: at most about 3% more than the actual latency.
+         * @param percentile the percentile, between 0 and 100
+         * @return the latency in nanoseconds
+         */
+        public long getLatencyPercentileNanos(double percentile) {
+            return latencies.getPercentile(percentile);
+        }
+
+        /**
+         * @return the highest latency in nanoseconds
+         */
+        public long getMaximumLatencyNanos() {
+            return latencies.getMaximum();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return pages + " pages (" + failures + " failed) in " + TimeUnit.NANOSECONDS.toMillis(end - start) + " ms, "
+                    + String.format("%.1f", getThroughput()) + " pages/s, latency mean "
+                    + TimeUnit.NANOSECONDS.toMicros(getMeanLatencyNanos()) + " us, p99 "
+                    + TimeUnit.NANOSECONDS.toMicros(getLatencyPercentileNanos(99.0)) + " us";
+        }
+    }
+
+}
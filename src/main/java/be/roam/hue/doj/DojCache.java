@@ -0,0 +1,216 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe cache that evicts (approximately) the least recently
+ * used entry once the maximum size has been reached.
+ * <p>
+ * Doj uses it to hold on to things that are expensive to build but are
+ * requested over and over again, such as compiled selectors. The number of
+ * hits and misses is tracked to make it easy to check whether the cache is
+ * sized correctly.
+ * </p>
+ * <p>
+ * Lookups don't take a lock and don't write to shared state: every entry
+ * carries the tick of a logical clock at which it was last used, and only
+ * adding an entry moves the clock forward. A lookup copies the current tick
+ * into the entry - which is only a write the first time the entry is used
+ * after an entry was added - so all entries used since then count as equally
+ * recent.
+ * </p>
+ * <p>
+ * Adding an entry to a full cache takes a lock to evict the entry with the
+ * oldest tick among a handful of entries, taken in turn from a cursor that
+ * sweeps the cache, instead of among all of them. Together with entries
+ * looked up concurrently with an eviction, that makes the order of eviction
+ * approximate.
+ * </p>
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class DojCache<K, V> {
+
+    /**
+     * The number of entries an eviction picks the least recently used one
+     * from.
+     */
+    private static final int EVICTION_SAMPLES = 8;
+
+    private final int maximumSize;
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private final Object evictionLock = new Object();
+
+    /**
+     * Where the next eviction continues sampling - guarded by the eviction
+     * lock.
+     */
+    private Iterator<Map.Entry<K, Entry<V>>> evictionCursor;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new cache holding at most the given number of entries.
+     * @param maximumSize maximum number of entries to keep
+     */
+    public DojCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("The maximum size of a cache should be at least 1, not " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the value cached for the given key.
+     * @param key key to look up
+     * @return the cached value or null if there is none
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        long now = clock.get();
+        if (entry.used != now) {
+            entry.used = now;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Caches the value for the given key, evicting (approximately) the least
+     * recently used entry when the cache is full.
+     * @param key key of the value
+     * @param value value to cache
+     */
+    public void put(K key, V value) {
+        // The new entry gets the current tick and the clock moves on, so the
+        // entries used from now on count as more recent than the ones before
+        entries.put(key, new Entry<V>(value, clock.getAndIncrement()));
+        if (entries.size() > maximumSize) {
+            synchronized (evictionLock) {
+                while (entries.size() > maximumSize) {
+                    evictLeastRecentlyUsed(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts the entry with the oldest tick among the next few entries of
+     * the eviction cursor.
+     * @param added the key of the entry just added, which is never evicted
+     */
+    private void evictLeastRecentlyUsed(K added) {
+        K eldestKey = null;
+        Entry<V> eldest = null;
+        boolean restarted = false;
+        int sampled = 0;
+        while (sampled < EVICTION_SAMPLES) {
+            if (evictionCursor == null || !evictionCursor.hasNext()) {
+                if (restarted) {
+                    break;
+                }
+                evictionCursor = entries.entrySet().iterator();
+                restarted = true;
+                continue;
+            }
+            Map.Entry<K, Entry<V>> candidate = evictionCursor.next();
+            if (candidate.getKey().equals(added)) {
+                continue;
+            }
+            if (eldest == null || candidate.getValue().used < eldest.used) {
+                eldestKey = candidate.getKey();
+                eldest = candidate.getValue();
+            }
+            ++sampled;
+        }
+        if (eldest != null) {
+            entries.remove(eldestKey, eldest);
+        }
+    }
+
+    /**
+     * Removes all entries from the cache and resets the hit and miss counters.
+     */
+    public void clear() {
+        entries.clear();
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Returns the number of entries currently held by the cache.
+     * @return the number of entries currently held by the cache
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the maximum number of entries held by the cache.
+     * @return the maximum number of entries held by the cache
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Returns the number of lookups that found a cached value.
+     * @return the number of lookups that found a cached value
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that did not find a cached value.
+     * @return the number of lookups that did not find a cached value
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * A cached value and the tick at which it was last used.
+     */
+    private static final class Entry<V> {
+
+        private final V value;
+
+        private volatile long used;
+
+        Entry(V value, long used) {
+            this.value = value;
+            this.used = used;
+        }
+    }
+
+}
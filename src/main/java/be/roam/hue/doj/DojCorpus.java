@@ -0,0 +1,356 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Extracts fields from archive files holding many HTML pages, one after the
+ * other, separated by a delimiter.
+ * <p>
+ * The file is memory-mapped in windows and each record - the bytes between
+ * two delimiters - is handed to an executor as a view on the mapped window,
+ * without copying it. The fields are extracted with {@link DojStream}, so no
+ * HtmlPage is built: the field value is the trimmed text of the first element
+ * matching its selector, or null when there's no such element (like
+ * {@link DojBatch#fields(java.util.Map)}). Only the selectors supported by
+ * {@link DojStream} can be used.
+ * </p>
+ * <pre><code>
+ * Map&lt;String, String&gt; selectors = new LinkedHashMap&lt;String, String&gt;();
+ * selectors.put("title", "h1");
+ * selectors.put("price", "#product .price");
+ * DojCorpus corpus = new DojCorpus(selectors, "\n\u0000\n".getBytes("UTF-8"), Charset.forName("UTF-8"));
+ * long records = corpus.scan(new File("crawl.dat"), 8, sink);
+ * </code></pre>
+ * <p>
+ * At most <code>maximumPending</code> records are submitted to the executor
+ * at any time, so the mapped windows are released as the scan moves on.
+ * A record can't be larger than the window size.
+ * </p>
+ */
+public final class DojCorpus {
+
+    /**
+     * Receives the fields extracted from each record.
+     * <p>
+     * The methods are called from the threads of the executor, possibly
+     * concurrently, in no particular order.
+     * </p>
+     */
+    public interface Sink {
+
+        /**
+         * Called with the fields extracted from a record.
+         * @param offset the offset of the record in the file
+         * @param fields the values by the name of the field, in the same
+         * order as the selectors
+         */
+        void record(long offset, Map<String, String> fields);
+
+        /**
+         * Called when the extraction of a record - or {@link #record(long, Map)}
+         * - failed.
+         * @param offset the offset of the record in the file
+         * @param failure what went wrong
+         */
+        void failed(long offset, Exception failure);
+
+    }
+
+    /**
+     * The default size of the windows in which a file is mapped: 256MB.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 28;
+
+    private final Map<String, CompiledSelector> selectors;
+
+    private final byte[] delimiter;
+
+    private final Charset charset;
+
+    private final int windowSize;
+
+    /**
+     * Creates a corpus scanner with the default window size.
+     * @param selectors the selectors to apply, by the name of the field
+     * @param delimiter the bytes separating the records
+     * @param charset the encoding of the records
+     * @throws IllegalArgumentException when a selector is invalid or not
+     * supported by {@link DojStream}
+     */
+    public DojCorpus(Map<String, String> selectors, byte[] delimiter, Charset charset) {
+        this(selectors, delimiter, charset, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Creates a corpus scanner.
+     * @param selectors the selectors to apply, by the name of the field
+     * @param delimiter the bytes separating the records
+     * @param charset the encoding of the records
+     * @param windowSize the size of the windows in which a file is mapped,
+     * which is also the maximum size of a record
+     * @throws IllegalArgumentException when a selector is invalid or not
+     * supported by {@link DojStream}
+     */
+    public DojCorpus(Map<String, String> selectors, byte[] delimiter, Charset charset, int windowSize) {
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException("The delimiter can't be empty");
+        }
+        if (charset == null) {
+            throw new IllegalArgumentException("The charset can't be null");
+        }
+        if (windowSize < delimiter.length) {
+            throw new IllegalArgumentException("The window size should be at least the length of the delimiter, not " + windowSize);
+        }
+        this.selectors = new LinkedHashMap<String, CompiledSelector>();
+        for (Map.Entry<String, String> entry : selectors.entrySet()) {
+            CompiledSelector compiled = DojCssSelector.compileCached(entry.getValue());
+            // Fail now rather than once per record
+            DojStream.verify(compiled);
+            this.selectors.put(entry.getKey(), compiled);
+        }
+        this.delimiter = delimiter.clone();
+        this.charset = charset;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Scans the file on a fork-join pool of its own.
+     * @param file the file to scan
+     * @param parallelism the number of records to extract at the same time
+     * @param sink the sink to pass the fields to
+     * @return the number of records
+     * @throws IOException when reading the file fails or a record is larger
+     * than the window size
+     */
+    public long scan(File file, int parallelism, Sink sink) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return scan(file, pool, parallelism * 4, sink);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Scans the file, extracting the fields of the records on the given
+     * executor. Returns when the fields of all records have been passed to
+     * the sink.
+     * @param file the file to scan
+     * @param executor the executor to extract the fields on
+     * @param maximumPending maximum number of records submitted to the
+     * executor that haven't been handled yet
+     * @param sink the sink to pass the fields to
+     * @return the number of records
+     * @throws IOException when reading the file fails or a record is larger
+     * than the window size
+     */
+    public long scan(File file, ExecutorService executor, int maximumPending, Sink sink) throws IOException {
+        if (maximumPending < 1) {
+            throw new IllegalArgumentException("The maximum number of pending records should be at least 1, not " + maximumPending);
+        }
+        Semaphore pending = new Semaphore(maximumPending);
+        long records = 0;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(windowSize, size - position);
+                boolean last = (position + length == size);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int start = 0;
+                while (true) {
+                    int end = indexOf(window, start, length);
+                    if (end < 0 && !last) {
+                        if (start == 0) {
+                            throw new IOException("The record at offset " + position + " is larger than the window size of " + windowSize + " bytes");
+                        }
+                        // Map the next window from the start of the unfinished record
+                        break;
+                    }
+                    int recordEnd = (end < 0 ? length : end);
+                    if (recordEnd > start) {
+                        acquire(pending);
+                        executor.execute(new Extraction(position + start, slice(window, start, recordEnd), sink, pending));
+                        ++records;
+                    }
+                    if (end < 0) {
+                        start = length;
+                        break;
+                    }
+                    start = end + delimiter.length;
+                }
+                position += start;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        acquire(pending, maximumPending);
+        return records;
+    }
+
+    /**
+     * Returns the index of the first delimiter at or after the start, or -1.
+     */
+    private int indexOf(ByteBuffer window, int start, int length) {
+        byte first = delimiter[0];
+        for (int index = start, last = length - delimiter.length; index <= last; ++index) {
+            if (window.get(index) != first) {
+                continue;
+            }
+            int matched = 1;
+            while (matched < delimiter.length && window.get(index + matched) == delimiter[matched]) {
+                ++matched;
+            }
+            if (matched == delimiter.length) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer slice(ByteBuffer window, int start, int end) {
+        ByteBuffer record = window.duplicate();
+        record.limit(end);
+        record.position(start);
+        return record.slice();
+    }
+
+    private static void acquire(Semaphore semaphore) throws InterruptedIOException {
+        acquire(semaphore, 1);
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws InterruptedIOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the records to be extracted");
+        }
+    }
+
+    /**
+     * Extracts the fields of a single record.
+     */
+    private final class Extraction implements Runnable {
+
+        private final long offset;
+
+        private final ByteBuffer record;
+
+        private final Sink sink;
+
+        private final Semaphore pending;
+
+        Extraction(long offset, ByteBuffer record, Sink sink, Semaphore pending) {
+            this.offset = offset;
+            this.record = record;
+            this.sink = sink;
+            this.pending = pending;
+        }
+
+        public void run() {
+            try {
+                DojStream stream = DojStream.over(new ByteBufferInputStream(record), charset);
+                Map<String, FirstValue> values = new LinkedHashMap<String, FirstValue>();
+                for (Map.Entry<String, CompiledSelector> entry : selectors.entrySet()) {
+                    FirstValue value = new FirstValue();
+                    stream.trimmedTexts(entry.getValue(), value);
+                    values.put(entry.getKey(), value);
+                }
+                stream.run();
+                Map<String, String> fields = new LinkedHashMap<String, String>();
+                for (Map.Entry<String, FirstValue> entry : values.entrySet()) {
+                    fields.put(entry.getKey(), entry.getValue().value);
+                }
+                sink.record(offset, fields);
+            } catch (Exception e) {
+                sink.failed(offset, e);
+            } finally {
+                pending.release();
+            }
+        }
+    }
+
+    /**
+     * Keeps the value of the first matching element.
+     */
+    private static final class FirstValue implements DojStream.Listener {
+
+        private String value;
+
+        private boolean matched;
+
+        public void matched(String value) {
+            if (!matched) {
+                this.value = value;
+                matched = true;
+            }
+        }
+    }
+
+    /**
+     * Reads a ByteBuffer, without copying it.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -15,13 +15,11 @@
  */
 package be.roam.hue.doj;
 
-import org.apache.commons.lang3.StringUtils;
-
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Selector object and compiler for simple CSS selectors.
+ * Selector object and compiler for CSS selectors.
  * @author Kevin Wetzels
  */
 public class DojCssSelector {
@@ -30,15 +28,57 @@ public class DojCssSelector {
         ELEMENT,
         HTML_CLASS,
         ID,
-        DESCENDANT
+        DESCENDANT,
+        /**
+         * The <code>&gt;</code> combinator.
+         */
+        CHILD,
+        /**
+         * The <code>+</code> combinator.
+         */
+        ADJACENT_SIBLING,
+        /**
+         * The <code>~</code> combinator.
+         */
+        GENERAL_SIBLING,
+        /**
+         * The <code>*</code> selector, matching any element.
+         */
+        UNIVERSAL,
+        /**
+         * An attribute selector such as <code>[lang|=en]</code>, see
+         * {@link DojCssSelector#getAttribute()} and
+         * {@link DojCssSelector#getMatchType()}.
+         */
+        ATTRIBUTE,
+        FIRST_CHILD,
+        LAST_CHILD,
+        /**
+         * The <code>:nth-child(an+b)</code> pseudo-class, see
+         * {@link DojCssSelector#getStep()} and {@link DojCssSelector#getOffset()}.
+         */
+        NTH_CHILD
     }
 
-    private static final DojCssSelector DESCENDANT_SELECTOR = new DojCssSelector(Type.DESCENDANT, " ");
+    /**
+     * Maximum number of compiled selectors kept by the shared cache.
+     */
+    public static final int CACHE_SIZE = 1024;
+
+    private static final DojCache<String, CompiledSelector> CACHE = new DojCache<String, CompiledSelector>(CACHE_SIZE);
 
     private Type type;
 
     private String value;
 
+    private String attribute;
+
+    private MatchType matchType;
+
+    private int step;
+
+    private int offset;
+
     public DojCssSelector() {
         super();
     }
@@ -48,6 +88,29 @@ public class DojCssSelector {
         this.value = value;
     }
 
+    /**
+     * Creates an attribute selector.
+     * @param attribute the (lower case) name of the attribute
+     * @param matchType how the value of the attribute should match
+     * @param value the value to match, null for {@link MatchType#EXISTING}
+     */
+    public DojCssSelector(String attribute, MatchType matchType, String value) {
+        this(Type.ATTRIBUTE, value);
+        this.attribute = attribute;
+        this.matchType = matchType;
+    }
+
+    /**
+     * Creates an <code>:nth-child(an+b)</code> selector.
+     * @param step a, the size of the cycle
+     * @param offset b, the position within the cycle
+     */
+    public DojCssSelector(int step, int offset) {
+        this(Type.NTH_CHILD, step + "n" + (offset < 0 ? "" : "+") + offset);
+        this.step = step;
+        this.offset = offset;
+    }
+
     public Type getType() {
         return type;
     }
@@ -56,41 +119,175 @@ public class DojCssSelector {
         return value;
     }
 
-    public List<List<DojCssSelector>> compile(String groupSelector) {
-        List<List<DojCssSelector>> result = new ArrayList<List<DojCssSelector>>();
-        String[] parts = groupSelector.split(",");
-        for (String part : parts) {
-            part = part.trim();
-            if (StringUtils.isBlank(part)) {
-                continue;
-            }
-            List<DojCssSelector> compiled = compileSingle(part);
-            if (!compiled.isEmpty()) {
-                result.add(compiled);
-            }
+    /**
+     * @return the name of the attribute of an attribute selector
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * @return how an attribute selector matches the value of the attribute
+     */
+    public MatchType getMatchType() {
+        return matchType;
+    }
+
+    /**
+     * @return a in <code>:nth-child(an+b)</code>
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * @return b in <code>:nth-child(an+b)</code>
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the selector in CSS syntax, with combinators surrounded by
+     * spaces - concatenating the selectors of a group gives a selector
+     * equivalent to the one they were compiled from.
+     * @return the selector in CSS syntax
+     */
+    @Override
+    public String toString() {
+        if (type == null) {
+            return "";
+        }
+        switch (type) {
+            case ELEMENT:
+                return value;
+            case HTML_CLASS:
+                return "." + value;
+            case ID:
+                return "#" + value;
+            case UNIVERSAL:
+                return "*";
+            case ATTRIBUTE:
+                return "[" + attribute + (matchType == MatchType.EXISTING ? "" : operator(matchType) + "\"" + value + "\"") + "]";
+            case FIRST_CHILD:
+                return ":first-child";
+            case LAST_CHILD:
+                return ":last-child";
+            case NTH_CHILD:
+                return ":nth-child(" + value + ")";
+            default:
+                return combinator(type);
         }
-        return result;
     }
-    
-    public List<DojCssSelector> compileSingle(String selector) {
-        List<DojCssSelector> result = new ArrayList<DojCssSelector>();
-        String[] parts = selector.split("\\s");
-        boolean first = true;
-        for (String part : parts) {
-            part = part.trim();
-            if (StringUtils.isBlank(part)) {
-                continue;
-            }
-            if (first) {
-                first = false;
-            } else {
-                result.add(DESCENDANT_SELECTOR);
-            }
-            compileSimpleSelector(part, result);            
+
+    /**
+     * Returns the combinator of the given type in CSS syntax, surrounded by
+     * spaces.
+     */
+    static String combinator(Type type) {
+        switch (type) {
+            case CHILD:
+                return " > ";
+            case ADJACENT_SIBLING:
+                return " + ";
+            case GENERAL_SIBLING:
+                return " ~ ";
+            default:
+                return " ";
+        }
+    }
+
+    private static String operator(MatchType matchType) {
+        switch (matchType) {
+            case CONTAINED_WITH_WHITESPACE:
+                return "~=";
+            case STARTING_WITH:
+                return "^=";
+            case ENDING_WITH:
+                return "$=";
+            case CONTAINING:
+                return "*=";
+            case CONTAINED_WITH_HYPHENS:
+                return "|=";
+            default:
+                return "=";
         }
-        return result;
     }
 
+    /**
+     * Compiles the given (grouped) selector, reusing the result of a previous
+     * compilation of the same selector string when possible.
+     * <p>
+     * The compiled selectors are kept in a shared cache holding the
+     * {@link #CACHE_SIZE} most recently used selectors.
+     * </p>
+     * @param groupSelector the selector to compile
+     * @return the compiled selector
+     */
+    public static CompiledSelector compileCached(String groupSelector) {
+        CompiledSelector compiled = CACHE.get(groupSelector);
+        if (compiled == null) {
+            compiled = new CompiledSelector(groupSelector);
+            CACHE.put(groupSelector, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns the cache used by {@link #compileCached(java.lang.String)}.
+     * @return the shared selector cache
+     */
+    public static DojCache<String, CompiledSelector> getCache() {
+        return CACHE;
+    }
+
+    /**
+     * Compiles the given (grouped) selector.
+     * <p>
+     * Following selectors are supported:
+     * </p>
+     * <ul>
+     * <li>type selectors (<code>div</code>) and the universal selector (<code>*</code>)</li>
+     * <li>class (<code>.article</code>) and id (<code>#main</code>) selectors</li>
+     * <li>attribute selectors: <code>[attr]</code>, <code>[attr=value]</code>,
+     * <code>[attr~=value]</code>, <code>[attr^=value]</code>, <code>[attr$=value]</code>,
+     * <code>[attr*=value]</code> and <code>[attr|=value]</code> - the value can be quoted.
+     * They match like the corresponding {@link MatchType}: an attribute with a
+     * blank value never matches.</li>
+     * <li>the <code>:first-child</code>, <code>:last-child</code> and
+     * <code>:nth-child(an+b)</code> pseudo-classes (including <code>odd</code>
+     * and <code>even</code>)</li>
+     * <li>the descendant (whitespace), child (<code>&gt;</code>), adjacent
+     * sibling (<code>+</code>) and general sibling (<code>~</code>) combinators</li>
+     * <li>groups of selectors separated by commas - empty groups are ignored</li>
+     * </ul>
+     * <p>
+     * Characters with a special meaning in a selector (like the colon) can be
+     * escaped with a backslash when they are part of a name.
+     * </p>
+     * @param groupSelector the selector to compile
+     * @return the compiled selectors, one list per group
+     * @throws IllegalArgumentException when the selector is not valid
+     */
+    public List<List<DojCssSelector>> compile(String groupSelector) {
+        return new DojSelectorParser(groupSelector).parseGroup();
+    }
+
+    /**
+     * Compiles a single selector - without groups.
+     * @param selector the selector to compile
+     * @return the compiled selector
+     * @throws IllegalArgumentException when the selector is not valid
+     * @see #compile(java.lang.String)
+     */
+    public List<DojCssSelector> compileSingle(String selector) {
+        return new DojSelectorParser(selector).parseSingle();
+    }
+
+    /**
+     * @deprecated no longer used by {@link #compile(java.lang.String)}
+     */
+    @Deprecated
     protected void compileSimpleSelector(String selector, List<DojCssSelector> list) {
         List<String> parts = tokenize(selector);
         for (String part : parts) {
@@ -108,6 +305,10 @@ public class DojCssSelector {
         }
     }
 
+    /**
+     * @deprecated no longer used by {@link #compile(java.lang.String)}
+     */
+    @Deprecated
     protected List<String> tokenize(String selector) {
         List<String> tokens = new ArrayList<String>();
         int previous = 0;
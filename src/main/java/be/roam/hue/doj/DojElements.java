@@ -0,0 +1,656 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable, ordered set of elements - the context elements of a Doj.
+ * <p>
+ * Besides a plain array, the elements can be backed by the numbering of
+ * their page (see {@link DojNodeNumbering}) together with an
+ * <code>int[]</code> of numbers or - for dense sets - a {@link BitSet}, so
+ * results taken from the index or sorted in document order don't need to be
+ * copied into an array of their own. Slices and removals are views sharing
+ * the data of the set they were taken from - up to a few views deep, after
+ * which the elements are copied, so lookups stay cheap however many times a
+ * set is sliced or has elements removed.
+ * </p>
+ * <p>
+ * Since the data is shared, none of it should ever be modified once it's
+ * been handed to an element set.
+ * </p>
+ */
+abstract class DojElements implements Iterable<HtmlElement> {
+
+    /**
+     * Sets with at least one element per this many numbered elements are
+     * kept as a bitset rather than an <code>int[]</code>.
+     */
+    private static final int DENSITY = 32;
+
+    /**
+     * Views on views are copied into an array beyond this many levels.
+     */
+    private static final int MAX_DEPTH = 4;
+
+    /**
+     * Returns the number of elements.
+     * @return the number of elements
+     */
+    abstract int size();
+
+    /**
+     * Returns the element at the given index.
+     * @param index the index, from 0 up to (but not including)
+     * {@link #size()}
+     * @return the element at the given index
+     */
+    abstract HtmlElement get(int index);
+
+    /**
+     * Returns a view on a range of the elements.
+     * @param start the index of the first element of the range
+     * @param length the number of elements in the range
+     * @return the elements in the range
+     */
+    DojElements slice(int start, int length) {
+        if (start == 0 && length == size()) {
+            return this;
+        }
+        if (depth() >= MAX_DEPTH) {
+            return of(toArray()).slice(start, length);
+        }
+        return new Slice(this, start, length);
+    }
+
+    /**
+     * Returns a view on the elements without the one at the given index.
+     * @param index the index of the element to leave out
+     * @return the remaining elements
+     */
+    DojElements remove(int index) {
+        if (index == 0) {
+            return slice(1, size() - 1);
+        }
+        if (index == size() - 1) {
+            return slice(0, size() - 1);
+        }
+        if (depth() >= MAX_DEPTH) {
+            return of(toArray()).remove(index);
+        }
+        return new Removal(this, new RemovalLog().append(0, index), 1);
+    }
+
+    /**
+     * Returns the number of views between this set and the data backing it.
+     * @return 0 unless this set is a view on another one
+     */
+    int depth() {
+        return 0;
+    }
+
+    /**
+     * Copies the elements into the target array.
+     * @param target the array to copy to
+     * @param offset the index in the target at which to start
+     */
+    void copyTo(HtmlElement[] target, int offset) {
+        int index = offset;
+        for (HtmlElement element : this) {
+            target[index++] = element;
+        }
+    }
+
+    /**
+     * Returns the elements in a new array.
+     * @return the elements in a new array
+     */
+    HtmlElement[] toArray() {
+        HtmlElement[] array = new HtmlElement[size()];
+        copyTo(array, 0);
+        return array;
+    }
+
+    /**
+     * Returns the elements as an array which - unlike {@link #toArray()} - may
+     * be the array backing this set: it should not be modified.
+     * @return the elements in an array
+     */
+    HtmlElement[] asArray() {
+        return toArray();
+    }
+
+    /**
+     * Returns the numbers of the elements in the numbering.
+     * @param numbering the numbering of the page of the elements
+     * @return a new bitset with the numbers of the elements or null when one
+     * of them is not part of the numbering
+     */
+    BitSet numbers(DojNodeNumbering numbering) {
+        BitSet numbers = new BitSet(numbering.size());
+        for (HtmlElement element : this) {
+            int number = numbering.indexOf(element);
+            if (number < 0) {
+                return null;
+            }
+            numbers.set(number);
+        }
+        return numbers;
+    }
+
+    /**
+     * Returns an unmodifiable list view on the elements.
+     * @return the elements as a list
+     */
+    List<HtmlElement> asList() {
+        return new AbstractList<HtmlElement>() {
+
+            @Override
+            public HtmlElement get(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+                }
+                return DojElements.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return DojElements.this.size();
+            }
+
+            @Override
+            public Iterator<HtmlElement> iterator() {
+                return DojElements.this.iterator();
+            }
+        };
+    }
+
+    public Iterator<HtmlElement> iterator() {
+        return new Iterator<HtmlElement>() {
+
+            private int index;
+
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            public HtmlElement next() {
+                if (index >= size()) {
+                    throw new NoSuchElementException();
+                }
+                return get(index++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Element sets are immutable");
+            }
+        };
+    }
+
+    /**
+     * Returns a set backed by the array.
+     * @param elements the elements - the array is not copied
+     * @return the element set
+     */
+    static DojElements of(HtmlElement[] elements) {
+        return new ArrayElements(elements, 0, elements.length);
+    }
+
+    /**
+     * Returns a set backed by the numbering and a range of the numbers.
+     * @param numbering the numbering of the page of the elements
+     * @param numbers the numbers of the elements - the array is not copied
+     * @param from the index of the first number in the range
+     * @param to the index after the last number in the range
+     * @return the element set
+     */
+    static DojElements numbered(DojNodeNumbering numbering, int[] numbers, int from, int to) {
+        return new NumberedElements(numbering, numbers, from, to - from);
+    }
+
+    /**
+     * Returns a set backed by the numbering and the numbers of the elements
+     * in the bitset, in document order. Sparse sets are turned into an array
+     * of numbers.
+     * @param numbering the numbering of the page of the elements
+     * @param numbers the numbers of the elements - the bitset is not copied
+     * @return the element set
+     */
+    static DojElements numbered(DojNodeNumbering numbering, BitSet numbers) {
+        int cardinality = numbers.cardinality();
+        if ((long) cardinality * DENSITY >= numbering.size()) {
+            return new BitSetElements(numbering, numbers, cardinality);
+        }
+        int[] array = new int[cardinality];
+        int position = 0;
+        for (int number = numbers.nextSetBit(0); number >= 0; number = numbers.nextSetBit(number + 1)) {
+            array[position++] = number;
+        }
+        return new NumberedElements(numbering, array, 0, cardinality);
+    }
+
+    /**
+     * A range of an array.
+     */
+    private static final class ArrayElements extends DojElements {
+
+        private final HtmlElement[] elements;
+
+        private final int offset;
+
+        private final int length;
+
+        ArrayElements(HtmlElement[] elements, int offset, int length) {
+            this.elements = elements;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int size() {
+            return length;
+        }
+
+        HtmlElement get(int index) {
+            return elements[offset + index];
+        }
+
+        @Override
+        DojElements slice(int start, int sliceLength) {
+            if (start == 0 && sliceLength == length) {
+                return this;
+            }
+            return new ArrayElements(elements, offset + start, sliceLength);
+        }
+
+        @Override
+        void copyTo(HtmlElement[] target, int targetOffset) {
+            System.arraycopy(elements, offset, target, targetOffset, length);
+        }
+
+        @Override
+        HtmlElement[] asArray() {
+            return (offset == 0 && length == elements.length ? elements : toArray());
+        }
+    }
+
+    /**
+     * A range of an array of numbers.
+     */
+    private static final class NumberedElements extends DojElements {
+
+        private final DojNodeNumbering numbering;
+
+        private final int[] numbers;
+
+        private final int offset;
+
+        private final int length;
+
+        NumberedElements(DojNodeNumbering numbering, int[] numbers, int offset, int length) {
+            this.numbering = numbering;
+            this.numbers = numbers;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int size() {
+            return length;
+        }
+
+        HtmlElement get(int index) {
+            return numbering.get(numbers[offset + index]);
+        }
+
+        @Override
+        DojElements slice(int start, int sliceLength) {
+            if (start == 0 && sliceLength == length) {
+                return this;
+            }
+            return new NumberedElements(numbering, numbers, offset + start, sliceLength);
+        }
+
+        @Override
+        BitSet numbers(DojNodeNumbering otherNumbering) {
+            if (otherNumbering != numbering) {
+                return super.numbers(otherNumbering);
+            }
+            BitSet bitSet = new BitSet(numbering.size());
+            for (int index = offset, end = offset + length; index < end; ++index) {
+                bitSet.set(numbers[index]);
+            }
+            return bitSet;
+        }
+    }
+
+    /**
+     * The set bits of a bitset.
+     * <p>
+     * Looking up an element by index starts from the last one looked up -
+     * moving backward when that's closer than the start - so walking the
+     * elements in either direction doesn't rescan the bitset.
+     * </p>
+     */
+    private static final class BitSetElements extends DojElements {
+
+        private final DojNodeNumbering numbering;
+
+        private final BitSet numbers;
+
+        private final int cardinality;
+
+        /**
+         * The last lookup - replaced as a whole, so it can be shared between
+         * threads without synchronization.
+         */
+        private Cursor cursor;
+
+        BitSetElements(DojNodeNumbering numbering, BitSet numbers, int cardinality) {
+            this.numbering = numbering;
+            this.numbers = numbers;
+            this.cardinality = cardinality;
+        }
+
+        int size() {
+            return cardinality;
+        }
+
+        HtmlElement get(int index) {
+            Cursor last = cursor;
+            int position;
+            int number;
+            if (last != null && (last.index <= index || last.index - index < index)) {
+                position = last.index;
+                number = last.number;
+            } else {
+                position = 0;
+                number = numbers.nextSetBit(0);
+            }
+            while (position < index) {
+                number = numbers.nextSetBit(number + 1);
+                ++position;
+            }
+            while (position > index) {
+                number = numbers.previousSetBit(number - 1);
+                --position;
+            }
+            cursor = new Cursor(index, number);
+            return numbering.get(number);
+        }
+
+        @Override
+        BitSet numbers(DojNodeNumbering otherNumbering) {
+            return (otherNumbering == numbering ? (BitSet) numbers.clone() : super.numbers(otherNumbering));
+        }
+
+        @Override
+        public Iterator<HtmlElement> iterator() {
+            return new Iterator<HtmlElement>() {
+
+                private int number = numbers.nextSetBit(0);
+
+                public boolean hasNext() {
+                    return number >= 0;
+                }
+
+                public HtmlElement next() {
+                    if (number < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    HtmlElement element = numbering.get(number);
+                    number = numbers.nextSetBit(number + 1);
+                    return element;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("Element sets are immutable");
+                }
+            };
+        }
+    }
+
+    private static final class Cursor {
+
+        private final int index;
+
+        private final int number;
+
+        Cursor(int index, int number) {
+            this.index = index;
+            this.number = number;
+        }
+    }
+
+    /**
+     * A range of another set.
+     */
+    private static final class Slice extends DojElements {
+
+        private final DojElements elements;
+
+        private final int offset;
+
+        private final int length;
+
+        Slice(DojElements elements, int offset, int length) {
+            this.elements = elements;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int size() {
+            return length;
+        }
+
+        HtmlElement get(int index) {
+            return elements.get(offset + index);
+        }
+
+        @Override
+        DojElements slice(int start, int sliceLength) {
+            if (start == 0 && sliceLength == length) {
+                return this;
+            }
+            return new Slice(elements, offset + start, sliceLength);
+        }
+
+        @Override
+        int depth() {
+            return elements.depth() + 1;
+        }
+    }
+
+    /**
+     * Another set without some of its elements.
+     * <p>
+     * Removing an element from a removal appends its index to a log shared
+     * with the removal it was made from, so a series of removals doesn't copy
+     * the indexes removed so far every time. The indexes of the elements
+     * left out are only worked out when the first element is looked up.
+     * </p>
+     */
+    private static final class Removal extends DojElements {
+
+        private final DojElements elements;
+
+        private final RemovalLog log;
+
+        /**
+         * The number of entries of the log that make up this removal.
+         */
+        private final int count;
+
+        /**
+         * The indexes in the other set of the elements left out, in
+         * ascending order - worked out from the log on the first lookup.
+         */
+        private volatile int[] removed;
+
+        Removal(DojElements elements, RemovalLog log, int count) {
+            this.elements = elements;
+            this.log = log;
+            this.count = count;
+        }
+
+        int size() {
+            return elements.size() - count;
+        }
+
+        HtmlElement get(int index) {
+            int[] indexes = removed;
+            if (indexes == null) {
+                indexes = log.resolve(count, elements.size());
+                removed = indexes;
+            }
+            return elements.get(indexInElements(indexes, indexes.length, index));
+        }
+
+        @Override
+        DojElements remove(int index) {
+            if (index == 0 || index == size() - 1) {
+                return super.remove(index);
+            }
+            return new Removal(elements, log.append(count, index), count + 1);
+        }
+
+        @Override
+        int depth() {
+            return elements.depth() + 1;
+        }
+    }
+
+    /**
+     * Returns the index in a set of the element at the given index once the
+     * elements at the removed indexes have been left out: the index plus the
+     * number of elements left out before it. Since
+     * <code>removed[i] - i</code> never decreases, that number is found by a
+     * binary search.
+     * @param removed the removed indexes, in ascending order
+     * @param length the number of removed indexes to consider
+     * @param index the index once the elements have been left out
+     */
+    private static int indexInElements(int[] removed, int length, int index) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (removed[middle] - middle <= index) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return index + low;
+    }
+
+    /**
+     * The indexes of a series of removals, each one an index in the set as
+     * it was before that removal. Removals made from the last removal of the
+     * series append to it; removals made from an earlier one copy the part
+     * of the log they share.
+     */
+    private static final class RemovalLog {
+
+        private int[] indexes = new int[4];
+
+        private int size;
+
+        /**
+         * Returns the log with the index appended after the first entries.
+         * @param count the number of entries to keep
+         * @param index the index to append
+         * @return this log when the index could be appended to it, or a copy
+         * of its first entries followed by the index
+         */
+        synchronized RemovalLog append(int count, int index) {
+            RemovalLog log = this;
+            if (count != size) {
+                log = new RemovalLog();
+                log.indexes = Arrays.copyOf(indexes, Math.max(4, count * 2));
+                log.size = count;
+            } else if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+            }
+            log.indexes[count] = index;
+            log.size = count + 1;
+            return log;
+        }
+
+        /**
+         * Works out which elements the first entries of the log leave out.
+         * <p>
+         * A handful of removals are applied one by one. Longer series keep
+         * count of the elements left in a Fenwick tree, finding the element
+         * of each removal in logarithmic time.
+         * </p>
+         * @param count the number of entries to apply
+         * @param total the number of elements before the removals
+         * @return the indexes of the elements left out, in ascending order
+         */
+        synchronized int[] resolve(int count, int total) {
+            int[] removed = new int[count];
+            if ((long) count * count <= total) {
+                for (int entry = 0; entry < count; ++entry) {
+                    int index = indexInElements(removed, entry, indexes[entry]);
+                    int position = entry;
+                    while (position > 0 && removed[position - 1] > index) {
+                        removed[position] = removed[position - 1];
+                        --position;
+                    }
+                    removed[position] = index;
+                }
+                return removed;
+            }
+            // tree[i] counts the elements left among a range ending at i - 1
+            int[] tree = new int[total + 1];
+            for (int node = 1; node <= total; ++node) {
+                tree[node] += 1;
+                int parent = node + (node & -node);
+                if (parent <= total) {
+                    tree[parent] += tree[node];
+                }
+            }
+            int highestStep = Integer.highestOneBit(total);
+            for (int entry = 0; entry < count; ++entry) {
+                // Find the last position before which at most the index
+                // elements are left: the element at that position is the one
+                int position = 0;
+                int remaining = indexes[entry];
+                for (int step = highestStep; step > 0; step >>>= 1) {
+                    int next = position + step;
+                    if (next <= total && tree[next] <= remaining) {
+                        position = next;
+                        remaining -= tree[next];
+                    }
+                }
+                removed[entry] = position;
+                for (int node = position + 1; node <= total; node += node & -node) {
+                    --tree[node];
+                }
+            }
+            Arrays.sort(removed);
+            return removed;
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+
+/**
+ * Condition an element has to meet to be retained, used to apply filters
+ * while traversing instead of on the result of the traversal.
+ */
+interface DojFilter {
+
+    /**
+     * Checks whether the element should be retained.
+     * @param element the element to check
+     * @return true when the element should be retained
+     */
+    boolean accept(HtmlElement element);
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.DomAttr;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of the elements of a page by tag, class and attribute name.
+ * <p>
+ * Each entry holds the numbers (see {@link DojNodeNumbering}) of the
+ * matching elements in ascending order. Since the descendants of an element
+ * are numbered consecutively, the descendants of the context elements
+ * matching a tag, class or attribute can be found with a binary search
+ * instead of walking the DOM.
+ * </p>
+ * <p>
+ * An index is built on demand for pages on which indexing was enabled with
+ * {@link Doj#indexed()} and is only valid as long as the page doesn't change:
+ * get it through {@link DojPageState#getIndex()}.
+ * </p>
+ */
+final class DojIndex {
+
+    private static final int[] NONE = new int[0];
+
+    private final DojNodeNumbering numbering;
+
+    private final Map<String, int[]> tags;
+
+    private final Map<String, int[]> classes;
+
+    private final Map<String, int[]> attributes;
+
+    DojIndex(DojNodeNumbering numbering) {
+        this.numbering = numbering;
+        Map<String, IntList> tagLists = new HashMap<String, IntList>();
+        Map<String, IntList> classLists = new HashMap<String, IntList>();
+        Map<String, IntList> attributeLists = new HashMap<String, IntList>();
+        for (int index = 0, size = numbering.size(); index < size; ++index) {
+            HtmlElement element = numbering.get(index);
+            add(tagLists, key(element.getTagName()), index);
+            for (DomAttr attribute : element.getAttributesMap().values()) {
+                add(attributeLists, key(attribute.getName()), index);
+            }
+            // Only split on spaces, like MatchType.CONTAINED_WITH_WHITESPACE
+            String classValue = element.getAttribute("class");
+            for (int start = 0, length = classValue.length(); start < length; ) {
+                int end = classValue.indexOf(' ', start);
+                end = (end < 0 ? length : end);
+                if (end > start) {
+                    add(classLists, classValue.substring(start, end), index);
+                }
+                start = end + 1;
+            }
+        }
+        tags = toArrays(tagLists);
+        classes = toArrays(classLists);
+        attributes = toArrays(attributeLists);
+    }
+
+    /**
+     * Returns the index of the page of the context elements, if indexing has
+     * been enabled for that page.
+     * @param contextElements the context elements
+     * @return the index or null if there's none
+     */
+    static DojIndex of(HtmlElement[] contextElements) {
+        if (contextElements.length == 0) {
+            return null;
+        }
+        DojPageState state = DojPageState.peek(contextElements[0]);
+        return state == null ? null : state.getIndex();
+    }
+
+    DojNodeNumbering getNumbering() {
+        return numbering;
+    }
+
+    /**
+     * Returns the numbers of the elements with the given tag.
+     */
+    int[] byTag(String tag) {
+        return lookup(tags, key(tag));
+    }
+
+    /**
+     * Returns the numbers of the elements with the given class.
+     */
+    int[] byClass(String htmlClass) {
+        return lookup(classes, htmlClass);
+    }
+
+    /**
+     * Returns the numbers of the elements that have the given attribute.
+     */
+    int[] byAttribute(String attribute) {
+        return lookup(attributes, key(attribute));
+    }
+
+    /**
+     * Returns the numbers of the elements that could match the attribute
+     * selector - the match itself still has to be verified.
+     */
+    int[] candidates(String attribute, MatchType matchType, String value) {
+        if (matchType == MatchType.CONTAINED_WITH_WHITESPACE && "class".equalsIgnoreCase(attribute)
+                && value != null && value.length() > 0 && value.indexOf(' ') < 0) {
+            return byClass(value);
+        }
+        return byAttribute(attribute);
+    }
+
+    /**
+     * Returns the numbers of the elements that could match the compound
+     * selector, picking the shortest list - the match itself still has to be
+     * verified.
+     * @param compound the simple selectors making up the compound selector
+     * @return the candidate numbers or null if the index can't help
+     */
+    int[] candidates(DojCssSelector[] compound) {
+        int[] best = null;
+        for (DojCssSelector selector : compound) {
+            int[] numbers;
+            switch (selector.getType()) {
+                case ELEMENT:
+                    numbers = byTag(selector.getValue());
+                    break;
+                case HTML_CLASS:
+                    numbers = byClass(selector.getValue());
+                    break;
+                case ID:
+                    numbers = byAttribute("id");
+                    break;
+                case ATTRIBUTE:
+                    numbers = candidates(selector.getAttribute(), selector.getMatchType(), selector.getValue());
+                    break;
+                default:
+                    numbers = null;
+            }
+            if (numbers != null && (best == null || numbers.length < best.length)) {
+                best = numbers;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the elements with the given numbers that are descendants of the
+     * context elements, in the same order as walking the subtrees of the
+     * context elements one after the other would produce them.
+     * @param contextElements the context elements
+     * @param numbers the numbers of the elements to consider, in ascending order
+     * @return the unique elements or null if not all context elements are
+     * part of the numbering of this index
+     */
+    List<HtmlElement> descendants(HtmlElement[] contextElements, int[] numbers) {
+        DojElements elements = descendantElements(contextElements, numbers);
+        return elements == null ? null : elements.asList();
+    }
+
+    /**
+     * Does the same as {@link #descendants(HtmlElement[], int[])}, but returns
+     * an element set backed by the numbering. For a single context element,
+     * it shares the given numbers.
+     */
+    DojElements descendantElements(HtmlElement[] contextElements, int[] numbers) {
+        int[] contextNumbers = new int[contextElements.length];
+        for (int index = 0; index < contextElements.length; ++index) {
+            contextNumbers[index] = numbering.indexOf(contextElements[index]);
+            if (contextNumbers[index] < 0) {
+                return null;
+            }
+        }
+        if (contextNumbers.length == 1) {
+            int contextNumber = contextNumbers[0];
+            int from = firstAtOrAfter(numbers, contextNumber + 1);
+            int to = firstAtOrAfter(numbers, numbering.end(contextNumber) + 1);
+            return DojElements.numbered(numbering, numbers, from, to);
+        }
+        int[] result = new int[Math.min(numbers.length, 16)];
+        int size = 0;
+        BitSet added = new BitSet(numbering.size());
+        for (int contextNumber : contextNumbers) {
+            int from = firstAtOrAfter(numbers, contextNumber + 1);
+            int last = numbering.end(contextNumber);
+            for (int position = from; position < numbers.length && numbers[position] <= last; ++position) {
+                int number = numbers[position];
+                if (!added.get(number)) {
+                    added.set(number);
+                    if (size == result.length) {
+                        result = Arrays.copyOf(result, Math.min(numbers.length, size * 2));
+                    }
+                    result[size++] = number;
+                }
+            }
+        }
+        return DojElements.numbered(numbering, result, 0, size);
+    }
+
+    /**
+     * Returns how many of the numbers are those of descendants of the
+     * element with the given number.
+     * @param contextNumber the number of the element
+     * @param numbers the numbers, in ascending order
+     * @return the number of descendants among the numbers
+     */
+    int countDescendants(int contextNumber, int[] numbers) {
+        return firstAtOrAfter(numbers, numbering.end(contextNumber) + 1) - firstAtOrAfter(numbers, contextNumber + 1);
+    }
+
+    private static int firstAtOrAfter(int[] numbers, int number) {
+        int position = Arrays.binarySearch(numbers, number);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static int[] lookup(Map<String, int[]> map, String key) {
+        int[] numbers = map.get(key);
+        return numbers == null ? NONE : numbers;
+    }
+
+    private static void add(Map<String, IntList> map, String key, int number) {
+        IntList list = map.get(key);
+        if (list == null) {
+            list = new IntList();
+            map.put(key, list);
+        }
+        list.add(number);
+    }
+
+    private static Map<String, int[]> toArrays(Map<String, IntList> lists) {
+        Map<String, int[]> arrays = new HashMap<String, int[]>(lists.size() * 2);
+        for (Map.Entry<String, IntList> entry : lists.entrySet()) {
+            arrays.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return arrays;
+    }
+
+    /**
+     * Growable list of primitive ints.
+     */
+    private static final class IntList {
+
+        private int[] values = new int[4];
+
+        private int size;
+
+        void add(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                // Numbers are added in ascending order, so this is a duplicate
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
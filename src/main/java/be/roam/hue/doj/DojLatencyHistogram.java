@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Counts latencies in a histogram with logarithmic buckets, each split in
+ * {@value #SUB_BUCKET_COUNT} linear ones - as HDR histograms do: a
+ * percentile is at most about 3% higher than the actual latency, whatever
+ * its magnitude, in a fixed amount of memory.
+ * <p>
+ * Recording doesn't take a lock. Percentiles are computed from a snapshot
+ * of the buckets, which may miss the latencies recorded meanwhile.
+ * </p>
+ */
+final class DojLatencyHistogram {
+
+    /**
+     * Number of linear buckets per power of two.
+     */
+    static final int SUB_BUCKET_COUNT = 32;
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * Number of buckets needed for any non-negative long.
+     */
+    private static final int BUCKET_COUNT = bucketOf(Long.MAX_VALUE) + 1;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final LongAccumulator maximum = new LongAccumulator(MAX, 0L);
+
+    /**
+     * Counts a latency.
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        maximum.accumulate(nanos);
+        counts.incrementAndGet(bucketOf(nanos));
+    }
+
+    /**
+     * Returns the latency below which the given percentage of the recorded
+     * latencies are, rounded up to the highest value of its bucket.
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in nanoseconds or 0 if none were recorded
+     */
+    long getPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("The percentile should be between 0 and 100, not " + percentile);
+        }
+        long[] snapshot = new long[counts.length()];
+        long total = 0L;
+        for (int bucket = 0; bucket < snapshot.length; ++bucket) {
+            snapshot[bucket] = counts.get(bucket);
+            total += snapshot[bucket];
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0L;
+        for (int bucket = 0; bucket < snapshot.length; ++bucket) {
+            seen += snapshot[bucket];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(bucket), getMaximum());
+            }
+        }
+        return getMaximum();
+    }
+
+    /**
+     * @return the highest latency recorded, in nanoseconds
+     */
+    long getMaximum() {
+        return maximum.get();
+    }
+
+    /**
+     * Returns the bucket the value is counted in: values below twice the
+     * number of sub-buckets have a bucket of their own, every next power of
+     * two is split in {@value #SUB_BUCKET_COUNT} buckets.
+     */
+    static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) Math.max(0, value);
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the highest value counted in the bucket.
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < 2 * SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long top = bucket % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        // Overflows to Long.MAX_VALUE for the very last bucket
+        return ((top + 1) << shift) - 1;
+    }
+
+}
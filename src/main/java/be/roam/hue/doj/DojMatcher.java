@@ -0,0 +1,282 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import org.apache.commons.lang3.StringUtils;
+import org.w3c.dom.Node;
+
+import java.util.Locale;
+
+/**
+ * Matcher for a compound selector, compiled once per {@link CompiledSelector}.
+ * <p>
+ * Instead of switching on the {@link DojCssSelector.Type} of every simple
+ * selector for every element, each simple selector becomes a small object
+ * that checks exactly one thing, and the simple selectors of a compound
+ * selector are chained in a tree of {@link And} matchers. The matchers are
+ * small final classes without branches on the selector type, which the JIT
+ * can inline wherever a call site sees only one or two of them - as is the
+ * case when the same selector is used over and over again.
+ * </p>
+ * <p>
+ * The matchers give the same results as interpreting the simple selectors
+ * one by one, which is what DojMatcherTest verifies them against.
+ * </p>
+ */
+abstract class DojMatcher {
+
+    /**
+     * Matches any element - the matcher for an empty compound selector.
+     */
+    static final DojMatcher ANY = new Any();
+
+    private static final DojMatcher NONE = new None();
+
+    /**
+     * Checks whether the element matches.
+     * @param element the element to check
+     * @return true when the element matches
+     */
+    abstract boolean matches(HtmlElement element);
+
+    /**
+     * Compiles the simple selectors of the compound selector, starting at the
+     * given offset, into a matcher.
+     * @param compound the simple selectors making up the compound selector
+     * @param offset index of the first simple selector to take into account
+     * @return the matcher
+     */
+    static DojMatcher compile(DojCssSelector[] compound, int offset) {
+        DojMatcher matcher = null;
+        for (int index = compound.length - 1; index >= offset; --index) {
+            DojMatcher simple = compile(compound[index]);
+            if (simple == ANY) {
+                continue;
+            }
+            matcher = (matcher == null ? simple : new And(simple, matcher));
+        }
+        return matcher == null ? ANY : matcher;
+    }
+
+    /**
+     * Compiles a single simple selector.
+     */
+    private static DojMatcher compile(DojCssSelector selector) {
+        switch (selector.getType()) {
+            case ELEMENT:
+                return new Tag(selector.getValue());
+            case HTML_CLASS:
+                return StringUtils.isBlank(selector.getValue()) ? NONE : new HtmlClass(selector.getValue());
+            case ID:
+                return StringUtils.isBlank(selector.getValue()) ? NONE : new Id(selector.getValue());
+            case UNIVERSAL:
+                return ANY;
+            case ATTRIBUTE:
+                if (selector.getMatchType() == MatchType.EXISTING) {
+                    return new AttributeExists(selector.getAttribute());
+                }
+                if (selector.getMatchType() == MatchType.EQUALS) {
+                    return StringUtils.isBlank(selector.getValue()) ? NONE : new AttributeEquals(selector.getAttribute(), selector.getValue());
+                }
+                return new Attribute(selector.getAttribute(), selector.getMatchType(), selector.getValue());
+            case FIRST_CHILD:
+                return new FirstChild();
+            case LAST_CHILD:
+                return new LastChild();
+            case NTH_CHILD:
+                return new NthChild(selector.getStep(), selector.getOffset());
+            default:
+                return NONE;
+        }
+    }
+
+    private static final class Any extends DojMatcher {
+
+        boolean matches(HtmlElement element) {
+            return true;
+        }
+    }
+
+    private static final class None extends DojMatcher {
+
+        boolean matches(HtmlElement element) {
+            return false;
+        }
+    }
+
+    /**
+     * Matches when both matchers match.
+     */
+    private static final class And extends DojMatcher {
+
+        private final DojMatcher first;
+
+        private final DojMatcher second;
+
+        And(DojMatcher first, DojMatcher second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        boolean matches(HtmlElement element) {
+            return first.matches(element) && second.matches(element);
+        }
+    }
+
+    private static final class Tag extends DojMatcher {
+
+        private final String tag;
+
+        Tag(String tag) {
+            this.tag = tag.toLowerCase(Locale.ENGLISH);
+        }
+
+        boolean matches(HtmlElement element) {
+            String tagName = element.getTagName();
+            // HtmlUnit lower cases the tag names of HTML elements
+            return tag.equals(tagName) || tag.equalsIgnoreCase(tagName);
+        }
+    }
+
+    private static final class HtmlClass extends DojMatcher {
+
+        private final String htmlClass;
+
+        HtmlClass(String htmlClass) {
+            this.htmlClass = htmlClass;
+        }
+
+        boolean matches(HtmlElement element) {
+            return MatchType.CONTAINED_WITH_WHITESPACE.isMatch(element.getAttribute("class"), htmlClass);
+        }
+    }
+
+    /**
+     * Matches the id - which isn't blank, so neither is an equal value.
+     */
+    private static final class Id extends DojMatcher {
+
+        private final String id;
+
+        Id(String id) {
+            this.id = id;
+        }
+
+        boolean matches(HtmlElement element) {
+            return id.equals(element.getAttribute("id"));
+        }
+    }
+
+    private static final class AttributeExists extends DojMatcher {
+
+        private final String attribute;
+
+        AttributeExists(String attribute) {
+            this.attribute = attribute;
+        }
+
+        boolean matches(HtmlElement element) {
+            return !StringUtils.isBlank(element.getAttribute(attribute));
+        }
+    }
+
+    /**
+     * Matches the value - which isn't blank, so neither is an equal value.
+     */
+    private static final class AttributeEquals extends DojMatcher {
+
+        private final String attribute;
+
+        private final String value;
+
+        AttributeEquals(String attribute, String value) {
+            this.attribute = attribute;
+            this.value = value;
+        }
+
+        boolean matches(HtmlElement element) {
+            return value.equals(element.getAttribute(attribute));
+        }
+    }
+
+    private static final class Attribute extends DojMatcher {
+
+        private final String attribute;
+
+        private final MatchType matchType;
+
+        private final String value;
+
+        Attribute(String attribute, MatchType matchType, String value) {
+            this.attribute = attribute;
+            this.matchType = matchType;
+            this.value = value;
+        }
+
+        boolean matches(HtmlElement element) {
+            return matchType.isMatch(element.getAttribute(attribute), value);
+        }
+    }
+
+    private static final class FirstChild extends DojMatcher {
+
+        boolean matches(HtmlElement element) {
+            for (DomNode sibling = element.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+                if (sibling.getNodeType() == Node.ELEMENT_NODE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class LastChild extends DojMatcher {
+
+        boolean matches(HtmlElement element) {
+            for (DomNode sibling = element.getNextSibling(); sibling != null; sibling = sibling.getNextSibling()) {
+                if (sibling.getNodeType() == Node.ELEMENT_NODE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class NthChild extends DojMatcher {
+
+        private final int step;
+
+        private final int offset;
+
+        NthChild(int step, int offset) {
+            this.step = step;
+            this.offset = offset;
+        }
+
+        boolean matches(HtmlElement element) {
+            int position = 1;
+            for (DomNode sibling = element.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+                if (sibling.getNodeType() == Node.ELEMENT_NODE) {
+                    ++position;
+                }
+            }
+            return DojSelectorEngine.isNth(position, step, offset);
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+/**
+ * Receives a report of every traversal and filter executed on a non-empty
+ * Doj: which operation, with which selector, on how many context elements,
+ * how many elements it visited, how many it returned and how long it took.
+ * <pre><code>
+ * DojMetricsRecorder recorder = new DojMetricsRecorder();
+ * DojMetrics.install(recorder);
+ * ...
+ * System.out.println(recorder);
+ * </code></pre>
+ * <p>
+ * The metrics are installed globally. By default, {@link #NONE} is: as long
+ * as it is, an operation only pays for reading a static field and a branch
+ * that's never taken - the clock isn't read and nothing is reported.
+ * </p>
+ * <p>
+ * Implementations are called from whatever thread executes the operation,
+ * so they should be thread-safe - and cheap. {@link DojMetricsRecorder} is
+ * the built-in implementation.
+ * </p>
+ */
+public abstract class DojMetrics {
+
+    /**
+     * Metrics that ignore every report - installed by default.
+     */
+    public static final DojMetrics NONE = new DojMetrics() {
+
+        @Override
+        public void record(String operation, String selector, int contextSize, int visited, int resultSize, long nanos) {
+        }
+    };
+
+    private static volatile DojMetrics installed = NONE;
+
+    /**
+     * Installs the metrics every subsequent operation reports to.
+     * @param metrics the metrics or null to stop reporting
+     */
+    public static void install(DojMetrics metrics) {
+        installed = (metrics == null ? NONE : metrics);
+    }
+
+    /**
+     * Returns the installed metrics.
+     * @return the installed metrics, {@link #NONE} when none were installed
+     */
+    public static DojMetrics installed() {
+        return installed;
+    }
+
+    /**
+     * Returns the metrics to report to or null when reports are ignored.
+     */
+    static DojMetrics active() {
+        DojMetrics metrics = installed;
+        return metrics == NONE ? null : metrics;
+    }
+
+    /**
+     * Reports an operation.
+     * @param operation the name of the operation - the name of the Doj
+     * method, like <code>get</code> or <code>withTextMatching</code>
+     * @param selector the selector, tag, attribute or pattern the operation
+     * was called with or null if it has none
+     * @param contextSize the number of context elements
+     * @param visited the number of elements the operation examined: the
+     * elements walked or taken from the index by traversals, the context
+     * elements by filters
+     * @param resultSize the number of elements in the result
+     * @param nanos the time the operation took, in nanoseconds
+     */
+    public abstract void record(String operation, String selector, int contextSize, int visited, int resultSize, long nanos);
+
+}
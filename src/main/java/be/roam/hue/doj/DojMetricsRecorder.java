@@ -0,0 +1,201 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link DojMetrics} that aggregate the reports by operation, with little
+ * overhead and without locking.
+ * <p>
+ * The counters are {@link LongAdder}s, which are striped when threads
+ * contend. The latencies are counted in a histogram with logarithmic
+ * buckets, each split in linear ones - as HDR histograms do: a percentile
+ * is at most about 3% higher than the actual latency, whatever its
+ * magnitude, in a fixed amount of memory per operation.
+ * </p>
+ * <p>
+ * The selectors are not taken into account: there can be any number of
+ * them.
+ * </p>
+ */
+public final class DojMetricsRecorder extends DojMetrics {
+
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+    @Override
+    public void record(String operation, String selector, int contextSize, int visited, int resultSize, long nanos) {
+        Operation recorded = operations.get(operation);
+        if (recorded == null) {
+            Operation created = new Operation(operation);
+            recorded = operations.putIfAbsent(operation, created);
+            if (recorded == null) {
+                recorded = created;
+            }
+        }
+        recorded.record(contextSize, visited, resultSize, nanos);
+    }
+
+    /**
+     * Returns the metrics of an operation.
+     * @param operation the name of the operation
+     * @return the metrics or null when the operation wasn't reported
+     */
+    public Operation getOperation(String operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * Returns the metrics of all operations reported so far.
+     * @return the metrics by the name of the operation, sorted by name
+     */
+    public Map<String, Operation> getOperations() {
+        return new TreeMap<String, Operation>(operations);
+    }
+
+    /**
+     * Forgets everything reported so far.
+     */
+    public void reset() {
+        operations.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Operation operation : getOperations().values()) {
+            builder.append(operation).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The metrics of a single operation.
+     */
+    public static final class Operation {
+
+        private final String name;
+
+        private final LongAdder calls = new LongAdder();
+
+        private final LongAdder contextElements = new LongAdder();
+
+        private final LongAdder visited = new LongAdder();
+
+        private final LongAdder results = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final DojLatencyHistogram latencies = new DojLatencyHistogram();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void record(int contextSize, int visitedElements, int resultSize, long nanos) {
+            calls.increment();
+            contextElements.add(contextSize);
+            visited.add(visitedElements);
+            results.add(resultSize);
+            totalNanos.add(nanos);
+            latencies.record(nanos);
+        }
+
+        /**
+         * @return the name of the operation
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of times the operation was executed
+         */
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        /**
+         * @return the total number of context elements
+         */
+        public long getContextElements() {
+            return contextElements.sum();
+        }
+
+        /**
+         * @return the total number of elements visited
+         */
+        public long getVisited() {
+            return visited.sum();
+        }
+
+        /**
+         * @return the total number of elements returned
+         */
+        public long getResults() {
+            return results.sum();
+        }
+
+        /**
+         * @return the total time spent, in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /**
+         * @return the mean latency in nanoseconds
+         */
+        public long getMeanLatencyNanos() {
+            long count = getCalls();
+            return count == 0 ? 0L : getTotalNanos() / count;
+        }
+
+        /**
+         * Returns the latency below which the given percentage of the
+         * executions completed, rounded up to the highest value of its
+         * histogram bucket.
+         * @param percentile the percentile, between 0 and 100
+         * @return the latency in nanoseconds
+         */
+        public long getLatencyPercentileNanos(double percentile) {
+            return latencies.getPercentile(percentile);
+        }
+
+        /**
+         * @return the highest latency in nanoseconds
+         */
+        public long getMaximumLatencyNanos() {
+            return latencies.getMaximum();
+        }
+
+        @Override
+        public String toString() {
+            long count = getCalls();
+            return name + ": " + count + " calls, " + getVisited() + " visited, " + getResults() + " results, "
+                    + TimeUnit.NANOSECONDS.toMillis(getTotalNanos()) + " ms, latency mean "
+                    + TimeUnit.NANOSECONDS.toMicros(getMeanLatencyNanos()) + " us, p99 "
+                    + TimeUnit.NANOSECONDS.toMicros(getLatencyPercentileNanos(99.0)) + " us, max "
+                    + TimeUnit.NANOSECONDS.toMicros(getMaximumLatencyNanos()) + " us";
+        }
+    }
+
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Node;
+
+/**
+ * Snapshot of the elements of a page, numbered in document (pre-)order.
+ * <p>
+ * Only elements reachable from the document element through other
+ * {@link HtmlElement}s are numbered - these are the elements Doj can find
+ * when traversing the DOM. A numbering is only valid as long as the DOM
+ * doesn't change: get it through {@link DojPageState#getNumbering()}.
+ * </p>
+ * <p>
+ * Next to its parent, the numbering keeps the number of the last descendant
+ * of each element: the descendants of an element are numbered consecutively,
+ * so this interval answers the ancestor and subtree queries a post-order
+ * number or depth would be needed for otherwise.
+ * </p>
+ */
+final class DojNodeNumbering {
+
+    /**
+     * The number of elements up to which sorting compares the elements with
+     * each other instead of numbering their page - unless the page has a
+     * state already. Numbering takes time linear to the size of the page and
+     * keeps listening to its changes, which a handful of elements isn't
+     * worth.
+     */
+    static final int NUMBERING_THRESHOLD = 64;
+
+    private final HtmlElement[] elements;
+
+    private final Map<HtmlElement, Integer> indices;
+
+    private final int[] parents;
+
+    private final int[] ends;
+
+    DojNodeNumbering(HtmlPage page) {
+        List<HtmlElement> list = new ArrayList<HtmlElement>();
+        HtmlElement root = page.getDocumentElement();
+        for (HtmlElement element = root; element != null; element = DojSelectorEngine.nextElement(element, root, true)) {
+            list.add(element);
+        }
+        elements = list.toArray(new HtmlElement[list.size()]);
+        indices = new IdentityHashMap<HtmlElement, Integer>(elements.length);
+        for (int index = 0; index < elements.length; ++index) {
+            indices.put(elements[index], index);
+        }
+        parents = new int[elements.length];
+        ends = new int[elements.length];
+        for (int index = 0; index < elements.length; ++index) {
+            parents[index] = (index == 0 ? -1 : indices.get((HtmlElement) elements[index].getParentNode()));
+            ends[index] = index;
+        }
+        for (int index = elements.length - 1; index > 0; --index) {
+            int parent = parents[index];
+            if (ends[index] > ends[parent]) {
+                ends[parent] = ends[index];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of numbered elements.
+     * @return the number of numbered elements
+     */
+    int size() {
+        return elements.length;
+    }
+
+    /**
+     * Returns the element with the given number.
+     * @param index the number of the element
+     * @return the element with the given number
+     */
+    HtmlElement get(int index) {
+        return elements[index];
+    }
+
+    /**
+     * Returns the number of the element.
+     * @param element the element
+     * @return the number of the element or -1 if it's not part of the numbering
+     */
+    int indexOf(HtmlElement element) {
+        Integer index = indices.get(element);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the number of the parent of the element with the given number.
+     * @param index the number of the element
+     * @return the number of the parent or -1 for the document element
+     */
+    int parent(int index) {
+        return parents[index];
+    }
+
+    /**
+     * Returns the number of the last descendant of the element with the given
+     * number: the descendants of an element are numbered
+     * <code>index + 1</code> up to and including <code>end(index)</code>.
+     * @param index the number of the element
+     * @return the number of the last descendant, or the number of the element
+     * itself when it has no descendants
+     */
+    int end(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Checks whether the element with the first number is an ancestor of the
+     * element with the second one: the numbers of the descendants of an
+     * element form an interval, so this takes constant time.
+     * @param ancestor the number of the possible ancestor
+     * @param descendant the number of the possible descendant
+     * @return true when the first element is an ancestor of the second one
+     */
+    boolean isAncestor(int ancestor, int descendant) {
+        return ancestor < descendant && descendant <= ends[ancestor];
+    }
+
+    /**
+     * Returns a comparator that orders elements by their position in the
+     * document. It's meant for all traversal code that needs to order a
+     * handful of elements without going through a bitset of their numbers.
+     * <p>
+     * Numbered elements are compared by their numbers and come before the
+     * elements that aren't numbered - they don't belong to the page or aren't
+     * attached to it. Those are grouped by the root of their tree - another
+     * page or a detached subtree - and the trees are ordered by the identity
+     * hash codes of their roots. Within a tree, the elements are compared
+     * with {@link Node#compareDocumentPosition(org.w3c.dom.Node)}, which
+     * walks their ancestors.
+     * </p>
+     * <p>
+     * Trees whose roots have the same identity hash code are ordered as the
+     * comparator first sees them, so it's a total order - but one comparator
+     * shouldn't be shared by concurrent sorts.
+     * </p>
+     * @return the comparator
+     */
+    Comparator<HtmlElement> documentOrder() {
+        return new Comparator<HtmlElement>() {
+
+            /**
+             * The roots of the trees with the same identity hash code as
+             * another one, in the order in which they were first compared.
+             */
+            private final Map<DomNode, Integer> roots = new IdentityHashMap<DomNode, Integer>();
+
+            public int compare(HtmlElement first, HtmlElement second) {
+                return DojNodeNumbering.this.compare(first, second, roots);
+            }
+        };
+    }
+
+    /**
+     * Does the comparing for {@link #documentOrder()}.
+     * @param roots the order of the roots with the same identity hash code
+     * so far
+     */
+    private int compare(HtmlElement first, HtmlElement second, Map<DomNode, Integer> roots) {
+        if (first == second) {
+            return 0;
+        }
+        int firstNumber = indexOf(first);
+        int secondNumber = indexOf(second);
+        if (firstNumber >= 0 || secondNumber >= 0) {
+            return secondNumber < 0 || (firstNumber >= 0 && firstNumber < secondNumber) ? -1 : 1;
+        }
+        return compareTrees(first, second, roots);
+    }
+
+    /**
+     * Compares two elements without a numbering: the elements attached to a
+     * page come first, the other trees are ordered as by
+     * {@link #documentOrder()}.
+     */
+    private static int compareTrees(HtmlElement first, HtmlElement second, Map<DomNode, Integer> roots) {
+        if (first == second) {
+            return 0;
+        }
+        DomNode firstRoot = root(first);
+        DomNode secondRoot = root(second);
+        if (firstRoot == secondRoot) {
+            return compareDocumentPosition(first, second);
+        }
+        boolean firstAttached = (firstRoot instanceof HtmlPage);
+        if (firstAttached != (secondRoot instanceof HtmlPage)) {
+            return firstAttached ? -1 : 1;
+        }
+        int comparison = Integer.compare(System.identityHashCode(firstRoot), System.identityHashCode(secondRoot));
+        if (comparison != 0) {
+            return comparison;
+        }
+        return Integer.compare(orderOf(firstRoot, roots), orderOf(secondRoot, roots));
+    }
+
+    private static int orderOf(DomNode root, Map<DomNode, Integer> roots) {
+        Integer order = roots.get(root);
+        if (order == null) {
+            order = roots.size();
+            roots.put(root, order);
+        }
+        return order;
+    }
+
+    private static DomNode root(DomNode node) {
+        DomNode root = node;
+        for (DomNode parent = node.getParentNode(); parent != null; parent = parent.getParentNode()) {
+            root = parent;
+        }
+        return root;
+    }
+
+    /**
+     * Returns the state of the page of the element when sorting the given
+     * number of its elements should use the numbering of the page, see
+     * {@link #NUMBERING_THRESHOLD}.
+     * @param element an element of the page
+     * @param size the number of elements to sort
+     * @return the state of the page or null to compare the elements with
+     * each other
+     */
+    static DojPageState numberedState(HtmlElement element, int size) {
+        return size > NUMBERING_THRESHOLD ? DojPageState.of(element) : DojPageState.peek(element);
+    }
+
+    /**
+     * Returns the unique elements, sorted in document order.
+     * <p>
+     * Runs in time linear to the number of elements and the size of the page,
+     * or compares the elements with each other when there are only a few of
+     * them, see {@link #NUMBERING_THRESHOLD}.
+     * When the elements do not all belong to the same page, the elements of
+     * each page are sorted and kept together, the pages in the order in which
+     * their first element appears.
+     * </p>
+     * @param elements the elements to sort
+     * @return the unique elements in document order
+     */
+    static HtmlElement[] inDocumentOrder(HtmlElement[] elements) {
+        return sortedElements(elements).asArray();
+    }
+
+    /**
+     * Does the same as {@link #inDocumentOrder(HtmlElement[])}, but returns
+     * an element set, which is backed by the numbering of the page when the
+     * elements could be sorted.
+     */
+    static DojElements sortedElements(HtmlElement[] elements) {
+        if (elements.length == 0) {
+            return DojElements.of(elements);
+        }
+        DojPageState state = numberedState(elements[0], elements.length);
+        if (state != null) {
+            DojNodeNumbering numbering = state.getNumbering();
+            BitSet numbers = DojElements.of(elements).numbers(numbering);
+            if (numbers != null) {
+                return DojElements.numbered(numbering, numbers);
+            }
+        }
+        return DojElements.of(sorted(elements));
+    }
+
+    /**
+     * Sorts the elements that can't be sorted as a bitset of their numbers,
+     * comparing the elements of each page with
+     * {@link #documentOrder()} - or with each other, when
+     * numbering the page isn't worth it.
+     */
+    private static HtmlElement[] sorted(HtmlElement[] elements) {
+        Map<Object, List<HtmlElement>> pages = new LinkedHashMap<Object, List<HtmlElement>>();
+        Map<HtmlElement, Boolean> retained = new IdentityHashMap<HtmlElement, Boolean>(elements.length);
+        for (HtmlElement element : elements) {
+            if (retained.put(element, Boolean.TRUE) != null) {
+                continue;
+            }
+            List<HtmlElement> onPage = pages.get(element.getPage());
+            if (onPage == null) {
+                onPage = new ArrayList<HtmlElement>();
+                pages.put(element.getPage(), onPage);
+            }
+            onPage.add(element);
+        }
+        List<HtmlElement> result = new ArrayList<HtmlElement>(retained.size());
+        for (List<HtmlElement> onPage : pages.values()) {
+            if (onPage.size() > 1) {
+                DojPageState state = numberedState(onPage.get(0), onPage.size());
+                Collections.sort(onPage, state == null ? treeOrder() : state.getNumbering().documentOrder());
+            }
+            result.addAll(onPage);
+        }
+        return result.toArray(new HtmlElement[result.size()]);
+    }
+
+    /**
+     * Returns a comparator that orders elements in document order without a
+     * numbering: it walks the ancestors of the elements it compares. Like
+     * the one returned by {@link #documentOrder()}, it's a total order that
+     * shouldn't be shared by concurrent sorts.
+     * @return the comparator
+     */
+    static Comparator<HtmlElement> treeOrder() {
+        return new Comparator<HtmlElement>() {
+
+            private final Map<DomNode, Integer> roots = new IdentityHashMap<DomNode, Integer>();
+
+            public int compare(HtmlElement first, HtmlElement second) {
+                return compareTrees(first, second, roots);
+            }
+        };
+    }
+
+    /**
+     * Returns the element that comes first in document order.
+     * <p>
+     * Meant for a handful of elements: they are compared with each other
+     * instead of building a numbering of the page.
+     * </p>
+     * @param elements the elements to consider
+     * @return the first element in document order or null if there are none
+     */
+    static HtmlElement firstInDocumentOrder(List<HtmlElement> elements) {
+        HtmlElement first = null;
+        for (HtmlElement element : elements) {
+            if (first == null || compareDocumentPosition(element, first) < 0) {
+                first = element;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Compares two different elements by walking their ancestors. Elements
+     * that aren't part of the same tree are considered equal, so this is
+     * only a total order for the elements of a single tree.
+     */
+    private static int compareDocumentPosition(HtmlElement first, HtmlElement second) {
+        short position = first.compareDocumentPosition(second);
+        if ((position & Node.DOCUMENT_POSITION_DISCONNECTED) != 0) {
+            return 0;
+        }
+        return (position & Node.DOCUMENT_POSITION_FOLLOWING) != 0 ? -1 : 1;
+    }
+
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.html.CharacterDataChangeEvent;
+import com.gargoylesoftware.htmlunit.html.CharacterDataChangeListener;
+import com.gargoylesoftware.htmlunit.html.DomChangeEvent;
+import com.gargoylesoftware.htmlunit.html.DomChangeListener;
+import com.gargoylesoftware.htmlunit.html.HtmlAttributeChangeEvent;
+import com.gargoylesoftware.htmlunit.html.HtmlAttributeChangeListener;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlInput;
+import com.gargoylesoftware.htmlunit.html.HtmlOption;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.html.HtmlSelect;
+import com.gargoylesoftware.htmlunit.html.HtmlTextArea;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the data Doj derives from a page, such as the node numbering, the
+ * element index and the text cache.
+ * <p>
+ * There is at most one state per page. It registers itself as a listener on
+ * the page and drops everything it derived as soon as the DOM changes, so
+ * the data is rebuilt - lazily - the next time it's needed.
+ * </p>
+ * <p>
+ * The page keeps its state alive through the listener registration, the
+ * registry only refers to the state weakly: once the page is gone, so is
+ * its state. Looking up the state of a page doesn't take a lock - only
+ * creating one does - since it happens for nearly every traversal, on every
+ * thread.
+ * </p>
+ */
+final class DojPageState implements DomChangeListener, HtmlAttributeChangeListener, CharacterDataChangeListener {
+
+    /**
+     * The listener interfaces are serializable, so the state is serialized
+     * along with its page - without the data derived from it.
+     */
+    private static final long serialVersionUID = 1L;
+
+    private static final ConcurrentMap<PageKey, WeakReference<DojPageState>> STATES = new ConcurrentHashMap<PageKey, WeakReference<DojPageState>>();
+
+    /**
+     * The keys of the pages that have been garbage collected.
+     */
+    private static final ReferenceQueue<HtmlPage> COLLECTED = new ReferenceQueue<HtmlPage>();
+
+    private final HtmlPage page;
+
+    private transient DojNodeNumbering numbering;
+
+    private volatile boolean indexed;
+
+    private transient DojIndex index;
+
+    private volatile boolean textCached;
+
+    /**
+     * The rendered texts by element. Elements compare by identity, the keys
+     * are weak so the texts of elements that are gone don't linger until
+     * the next change. The texts of elements containing form controls
+     * aren't cached, see {@link #containsFormControls(HtmlElement)}.
+     */
+    private transient Map<HtmlElement, String> texts;
+
+    private DojPageState(HtmlPage page) {
+        this.page = page;
+    }
+
+    /**
+     * Returns the state of the given page, creating it when necessary.
+     * @param page the page
+     * @return the state of the page
+     */
+    static DojPageState of(HtmlPage page) {
+        DojPageState state = lookup(page);
+        if (state != null) {
+            return state;
+        }
+        synchronized (STATES) {
+            state = lookup(page);
+            if (state == null) {
+                for (Reference<? extends HtmlPage> collected = COLLECTED.poll(); collected != null; collected = COLLECTED.poll()) {
+                    STATES.remove(collected);
+                }
+                state = new DojPageState(page);
+                page.addDomChangeListener(state);
+                page.addHtmlAttributeChangeListener(state);
+                page.addCharacterDataChangeListener(state);
+                STATES.put(new PageKey(page, COLLECTED), new WeakReference<DojPageState>(state));
+            }
+            return state;
+        }
+    }
+
+    private static DojPageState lookup(HtmlPage page) {
+        WeakReference<DojPageState> reference = STATES.get(new PageKey(page, null));
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * Returns the state of the page of the given element.
+     * @param element the element
+     * @return the state of the page of the element or null if the element
+     * is not part of an HtmlPage
+     */
+    static DojPageState of(HtmlElement element) {
+        Page elementPage = element.getPage();
+        return elementPage instanceof HtmlPage ? of((HtmlPage) elementPage) : null;
+    }
+
+    /**
+     * Returns the state of the page of the given element, but only if it
+     * already exists.
+     * @param element the element
+     * @return the state of the page of the element or null if there's none
+     */
+    static DojPageState peek(HtmlElement element) {
+        Page elementPage = element.getPage();
+        if (!(elementPage instanceof HtmlPage)) {
+            return null;
+        }
+        return lookup((HtmlPage) elementPage);
+    }
+
+    HtmlPage getPage() {
+        return page;
+    }
+
+    /**
+     * Returns the numbering of the elements on the page, building it if
+     * it's missing or no longer valid.
+     * @return the current numbering of the elements on the page
+     */
+    synchronized DojNodeNumbering getNumbering() {
+        if (numbering == null) {
+            numbering = new DojNodeNumbering(page);
+        }
+        return numbering;
+    }
+
+    /**
+     * Enables the element index for the page.
+     */
+    void enableIndex() {
+        indexed = true;
+    }
+
+    /**
+     * Returns the element index of the page, building it if it's missing or
+     * no longer valid.
+     * @return the index or null if indexing wasn't enabled for the page
+     */
+    DojIndex getIndex() {
+        // Most pages are never indexed: don't lock for those
+        if (!indexed) {
+            return null;
+        }
+        synchronized (this) {
+            if (index == null) {
+                index = new DojIndex(getNumbering());
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Enables the text cache for the page.
+     */
+    void enableTextCache() {
+        textCached = true;
+    }
+
+    private String text(HtmlElement element) {
+        if (!textCached) {
+            return element.asText();
+        }
+        Map<HtmlElement, String> cache;
+        synchronized (this) {
+            if (texts == null) {
+                texts = new WeakHashMap<HtmlElement, String>();
+            }
+            cache = texts;
+            String text = cache.get(element);
+            if (text != null) {
+                return text;
+            }
+        }
+        // Render without holding the lock
+        String text = element.asText();
+        if (containsFormControls(element)) {
+            return text;
+        }
+        synchronized (this) {
+            // Unless the cache was dropped in the meantime
+            if (texts == cache) {
+                cache.put(element, text);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Checks whether the element is or contains a form control. The text of
+     * a form control depends on its checked or selected state and its value,
+     * which change without a change event - setting the checked state of a
+     * checkbox doesn't touch its checked attribute, for instance.
+     */
+    private static boolean containsFormControls(HtmlElement element) {
+        for (HtmlElement descendant = element; descendant != null; descendant = DojSelectorEngine.nextElement(descendant, element, true)) {
+            if (descendant instanceof HtmlInput || descendant instanceof HtmlSelect
+                    || descendant instanceof HtmlOption || descendant instanceof HtmlTextArea) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void nodeAdded(DomChangeEvent event) {
+        invalidate();
+    }
+
+    public void nodeDeleted(DomChangeEvent event) {
+        invalidate();
+    }
+
+    public void attributeAdded(HtmlAttributeChangeEvent event) {
+        invalidateAttributes();
+    }
+
+    public void attributeRemoved(HtmlAttributeChangeEvent event) {
+        invalidateAttributes();
+    }
+
+    public void attributeReplaced(HtmlAttributeChangeEvent event) {
+        invalidateAttributes();
+    }
+
+    public void characterDataChanged(CharacterDataChangeEvent event) {
+        invalidateTexts();
+    }
+
+    private synchronized void invalidate() {
+        numbering = null;
+        index = null;
+        texts = null;
+    }
+
+    private synchronized void invalidateAttributes() {
+        index = null;
+        texts = null;
+    }
+
+    private synchronized void invalidateTexts() {
+        texts = null;
+    }
+
+    /**
+     * Renders the texts of elements for a single operation, like
+     * {@link HtmlElement#asText()}, taking them from the text cache of their
+     * page when it's enabled. The state of a page is only looked up again
+     * when the page changes from one element to the next.
+     * <p>
+     * Filters of lazy traversals share an instance between threads: at
+     * worst, the state is looked up once more.
+     * </p>
+     */
+    static final class Texts {
+
+        private DojPageState state;
+
+        /**
+         * Returns the text of the element.
+         * @param element the element
+         * @return the text of the element
+         */
+        String asText(HtmlElement element) {
+            Page page = element.getPage();
+            DojPageState current = state;
+            if (current == null || current.page != page) {
+                current = (page instanceof HtmlPage ? lookup((HtmlPage) page) : null);
+                if (current == null) {
+                    return element.asText();
+                }
+                state = current;
+            }
+            return current.text(element);
+        }
+    }
+
+    /**
+     * Refers to a page weakly, comparing pages by identity like HtmlUnit's
+     * nodes do.
+     */
+    private static final class PageKey extends WeakReference<HtmlPage> {
+
+        private final int hash;
+
+        PageKey(HtmlPage page, ReferenceQueue<HtmlPage> queue) {
+            super(page, queue);
+            this.hash = System.identityHashCode(page);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (object == this) {
+                return true;
+            }
+            if (!(object instanceof PageKey)) {
+                return false;
+            }
+            HtmlPage page = get();
+            return page != null && page == ((PageKey) object).get();
+        }
+    }
+
+}
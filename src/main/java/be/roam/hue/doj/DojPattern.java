@@ -0,0 +1,316 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.regex.Pattern;
+
+/**
+ * A regular expression matched against entire texts and attribute values,
+ * together with the literal text every match has to contain.
+ * <p>
+ * The literals are extracted from the expression: the longest run of plain
+ * characters outside of groups and character classes, and the run the
+ * expression starts with. A text that doesn't start with the latter or
+ * doesn't contain the former is rejected without running the regex engine;
+ * an expression that's nothing but plain characters is compared with
+ * {@link String#equals(java.lang.Object)}.
+ * </p>
+ * <p>
+ * The extraction is conservative: expressions with flags, alternations,
+ * special groups or escapes it doesn't know are always matched by the regex
+ * engine.
+ * </p>
+ */
+final class DojPattern {
+
+    /**
+     * Maximum number of patterns kept by the shared cache.
+     */
+    static final int CACHE_SIZE = 256;
+
+    private static final DojCache<String, DojPattern> CACHE = new DojCache<String, DojPattern>(CACHE_SIZE);
+
+    private final Pattern pattern;
+
+    private final String prefix;
+
+    private final String literal;
+
+    private final boolean exact;
+
+    private DojPattern(Pattern pattern) {
+        this.pattern = pattern;
+        Literals literals = (isAnalyzable(pattern) ? new Literals(pattern.pattern()) : null);
+        this.prefix = (literals == null ? "" : literals.prefix);
+        this.literal = (literals == null ? "" : literals.longest);
+        this.exact = (literals != null && literals.exact);
+    }
+
+    /**
+     * Compiles the expression, reusing the result of a previous compilation
+     * of the same expression when possible.
+     * @param regex the expression
+     * @return the compiled pattern
+     * @throws java.util.regex.PatternSyntaxException when the expression is
+     * invalid
+     */
+    static DojPattern compileCached(String regex) {
+        DojPattern compiled = CACHE.get(regex);
+        if (compiled == null) {
+            compiled = new DojPattern(Pattern.compile(regex));
+            CACHE.put(regex, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Wraps an already compiled pattern.
+     * @param pattern the pattern
+     * @return the wrapped pattern
+     */
+    static DojPattern of(Pattern pattern) {
+        return new DojPattern(pattern);
+    }
+
+    /**
+     * Returns the cache used by {@link #compileCached(java.lang.String)}.
+     * @return the shared pattern cache
+     */
+    static DojCache<String, DojPattern> getCache() {
+        return CACHE;
+    }
+
+    /**
+     * Checks whether the entire text matches the pattern - like
+     * <code>pattern.matcher(text).matches()</code>.
+     * @param text the text to match
+     * @return true when the text matches
+     */
+    boolean matches(String text) {
+        if (exact) {
+            return literal.equals(text);
+        }
+        if (!text.startsWith(prefix) || (literal.length() > prefix.length() && !text.contains(literal))) {
+            return false;
+        }
+        return pattern.matcher(text).matches();
+    }
+
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the text every match starts with.
+     */
+    String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the longest text every match contains.
+     */
+    String getLiteral() {
+        return literal;
+    }
+
+    private static boolean isAnalyzable(Pattern pattern) {
+        String regex = pattern.pattern();
+        return pattern.flags() == 0 && regex.indexOf('|') < 0 && !regex.contains("(?") && !regex.contains("\\Q");
+    }
+
+    /**
+     * Extracts the literals from an expression without flags, alternations
+     * and special groups.
+     */
+    private static final class Literals {
+
+        private String prefix = "";
+
+        private String longest = "";
+
+        private boolean exact;
+
+        /**
+         * Whether only plain characters were found so far.
+         */
+        private boolean plain = true;
+
+        private final StringBuilder run = new StringBuilder();
+
+        /**
+         * Whether the last atom is the last character of the current run.
+         */
+        private boolean lastInRun;
+
+        private boolean atStart = true;
+
+        Literals(String regex) {
+            int length = regex.length();
+            int index = 0;
+            while (index < length) {
+                char character = regex.charAt(index);
+                switch (character) {
+                    case '\\':
+                        if (index + 1 >= length) {
+                            giveUp();
+                            return;
+                        }
+                        char escaped = regex.charAt(index + 1);
+                        index += 2;
+                        if (!Character.isLetterOrDigit(escaped)) {
+                            append(escaped);
+                        } else if ("tnrfae".indexOf(escaped) >= 0) {
+                            append("\t\n\r\f\u0007\u001B".charAt("tnrfae".indexOf(escaped)));
+                        } else if ("dDsSwWhHvVbBRXAzZG".indexOf(escaped) >= 0) {
+                            endRun();
+                        } else {
+                            // Back references, properties, hexadecimal and octal escapes: let the regex engine handle those
+                            giveUp();
+                            return;
+                        }
+                        break;
+                    case '(':
+                        endRun();
+                        index = skipGroup(regex, index);
+                        break;
+                    case '[':
+                        endRun();
+                        index = skipClass(regex, index);
+                        break;
+                    case '?':
+                    case '*':
+                    case '{':
+                        // The last atom is optional (or may be repeated zero times)
+                        if (lastInRun) {
+                            // The last atom may be a supplementary character: a surrogate pair
+                            run.setLength(run.offsetByCodePoints(run.length(), -1));
+                        }
+                        endRun();
+                        index = (character == '{' ? regex.indexOf('}', index) + 1 : index + 1);
+                        index = skipQuantifierModifier(regex, index);
+                        break;
+                    case '+':
+                        // The last atom is required, but may be repeated
+                        endRun();
+                        index = skipQuantifierModifier(regex, index + 1);
+                        break;
+                    case '.':
+                    case '^':
+                    case '$':
+                        endRun();
+                        ++index;
+                        break;
+                    default:
+                        append(character);
+                        ++index;
+                        break;
+                }
+                if (index <= 0) {
+                    giveUp();
+                    return;
+                }
+            }
+            boolean onlyPlain = plain;
+            endRun();
+            exact = onlyPlain;
+        }
+
+        private void append(char character) {
+            run.append(character);
+            lastInRun = true;
+        }
+
+        private void endRun() {
+            String value = run.toString();
+            if (atStart) {
+                prefix = value;
+                atStart = false;
+            }
+            if (value.length() > longest.length()) {
+                longest = value;
+            }
+            run.setLength(0);
+            plain = false;
+            lastInRun = false;
+        }
+
+        private void giveUp() {
+            prefix = "";
+            longest = "";
+            exact = false;
+        }
+
+        /**
+         * Returns the index after the group starting at the given index or
+         * -1 when it can't be skipped.
+         */
+        private static int skipGroup(String regex, int index) {
+            int depth = 0;
+            for (int position = index; position < regex.length(); ++position) {
+                char character = regex.charAt(position);
+                if (character == '\\') {
+                    ++position;
+                } else if (character == '[') {
+                    position = skipClass(regex, position);
+                    if (position < 0) {
+                        return -1;
+                    }
+                    --position;
+                } else if (character == '(') {
+                    ++depth;
+                } else if (character == ')' && --depth == 0) {
+                    return position + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the index after the character class starting at the given
+         * index or -1 when it can't be skipped - nested classes aren't.
+         */
+        private static int skipClass(String regex, int index) {
+            int position = index + 1;
+            if (position < regex.length() && regex.charAt(position) == '^') {
+                ++position;
+            }
+            // A closing bracket right at the start is a plain character
+            if (position < regex.length() && regex.charAt(position) == ']') {
+                ++position;
+            }
+            for (; position < regex.length(); ++position) {
+                char character = regex.charAt(position);
+                if (character == '\\') {
+                    ++position;
+                } else if (character == '[') {
+                    return -1;
+                } else if (character == ']') {
+                    return position + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static int skipQuantifierModifier(String regex, int index) {
+            if (index > 0 && index < regex.length() && (regex.charAt(index) == '?' || regex.charAt(index) == '+')) {
+                return index + 1;
+            }
+            return index;
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a selector was executed by {@link Doj#explain(java.lang.String)}: the
+ * steps taken for each group of the selector, with the strategy of the step,
+ * the number of elements it was expected to visit and actually visited, and
+ * the time it took.
+ * <pre><code>
+ * System.out.println(Doj.on(page).explain("#sidebar form.search input"));
+ * </code></pre>
+ * <p>
+ * The estimates are made before the step is taken: a walk is expected to
+ * visit every element in the subtrees of its roots, an index lookup every
+ * element on the page with the tag, class or attribute it looks up. A walk
+ * that only needs the first match - like the check that the compound
+ * selectors in front of an id selector match anything at all - usually
+ * visits far fewer.
+ * </p>
+ */
+public final class DojPlan {
+
+    /**
+     * How a step finds its elements.
+     */
+    public enum Strategy {
+        /**
+         * Looking up the element with an id page-wide, see
+         * {@link Doj#getById(java.lang.String)}.
+         */
+        ID_LOOKUP,
+        /**
+         * Taking the elements with a tag, class or attribute from the index
+         * of the page, see {@link Doj#indexed()}.
+         */
+        INDEX,
+        /**
+         * Walking the subtrees of the context elements (or of the element
+         * found by an id lookup).
+         */
+        WALK,
+        /**
+         * Merging the results of the groups of the selector in document
+         * order.
+         */
+        MERGE
+    }
+
+    private final CompiledSelector selector;
+
+    private final int contextSize;
+
+    private final List<Step> steps = new ArrayList<Step>();
+
+    private int group;
+
+    private Doj result = Doj.EMPTY;
+
+    private long nanos;
+
+    DojPlan(CompiledSelector selector, int contextSize) {
+        this.selector = selector;
+        this.contextSize = contextSize;
+    }
+
+    /**
+     * Returns the selector string.
+     * @return the selector string
+     */
+    public String getSelector() {
+        return selector.getSelector();
+    }
+
+    /**
+     * Returns the compiled selector.
+     * @return the simple selectors and combinators, one list per group
+     */
+    public List<List<DojCssSelector>> getGroups() {
+        return selector.getGroups();
+    }
+
+    /**
+     * Returns the number of context elements.
+     * @return the number of context elements
+     */
+    public int getContextSize() {
+        return contextSize;
+    }
+
+    /**
+     * Returns the steps taken, in order.
+     * @return the steps
+     */
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Returns the result - the same as that of
+     * {@link Doj#get(java.lang.String)}.
+     * @return the result
+     */
+    public Doj getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the number of elements visited by all steps together.
+     * @return the number of elements visited
+     */
+    public long getVisited() {
+        long visited = 0;
+        for (Step step : steps) {
+            visited += step.getVisited();
+        }
+        return visited;
+    }
+
+    /**
+     * Returns the time it took to execute the selector, including the time
+     * spent recording the steps.
+     * @return the time in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    void startGroup(int group) {
+        this.group = group;
+    }
+
+    void add(Strategy strategy, String part, long estimatedVisited, int visited, int resultSize, long stepNanos) {
+        steps.add(new Step(group, strategy, part, estimatedVisited, visited, resultSize, stepNanos));
+    }
+
+    void finish(Doj result, long nanos) {
+        this.result = result;
+        this.nanos = nanos;
+    }
+
+    /**
+     * Returns the number of elements in the subtrees of the roots - nested
+     * subtrees are counted once - or -1 if it can't be determined from the
+     * numbering of the page.
+     */
+    static long subtreeSize(HtmlElement[] roots) {
+        if (roots.length == 0) {
+            return 0;
+        }
+        DojPageState state = DojPageState.of(roots[0]);
+        if (state == null) {
+            return -1;
+        }
+        DojNodeNumbering numbering = state.getNumbering();
+        int[] numbers = new int[roots.length];
+        for (int index = 0; index < roots.length; ++index) {
+            numbers[index] = (roots[index].getPage() == state.getPage() ? numbering.indexOf(roots[index]) : -1);
+            if (numbers[index] < 0) {
+                return -1;
+            }
+        }
+        Arrays.sort(numbers);
+        long size = 0;
+        int end = -1;
+        for (int number : numbers) {
+            if (number > end) {
+                end = numbering.end(number);
+                size += end - number;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(getSelector()).append(" on ").append(contextSize).append(" elements: ")
+                .append(result.size()).append(" results, ").append(getVisited()).append(" visited in ")
+                .append(TimeUnit.NANOSECONDS.toMicros(nanos)).append(" us");
+        for (Step step : steps) {
+            builder.append('\n').append("  ").append(step);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A single step of a plan.
+     */
+    public static final class Step {
+
+        private final int group;
+
+        private final Strategy strategy;
+
+        private final String selector;
+
+        private final long estimatedVisited;
+
+        private final int visited;
+
+        private final int resultSize;
+
+        private final long nanos;
+
+        Step(int group, Strategy strategy, String selector, long estimatedVisited, int visited, int resultSize, long nanos) {
+            this.group = group;
+            this.strategy = strategy;
+            this.selector = selector;
+            this.estimatedVisited = estimatedVisited;
+            this.visited = visited;
+            this.resultSize = resultSize;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the index of the group of the selector the step was taken
+         * for
+         */
+        public int getGroup() {
+            return group;
+        }
+
+        /**
+         * @return how the step found its elements
+         */
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * @return the part of the selector the step matched, or null for a
+         * merge
+         */
+        public String getSelector() {
+            return selector;
+        }
+
+        /**
+         * @return the number of elements the step was expected to visit, or
+         * -1 if unknown
+         */
+        public long getEstimatedVisited() {
+            return estimatedVisited;
+        }
+
+        /**
+         * @return the number of elements the step visited
+         */
+        public int getVisited() {
+            return visited;
+        }
+
+        /**
+         * @return the number of elements the step found
+         */
+        public int getResultSize() {
+            return resultSize;
+        }
+
+        /**
+         * @return the time the step took, in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + group + "] " + strategy + (selector == null ? "" : " " + selector) + ": "
+                    + (estimatedVisited < 0 ? "?" : String.valueOf(estimatedVisited)) + " estimated, " + visited
+                    + " visited, " + resultSize + " found in " + TimeUnit.NANOSECONDS.toMicros(nanos) + " us";
+        }
+    }
+
+}
@@ -0,0 +1,806 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.ElementNotFoundException;
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Node;
+
+/**
+ * Executes compiled selectors against the context elements of a Doj.
+ * <p>
+ * Instead of applying the simple selectors one by one - creating an
+ * intermediate Doj for each of them - the subtree of each context element is
+ * walked once. Every element is matched against the last compound selector
+ * and, when it matches, the rest of the chain is verified right-to-left on
+ * its ancestors and siblings, backtracking when a descendant or general
+ * sibling combinator leaves more than one option. When the page has been
+ * indexed (see {@link Doj#indexed()}), the candidates are taken from the
+ * index instead of walking the subtrees. Either way, the search can be
+ * narrowed down to the subtrees of the elements matching a more selective
+ * compound selector first (see {@link DojSelectorOptimizer}).
+ * </p>
+ * <p>
+ * The first compound selector should be matched by a descendant of a context
+ * element. For selectors with descendant combinators only, the results are
+ * identical to applying the selectors step by step: an id selector at the
+ * start of a compound selector is looked up page-wide (see
+ * {@link Doj#getById(java.lang.String)}), every other simple selector filters
+ * the elements matched so far. The same goes for an id selector at the start
+ * of a compound selector that's not the subject of a child or sibling
+ * combinator and that isn't followed by one.
+ * </p>
+ */
+final class DojSelectorEngine {
+
+    private DojSelectorEngine() {
+    }
+
+    /**
+     * Returns the elements matching the chain, in the order in which the
+     * subtrees of the context elements are walked.
+     * @param context the context elements
+     * @param chain the chain to match
+     * @return the (unique) matching elements
+     */
+    static List<HtmlElement> select(HtmlElement[] context, Chain chain) {
+        return select(context, chain, null, false, null, null);
+    }
+
+    /**
+     * Returns the elements matching the chain, adding a step to the plan for
+     * every lookup and walk it takes.
+     * @param context the context elements
+     * @param chain the chain to match
+     * @param plan the plan to add the steps to
+     * @return the (unique) matching elements
+     */
+    static List<HtmlElement> select(HtmlElement[] context, Chain chain, DojPlan plan) {
+        return select(context, chain, null, false, null, plan);
+    }
+
+    /**
+     * Returns the elements matching the chain and accepted by the filter, in
+     * the order in which the subtrees of the context elements are walked,
+     * counting the elements examined: the elements walked or taken from the
+     * index.
+     * @param context the context elements
+     * @param chain the chain to match
+     * @param filter the filter the matching elements should pass or null
+     * @param visited the counter to add the number of elements examined to
+     * at index 0 or null
+     * @return the (unique) matching elements
+     */
+    static List<HtmlElement> select(HtmlElement[] context, Chain chain, DojFilter filter, int[] visited) {
+        return select(context, chain, filter, false, visited, null);
+    }
+
+    private static HtmlElement selectFirst(HtmlElement[] context, Chain chain, DojFilter filter, int[] visited, DojPlan plan) {
+        List<HtmlElement> result = select(context, chain, filter, true, visited, plan);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Returns the first element matching any of the chains - the first of
+     * the elements the chains would select together, in document order.
+     * @param context the context elements
+     * @param chains the chains of a (grouped) selector
+     * @return the first matching element or null if there's none
+     */
+    static HtmlElement selectFirst(HtmlElement[] context, Chain[] chains) {
+        return selectFirst(context, chains, null, null);
+    }
+
+    /**
+     * Returns the first element matching any of the chains and accepted by
+     * the filter, counting the elements examined.
+     * @param context the context elements
+     * @param chains the chains of a (grouped) selector
+     * @param filter the filter the matching element should pass or null
+     * @param visited the counter to add the number of elements examined to
+     * at index 0 or null
+     * @return the first matching element or null if there's none
+     */
+    static HtmlElement selectFirst(HtmlElement[] context, Chain[] chains, DojFilter filter, int[] visited) {
+        if (chains.length == 1) {
+            return selectFirst(context, chains[0], filter, visited, null);
+        }
+        List<HtmlElement> firsts = new ArrayList<HtmlElement>(chains.length);
+        for (Chain chain : chains) {
+            HtmlElement first = selectFirst(context, chain, filter, visited, null);
+            if (first != null) {
+                firsts.add(first);
+            }
+        }
+        return DojNodeNumbering.firstInDocumentOrder(firsts);
+    }
+
+    /**
+     * Checks whether the element matches the chain. Unlike when selecting,
+     * the elements matching the compound selectors before the last one can
+     * be anywhere in the page.
+     * @param element the element
+     * @param chain the chain to match
+     * @return true when the element matches the chain
+     */
+    static boolean matches(HtmlElement element, Chain chain) {
+        return !chain.isEmpty() && chain.matchers[chain.last].matches(element)
+                && matchesBefore(element, chain, chain.last, 0, null, null);
+    }
+
+    /**
+     * Does the actual selecting for the methods above.
+     * @param firstOnly true to stop as soon as the first element is found
+     * @param visited the counter to add the number of elements examined to
+     * or null
+     * @param plan the plan to add the steps taken to or null
+     */
+    private static List<HtmlElement> select(HtmlElement[] context, Chain chain, DojFilter filter, boolean firstOnly, int[] visited, DojPlan plan) {
+        List<HtmlElement> result = new ArrayList<HtmlElement>();
+        if (chain.isEmpty() || context.length == 0) {
+            return result;
+        }
+        HtmlElement[] roots = context;
+        int first = 0;
+        int anchor = chain.anchor;
+        if (anchor >= 0) {
+            if (anchor > 0 && selectFirst(context, chain.prefix, null, visited, plan) == null) {
+                return result;
+            }
+            long start = (plan == null ? 0L : System.nanoTime());
+            HtmlElement elementWithId = lookupId(context, chain.compounds[anchor][0].getValue());
+            addVisits(visited, elementWithId == null ? 0 : 1);
+            boolean found = (elementWithId != null && chain.anchorMatcher.matches(elementWithId));
+            if (plan != null) {
+                plan.add(DojPlan.Strategy.ID_LOOKUP, chain.toString(anchor, anchor), 1, elementWithId == null ? 0 : 1, found ? 1 : 0, System.nanoTime() - start);
+            }
+            if (!found) {
+                return result;
+            }
+            if (anchor == chain.last) {
+                if (filter == null || filter.accept(elementWithId)) {
+                    result.add(elementWithId);
+                }
+                return result;
+            }
+            roots = new HtmlElement[]{elementWithId};
+            first = anchor + 1;
+        }
+        Map<HtmlElement, Boolean> rootSet = null;
+        if (roots.length > 1) {
+            rootSet = new IdentityHashMap<HtmlElement, Boolean>(roots.length);
+            for (HtmlElement root : roots) {
+                rootSet.put(root, Boolean.TRUE);
+            }
+        }
+        DojMatcher target = chain.matchers[chain.last];
+        DojIndex index = DojIndex.of(roots);
+        List<HtmlElement> candidates = null;
+        // The subtrees to look for the matching elements in, which are those
+        // of the roots unless the optimizer finds a smaller set
+        HtmlElement[] walkRoots = roots;
+        if (roots.length == 1) {
+            long start = (plan == null ? 0L : System.nanoTime());
+            DojSelectorOptimizer.Pivot pivot = DojSelectorOptimizer.pivot(chain, first, roots[0], index);
+            if (pivot != null) {
+                addVisits(visited, pivot.getVisited());
+                if (plan != null) {
+                    plan.add(pivot.getStrategy(), chain.toString(pivot.getCompound(), pivot.getCompound()), pivot.getEstimate(),
+                            pivot.getVisited(), pivot.getElements().length, System.nanoTime() - start);
+                }
+                if (pivot.getCompound() == chain.last) {
+                    candidates = Arrays.asList(pivot.getElements());
+                } else {
+                    walkRoots = pivot.getElements();
+                }
+            }
+        }
+        long start = (plan == null ? 0L : System.nanoTime());
+        int estimate = -1;
+        if (candidates == null && index != null && walkRoots.length > 0) {
+            int[] numbers = index.candidates(chain.compounds[chain.last]);
+            candidates = (numbers == null ? null : index.descendants(walkRoots, numbers));
+            estimate = (numbers == null ? -1 : numbers.length);
+        }
+        int count = 0;
+        if (candidates != null) {
+            for (HtmlElement element : candidates) {
+                ++count;
+                if (target.matches(element) && matchesBefore(element, chain, chain.last, first, roots[0], rootSet)
+                        && (filter == null || filter.accept(element))) {
+                    result.add(element);
+                    if (firstOnly) {
+                        break;
+                    }
+                }
+            }
+            addVisits(visited, count);
+            if (plan != null) {
+                plan.add(DojPlan.Strategy.INDEX, chain.toString(first, chain.last), estimate, count, result.size(), System.nanoTime() - start);
+            }
+            return result;
+        }
+        // Whether an element matches doesn't depend on the root it's found
+        // under, so every element only needs to be visited once
+        Map<HtmlElement, Boolean> walked = walkedRoots(walkRoots);
+        for (HtmlElement root : walkRoots) {
+            if (isWalked(root, walked)) {
+                continue;
+            }
+            HtmlElement scope = (walkRoots == roots ? root : roots[0]);
+            for (HtmlElement element = firstChildElement(root); element != null; element = nextElement(element, root, walked)) {
+                ++count;
+                if (target.matches(element)
+                        && matchesBefore(element, chain, chain.last, first, scope, rootSet)
+                        && (filter == null || filter.accept(element))) {
+                    result.add(element);
+                    if (firstOnly) {
+                        return walked(result, chain, first, walkRoots, count, visited, plan, start);
+                    }
+                }
+            }
+        }
+        return walked(result, chain, first, walkRoots, count, visited, plan, start);
+    }
+
+    private static void addVisits(int[] visited, int count) {
+        if (visited != null) {
+            visited[0] += count;
+        }
+    }
+
+    /**
+     * Accounts for the walk of the subtrees of the roots and returns its
+     * result.
+     */
+    private static List<HtmlElement> walked(List<HtmlElement> result, Chain chain, int first, HtmlElement[] roots, int count, int[] visited, DojPlan plan, long start) {
+        addVisits(visited, count);
+        if (plan != null) {
+            long nanos = System.nanoTime() - start;
+            plan.add(DojPlan.Strategy.WALK, chain.toString(first, chain.last), DojPlan.subtreeSize(roots), count, result.size(), nanos);
+        }
+        return result;
+    }
+
+    /**
+     * Verifies the compound selectors before the one at the given index,
+     * which is matched by the element, right-to-left. The first compound
+     * selector should be matched by a descendant of one of the roots.
+     */
+    private static boolean matchesBefore(HtmlElement element, Chain chain, int index, int first, HtmlElement root, Map<HtmlElement, Boolean> rootSet) {
+        if (index == first) {
+            return isInScope(element, root, rootSet);
+        }
+        DojMatcher matcher = chain.matchers[index - 1];
+        switch (chain.combinators[index]) {
+            case CHILD: {
+                DomNode parent = element.getParentNode();
+                return parent instanceof HtmlElement && matcher.matches((HtmlElement) parent)
+                        && matchesBefore((HtmlElement) parent, chain, index - 1, first, root, rootSet);
+            }
+            case ADJACENT_SIBLING: {
+                DomNode sibling = previousElementSibling(element);
+                return sibling instanceof HtmlElement && matcher.matches((HtmlElement) sibling)
+                        && matchesBefore((HtmlElement) sibling, chain, index - 1, first, root, rootSet);
+            }
+            case GENERAL_SIBLING:
+                for (DomNode sibling = previousElementSibling(element); sibling != null; sibling = previousElementSibling(sibling)) {
+                    if (sibling instanceof HtmlElement && matcher.matches((HtmlElement) sibling)
+                            && matchesBefore((HtmlElement) sibling, chain, index - 1, first, root, rootSet)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                for (DomNode node = element.getParentNode(); node instanceof HtmlElement; node = node.getParentNode()) {
+                    if (matcher.matches((HtmlElement) node)
+                            && matchesBefore((HtmlElement) node, chain, index - 1, first, root, rootSet)) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether the element is a descendant of (one of) the roots. When
+     * there are no roots, every element is in scope.
+     */
+    private static boolean isInScope(HtmlElement element, HtmlElement root, Map<HtmlElement, Boolean> rootSet) {
+        if (root == null && rootSet == null) {
+            return true;
+        }
+        for (DomNode node = element.getParentNode(); node instanceof HtmlElement; node = node.getParentNode()) {
+            if (node == root || (rootSet != null && rootSet.containsKey(node))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the position equals <code>step * n + offset</code> for
+     * some n &gt;= 0.
+     */
+    static boolean isNth(int position, int step, int offset) {
+        if (step == 0) {
+            return position == offset;
+        }
+        int difference = position - offset;
+        return difference / step >= 0 && difference % step == 0;
+    }
+
+    private static DomNode previousElementSibling(DomNode node) {
+        for (DomNode sibling = node.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+            if (sibling.getNodeType() == Node.ELEMENT_NODE) {
+                return sibling;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the element with the given id on the page of the context
+     * elements, just like {@link Doj#getById(java.lang.String)}.
+     */
+    static HtmlElement lookupId(HtmlElement[] context, String id) {
+        return lookupId(context, id, null);
+    }
+
+    /**
+     * Looks up the element with the given id, counting the lookups.
+     * @param visited incremented with the number of context elements whose
+     * page was searched, may be null
+     */
+    static HtmlElement lookupId(HtmlElement[] context, String id, int[] visited) {
+        for (HtmlElement element : context) {
+            addVisits(visited, 1);
+            Page page = element.getPage();
+            if (!(page instanceof HtmlPage)) {
+                continue;
+            }
+            try {
+                HtmlElement elementWithId = ((HtmlPage) page).getHtmlElementById(id);
+                if (elementWithId != null) {
+                    return elementWithId;
+                }
+            } catch (ElementNotFoundException e) {
+                // Ignore
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the elements with the given id in the id maps of the pages of
+     * the context elements and keeps those that are descendants of a context
+     * element, in the order a walk of the subtrees of the context elements
+     * would have found them, just like
+     * {@link Doj#getScopedById(java.lang.String)}.
+     * <p>
+     * Containment is verified by walking the ancestors of each element found,
+     * so this runs in time proportional to the depth of those elements rather
+     * than to the size of the subtrees.
+     * </p>
+     * @param context the context elements
+     * @param id the id to look up
+     * @param visited incremented with the number of elements found in the id
+     * maps, may be null
+     * @return the elements with the id within the context
+     */
+    static HtmlElement[] lookupIdWithin(HtmlElement[] context, String id, int[] visited) {
+        if (id == null || id.length() == 0 || context.length == 0) {
+            return new HtmlElement[0];
+        }
+        // The first (and thus walked) context element containing an element
+        // determines its position in the result
+        Map<HtmlElement, Integer> positions = null;
+        if (context.length > 1) {
+            positions = new IdentityHashMap<HtmlElement, Integer>(context.length);
+            for (int index = context.length - 1; index >= 0; --index) {
+                positions.put(context[index], index);
+            }
+        }
+        List<HtmlPage> pages = new ArrayList<HtmlPage>(1);
+        List<HtmlElement> found = new ArrayList<HtmlElement>(1);
+        int count = 0;
+        for (HtmlElement element : context) {
+            Page page = element.getPage();
+            if (!(page instanceof HtmlPage) || pages.contains(page)) {
+                continue;
+            }
+            pages.add((HtmlPage) page);
+            List<HtmlElement> onPage = new ArrayList<HtmlElement>(1);
+            for (Object elementWithId : ((HtmlPage) page).getElementsById(id)) {
+                ++count;
+                if (elementWithId instanceof HtmlElement
+                        && id.equals(((HtmlElement) elementWithId).getAttribute("id"))
+                        && containing((HtmlElement) elementWithId, context, positions) >= 0) {
+                    onPage.add((HtmlElement) elementWithId);
+                }
+            }
+            if (onPage.size() > 1) {
+                // Invalid HTML: the id map doesn't keep its elements in
+                // document order
+                Collections.sort(onPage, DojPageState.of((HtmlPage) page).getNumbering().documentOrder());
+            }
+            found.addAll(onPage);
+        }
+        addVisits(visited, count);
+        HtmlElement[] result = found.toArray(new HtmlElement[found.size()]);
+        if (result.length > 1) {
+            final int[] order = new int[result.length];
+            Integer[] indices = new Integer[result.length];
+            for (int index = 0; index < result.length; ++index) {
+                order[index] = containing(result[index], context, positions);
+                indices[index] = index;
+            }
+            // Stable, so the elements under the same context element stay in
+            // document order
+            Arrays.sort(indices, new Comparator<Integer>() {
+
+                public int compare(Integer first, Integer second) {
+                    return order[first] < order[second] ? -1 : (order[first] == order[second] ? 0 : 1);
+                }
+            });
+            HtmlElement[] sorted = new HtmlElement[result.length];
+            for (int index = 0; index < result.length; ++index) {
+                sorted[index] = result[indices[index]];
+            }
+            result = sorted;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the first context element that is an ancestor of
+     * the element or -1 if there is none.
+     * @param positions the index of each context element or null if there's
+     * only one
+     */
+    private static int containing(HtmlElement element, HtmlElement[] context, Map<HtmlElement, Integer> positions) {
+        int position = -1;
+        for (DomNode node = element.getParentNode(); node instanceof HtmlElement; node = node.getParentNode()) {
+            if (positions == null) {
+                if (node == context[0]) {
+                    return 0;
+                }
+                continue;
+            }
+            Integer index = positions.get(node);
+            if (index != null && (position < 0 || index < position)) {
+                position = index;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Returns the first child of the node that is an HtmlElement.
+     */
+    static HtmlElement firstChildElement(DomNode node) {
+        for (DomNode child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof HtmlElement) {
+                return (HtmlElement) child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the HtmlElement following the given element in a pre-order walk
+     * of the subtree of the root, like
+     * {@link DomNode#getHtmlElementDescendants()} does.
+     * @param element the current element
+     * @param root the root of the subtree being walked
+     * @param descend false to skip the descendants of the current element
+     * @return the next element or null when the whole subtree has been walked
+     */
+    static HtmlElement nextElement(HtmlElement element, DomNode root, boolean descend) {
+        if (descend) {
+            HtmlElement child = firstChildElement(element);
+            if (child != null) {
+                return child;
+            }
+        }
+        for (DomNode node = element; node != null && node != root; node = node.getParentNode()) {
+            for (DomNode sibling = node.getNextSibling(); sibling != null; sibling = sibling.getNextSibling()) {
+                if (sibling instanceof HtmlElement) {
+                    return (HtmlElement) sibling;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the set {@link #isWalked(HtmlElement, Map)} and
+     * {@link #nextElement(HtmlElement, DomNode, Map)} use to walk the subtrees
+     * of the roots, in order, without walking any element twice.
+     * <p>
+     * When the roots include both an element and some of its descendants,
+     * walking each of their subtrees visits the descendants over and over
+     * again. Instead, a subtree is skipped when an ancestor of its root was
+     * walked before, and the walk of a subtree skips the subtrees of the roots
+     * walked before it:
+     * </p>
+     * <pre><code>
+     * Map&lt;HtmlElement, Boolean&gt; walked = walkedRoots(roots);
+     * for (HtmlElement root : roots) {
+     *     if (isWalked(root, walked)) {
+     *         continue;
+     *     }
+     *     for (HtmlElement element = firstChildElement(root); element != null; element = nextElement(element, root, walked)) {
+     *         ...
+     *     }
+     * }
+     * </code></pre>
+     * <p>
+     * Every element is visited at the position where walking all subtrees in
+     * full would have visited it first, so the result is the same - without
+     * the duplicates.
+     * </p>
+     * @param roots the roots to walk
+     * @return the set or null if there's only one root
+     */
+    static Map<HtmlElement, Boolean> walkedRoots(HtmlElement[] roots) {
+        return roots.length > 1 ? new IdentityHashMap<HtmlElement, Boolean>(roots.length) : null;
+    }
+
+    /**
+     * Checks whether the subtree of the root was already walked as part of
+     * the subtree of a root walked before. If not, the root is recorded as
+     * walked.
+     * @param root the root about to be walked
+     * @param walked the set returned by {@link #walkedRoots(HtmlElement[])}
+     * @return true when the subtree should be skipped
+     */
+    static boolean isWalked(HtmlElement root, Map<HtmlElement, Boolean> walked) {
+        if (walked == null) {
+            return false;
+        }
+        for (DomNode node = root.getParentNode(); node instanceof HtmlElement; node = node.getParentNode()) {
+            if (walked.containsKey(node)) {
+                return true;
+            }
+        }
+        walked.put(root, Boolean.TRUE);
+        return false;
+    }
+
+    /**
+     * Returns the next element in the walk of the subtree of the root,
+     * skipping the descendants of the roots that were walked before.
+     * @param element the current element
+     * @param root the root of the subtree being walked
+     * @param walked the set returned by {@link #walkedRoots(HtmlElement[])}
+     * @return the next element or null when the whole subtree has been walked
+     */
+    static HtmlElement nextElement(HtmlElement element, DomNode root, Map<HtmlElement, Boolean> walked) {
+        return nextElement(element, root, walked == null || !walked.containsKey(element));
+    }
+
+    /**
+     * A single selector (without groups), split into compound selectors.
+     */
+    static final class Chain {
+
+        private final DojCssSelector[][] compounds;
+
+        /**
+         * The compiled matcher of each compound selector.
+         */
+        private final DojMatcher[] matchers;
+
+        /**
+         * The combinator in front of each compound selector - the one in front
+         * of the first compound selector is always a descendant combinator.
+         */
+        private final DojCssSelector.Type[] combinators;
+
+        private final int last;
+
+        /**
+         * Index of the last compound selector starting with an id selector
+         * that can be looked up page-wide, or -1 if there is none.
+         */
+        private final int anchor;
+
+        /**
+         * Matches the anchor, apart from its id selector.
+         */
+        private final DojMatcher anchorMatcher;
+
+        /**
+         * The compound selectors before the anchor.
+         */
+        private final Chain prefix;
+
+        /**
+         * Index of the first compound selector that's only followed by
+         * descendant and child combinators: the elements matching the chain
+         * are descendants of the elements matching it, or the elements
+         * themselves for the last one.
+         */
+        private final int subtreeStart;
+
+        Chain(List<DojCssSelector> selectors) {
+            List<DojCssSelector[]> compoundList = new ArrayList<DojCssSelector[]>();
+            List<DojCssSelector.Type> combinatorList = new ArrayList<DojCssSelector.Type>();
+            List<DojCssSelector> compound = new ArrayList<DojCssSelector>();
+            DojCssSelector.Type combinator = DojCssSelector.Type.DESCENDANT;
+            for (DojCssSelector selector : selectors) {
+                if (isCombinator(selector.getType())) {
+                    if (!compound.isEmpty()) {
+                        compoundList.add(compound.toArray(new DojCssSelector[compound.size()]));
+                        combinatorList.add(combinator);
+                        compound.clear();
+                    }
+                    combinator = selector.getType();
+                } else {
+                    compound.add(selector);
+                }
+            }
+            if (!compound.isEmpty()) {
+                compoundList.add(compound.toArray(new DojCssSelector[compound.size()]));
+                combinatorList.add(combinator);
+            }
+            this.compounds = compoundList.toArray(new DojCssSelector[compoundList.size()][]);
+            this.combinators = combinatorList.toArray(new DojCssSelector.Type[combinatorList.size()]);
+            this.last = compounds.length - 1;
+            this.anchor = anchor(compounds, combinators);
+            this.matchers = compile(compounds);
+            this.anchorMatcher = (anchor >= 0 ? DojMatcher.compile(compounds[anchor], 1) : null);
+            this.prefix = prefix(compounds, combinators, anchor);
+            this.subtreeStart = subtreeStart(combinators);
+        }
+
+        /**
+         * Creates the chain of the compound selectors before an anchor, which
+         * has an anchor of its own when one of them starts with an id
+         * selector that can be looked up page-wide.
+         */
+        private Chain(DojCssSelector[][] compounds, DojCssSelector.Type[] combinators) {
+            this.compounds = compounds;
+            this.combinators = combinators;
+            this.last = compounds.length - 1;
+            this.anchor = anchor(compounds, combinators);
+            this.anchorMatcher = (anchor >= 0 ? DojMatcher.compile(compounds[anchor], 1) : null);
+            this.prefix = prefix(compounds, combinators, anchor);
+            this.matchers = compile(compounds);
+            this.subtreeStart = subtreeStart(combinators);
+        }
+
+        /**
+         * Returns the index of the last compound selector starting with an id
+         * selector that can be looked up page-wide, or -1 if there is none.
+         */
+        private static int anchor(DojCssSelector[][] compounds, DojCssSelector.Type[] combinators) {
+            int last = compounds.length - 1;
+            for (int index = last; index >= 0; --index) {
+                if (compounds[index][0].getType() == DojCssSelector.Type.ID
+                        && combinators[index] == DojCssSelector.Type.DESCENDANT
+                        && (index == last || combinators[index + 1] == DojCssSelector.Type.DESCENDANT)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        private static Chain prefix(DojCssSelector[][] compounds, DojCssSelector.Type[] combinators, int anchor) {
+            return anchor > 0 ? new Chain(Arrays.copyOf(compounds, anchor), Arrays.copyOf(combinators, anchor)) : null;
+        }
+
+        boolean isEmpty() {
+            return compounds.length == 0;
+        }
+
+        /**
+         * Returns the number of compound selectors.
+         */
+        int size() {
+            return compounds.length;
+        }
+
+        /**
+         * Returns the simple selectors making up the compound selector at the
+         * given index.
+         */
+        DojCssSelector[] getCompound(int index) {
+            return compounds[index];
+        }
+
+        /**
+         * Returns the combinator in front of the compound selector at the
+         * given index.
+         */
+        DojCssSelector.Type getCombinator(int index) {
+            return combinators[index];
+        }
+
+        /**
+         * Returns the compiled matcher of the compound selector at the given
+         * index.
+         */
+        DojMatcher getMatcher(int index) {
+            return matchers[index];
+        }
+
+        /**
+         * Returns the index of the first compound selector matched by an
+         * ancestor of every matching element (or by the element itself),
+         * see {@link DojSelectorOptimizer}.
+         */
+        int getSubtreeStart() {
+            return subtreeStart;
+        }
+
+        /**
+         * Returns the compound selectors from the first up to and including
+         * the last index as a selector string.
+         */
+        String toString(int first, int last) {
+            StringBuilder builder = new StringBuilder();
+            for (int index = first; index <= last; ++index) {
+                if (index > first) {
+                    builder.append(DojCssSelector.combinator(combinators[index]));
+                }
+                for (DojCssSelector selector : compounds[index]) {
+                    builder.append(selector);
+                }
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toString(0, last);
+        }
+
+        private static DojMatcher[] compile(DojCssSelector[][] compounds) {
+            DojMatcher[] compiled = new DojMatcher[compounds.length];
+            for (int index = 0; index < compounds.length; ++index) {
+                compiled[index] = DojMatcher.compile(compounds[index], 0);
+            }
+            return compiled;
+        }
+
+        private static int subtreeStart(DojCssSelector.Type[] combinators) {
+            int start = combinators.length - 1;
+            while (start > 0 && (combinators[start] == DojCssSelector.Type.DESCENDANT || combinators[start] == DojCssSelector.Type.CHILD)) {
+                --start;
+            }
+            return start;
+        }
+
+        private static boolean isCombinator(DojCssSelector.Type type) {
+            return type == DojCssSelector.Type.DESCENDANT || type == DojCssSelector.Type.CHILD
+                    || type == DojCssSelector.Type.ADJACENT_SIBLING || type == DojCssSelector.Type.GENERAL_SIBLING;
+        }
+    }
+
+}
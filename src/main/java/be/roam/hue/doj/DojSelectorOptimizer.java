@@ -0,0 +1,231 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.html.DomElement;
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses where {@link DojSelectorEngine} looks for the elements matching a
+ * chain within the subtree of a root.
+ * <p>
+ * By default, the engine matches every element in the subtree - or every
+ * candidate the index of the page holds for the last compound selector -
+ * right-to-left. When the chain ends in compound selectors that are only
+ * separated by descendant and child combinators, every matching element is
+ * a descendant of an element matching each of them, so the search can be
+ * narrowed down to the subtrees of the elements matching the most selective
+ * one - the pivot:
+ * </p>
+ * <ul>
+ * <li>a compound selector with an id selector, wherever it's located, is
+ * looked up in the id map of the page: it's matched by a single element,
+ * whose subtree is never larger than that of the root</li>
+ * <li>when the page has been indexed (see {@link Doj#indexed()}), the
+ * index tells how many elements within the root each compound selector
+ * could match: the one with the fewest candidates is the pivot, provided
+ * there are fewer of those than candidates for the last compound
+ * selector</li>
+ * </ul>
+ * <p>
+ * Since the pivot only narrows down the elements that are matched - all
+ * of the chain is still verified against each of them, within the original
+ * root - and the subtrees are walked in document order, the result is
+ * identical to that of the default strategy.
+ * </p>
+ */
+final class DojSelectorOptimizer {
+
+    private DojSelectorOptimizer() {
+    }
+
+    /**
+     * Chooses a pivot for the chain within the subtree of the root.
+     * @param chain the chain to match
+     * @param first the index of the first compound selector to match within
+     * the subtree of the root
+     * @param root the root
+     * @param index the index of the page or null if it's not indexed
+     * @return the pivot or null to match the chain the default way
+     */
+    static Pivot pivot(DojSelectorEngine.Chain chain, int first, HtmlElement root, DojIndex index) {
+        int last = chain.size() - 1;
+        int from = Math.max(first, chain.getSubtreeStart());
+        int rootNumber = (index == null ? -1 : index.getNumbering().indexOf(root));
+        if (rootNumber < 0) {
+            index = null;
+        }
+        // The number of elements the default strategy matches
+        long defaultCost = Long.MAX_VALUE;
+        if (index != null) {
+            int[] numbers = index.candidates(chain.getCompound(last));
+            defaultCost = (numbers == null ? index.getNumbering().end(rootNumber) - rootNumber : index.countDescendants(rootNumber, numbers));
+        }
+        int best = -1;
+        long bestEstimate = Long.MAX_VALUE;
+        for (int compound = last; compound >= from; --compound) {
+            long estimate;
+            if (idOf(chain.getCompound(compound)) != null) {
+                estimate = 1;
+            } else if (index != null) {
+                int[] numbers = index.candidates(chain.getCompound(compound));
+                if (numbers == null) {
+                    continue;
+                }
+                estimate = index.countDescendants(rootNumber, numbers);
+            } else {
+                continue;
+            }
+            // On a tie, the compound selector further to the right has the
+            // smaller subtrees
+            if (estimate < bestEstimate) {
+                best = compound;
+                bestEstimate = estimate;
+            }
+        }
+        if (best < 0 || bestEstimate >= defaultCost) {
+            return null;
+        }
+        String id = idOf(chain.getCompound(best));
+        return id != null ? byId(chain, best, root, id) : byIndex(chain, best, root, rootNumber, index, bestEstimate);
+    }
+
+    /**
+     * Looks up the elements matching the compound selector with an id
+     * selector within the subtree of the root.
+     */
+    private static Pivot byId(DojSelectorEngine.Chain chain, int compound, HtmlElement root, String id) {
+        Page page = root.getPage();
+        if (!(page instanceof HtmlPage)) {
+            return null;
+        }
+        List<DomElement> elementsWithId = ((HtmlPage) page).getElementsById(id);
+        DojMatcher matcher = chain.getMatcher(compound);
+        List<HtmlElement> matching = new ArrayList<HtmlElement>(1);
+        for (DomElement element : elementsWithId) {
+            if (element instanceof HtmlElement && matcher.matches((HtmlElement) element) && isDescendant(element, root)) {
+                matching.add((HtmlElement) element);
+            }
+        }
+        if (matching.size() > 1) {
+            // Invalid HTML: the id map doesn't keep its elements in document
+            // order
+            Collections.sort(matching, DojPageState.of((HtmlPage) page).getNumbering().documentOrder());
+        }
+        return new Pivot(compound, DojPlan.Strategy.ID_LOOKUP, 1, elementsWithId.size(), matching.toArray(new HtmlElement[matching.size()]));
+    }
+
+    /**
+     * Takes the elements matching the compound selector within the subtree
+     * of the root from the index.
+     */
+    private static Pivot byIndex(DojSelectorEngine.Chain chain, int compound, HtmlElement root, int rootNumber, DojIndex index, long estimate) {
+        DojElements candidates = index.descendantElements(new HtmlElement[]{root}, index.candidates(chain.getCompound(compound)));
+        DojMatcher matcher = chain.getMatcher(compound);
+        List<HtmlElement> matching = new ArrayList<HtmlElement>();
+        for (HtmlElement candidate : candidates) {
+            if (matcher.matches(candidate)) {
+                matching.add(candidate);
+            }
+        }
+        return new Pivot(compound, DojPlan.Strategy.INDEX, estimate, candidates.size(), matching.toArray(new HtmlElement[matching.size()]));
+    }
+
+    private static String idOf(DojCssSelector[] compound) {
+        for (DojCssSelector selector : compound) {
+            if (selector.getType() == DojCssSelector.Type.ID) {
+                return selector.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isDescendant(DomNode node, HtmlElement root) {
+        for (DomNode ancestor = node.getParentNode(); ancestor != null; ancestor = ancestor.getParentNode()) {
+            if (ancestor == root) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The elements matching the pivot within the subtree of the root.
+     */
+    static final class Pivot {
+
+        private final int compound;
+
+        private final DojPlan.Strategy strategy;
+
+        private final long estimate;
+
+        private final int visited;
+
+        private final HtmlElement[] elements;
+
+        Pivot(int compound, DojPlan.Strategy strategy, long estimate, int visited, HtmlElement[] elements) {
+            this.compound = compound;
+            this.strategy = strategy;
+            this.estimate = estimate;
+            this.visited = visited;
+            this.elements = elements;
+        }
+
+        /**
+         * Returns the index of the compound selector that's the pivot.
+         */
+        int getCompound() {
+            return compound;
+        }
+
+        /**
+         * Returns how the elements were found.
+         */
+        DojPlan.Strategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * Returns the number of elements the pivot was expected to match.
+         */
+        long getEstimate() {
+            return estimate;
+        }
+
+        /**
+         * Returns the number of elements examined to find the elements.
+         */
+        int getVisited() {
+            return visited;
+        }
+
+        /**
+         * Returns the elements matching the pivot, in document order.
+         */
+        HtmlElement[] getElements() {
+            return elements;
+        }
+    }
+
+}
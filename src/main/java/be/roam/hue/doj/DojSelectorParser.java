@@ -0,0 +1,373 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recursive descent parser for (grouped) CSS selectors, see
+ * {@link DojCssSelector#compile(java.lang.String)} for the supported syntax.
+ * <p>
+ * The grammar, with whitespace allowed around combinators, commas and inside
+ * attribute selectors and functional pseudo-classes:
+ * </p>
+ * <pre><code>
+ * group      := selector? ( ',' selector? )*
+ * selector   := compound ( combinator compound )*
+ * combinator := whitespace | '&gt;' | '+' | '~'
+ * compound   := ( name | '*' )? ( '#' name | '.' name | attribute | pseudo )*
+ * attribute  := '[' name ( ( '=' | '~=' | '^=' | '$=' | '*=' | '|=' ) ( name | string ) )? ']'
+ * pseudo     := ':first-child' | ':last-child' | ':nth-child(' nth ')'
+ * nth        := 'odd' | 'even' | integer | [+-]? integer? 'n' ( [+-] integer )?
+ * </code></pre>
+ * <p>
+ * A compound selector can't be empty. Names consist of any characters but
+ * whitespace and the characters used by the grammar, which can be escaped
+ * with a backslash (e.g. <code>#form\:name</code>). As before pseudo-classes
+ * were supported, a colon in an id or class name that isn't followed by a
+ * supported pseudo-class is part of the name: <code>#form:name</code> is the
+ * id <code>form:name</code>, <code>#form:first-child</code> is the id
+ * <code>form</code> followed by a pseudo-class.
+ * </p>
+ */
+final class DojSelectorParser {
+
+    private static final String SPECIAL_CHARACTERS = ".#[]():>+~,*=\"'\\^$|!";
+
+    private static final Pattern NTH = Pattern.compile("([+-]?)(\\d*)n(?:\\s*([+-])\\s*(\\d+))?|([+-]?\\d+)");
+
+    private static final DojCssSelector DESCENDANT = new DojCssSelector(DojCssSelector.Type.DESCENDANT, " ");
+
+    private static final DojCssSelector CHILD = new DojCssSelector(DojCssSelector.Type.CHILD, ">");
+
+    private static final DojCssSelector ADJACENT_SIBLING = new DojCssSelector(DojCssSelector.Type.ADJACENT_SIBLING, "+");
+
+    private static final DojCssSelector GENERAL_SIBLING = new DojCssSelector(DojCssSelector.Type.GENERAL_SIBLING, "~");
+
+    private static final DojCssSelector UNIVERSAL = new DojCssSelector(DojCssSelector.Type.UNIVERSAL, "*");
+
+    private static final DojCssSelector FIRST_CHILD = new DojCssSelector(DojCssSelector.Type.FIRST_CHILD, "first-child");
+
+    private static final DojCssSelector LAST_CHILD = new DojCssSelector(DojCssSelector.Type.LAST_CHILD, "last-child");
+
+    private final String selector;
+
+    private final int length;
+
+    private int position;
+
+    DojSelectorParser(String selector) {
+        if (selector == null) {
+            throw new IllegalArgumentException("The selector can't be null");
+        }
+        this.selector = selector;
+        this.length = selector.length();
+    }
+
+    /**
+     * Parses a grouped selector. Empty groups are skipped.
+     * @return the compiled selectors, one list per group
+     * @throws IllegalArgumentException when the selector is invalid
+     */
+    List<List<DojCssSelector>> parseGroup() {
+        List<List<DojCssSelector>> groups = new ArrayList<List<DojCssSelector>>();
+        while (true) {
+            skipWhitespace();
+            if (position < length && selector.charAt(position) != ',') {
+                groups.add(parseSelector());
+            }
+            if (position == length) {
+                return groups;
+            }
+            expect(',');
+        }
+    }
+
+    /**
+     * Parses a single selector, without groups.
+     * @return the compiled selector or an empty list for a blank selector
+     * @throws IllegalArgumentException when the selector is invalid
+     */
+    List<DojCssSelector> parseSingle() {
+        skipWhitespace();
+        if (position == length) {
+            return new ArrayList<DojCssSelector>();
+        }
+        List<DojCssSelector> result = parseSelector();
+        if (position < length) {
+            throw error("unexpected '" + selector.charAt(position) + "'");
+        }
+        return result;
+    }
+
+    private List<DojCssSelector> parseSelector() {
+        List<DojCssSelector> result = new ArrayList<DojCssSelector>();
+        parseCompound(result);
+        while (true) {
+            boolean whitespace = skipWhitespace();
+            if (position == length || selector.charAt(position) == ',') {
+                return result;
+            }
+            DojCssSelector combinator = parseCombinator();
+            if (combinator != null) {
+                skipWhitespace();
+            } else if (whitespace) {
+                combinator = DESCENDANT;
+            } else {
+                throw error("unexpected '" + selector.charAt(position) + "'");
+            }
+            result.add(combinator);
+            parseCompound(result);
+        }
+    }
+
+    /**
+     * Parses a child or sibling combinator.
+     * @return the combinator or null if there's none at the current position
+     */
+    private DojCssSelector parseCombinator() {
+        switch (selector.charAt(position)) {
+            case '>':
+                ++position;
+                return CHILD;
+            case '+':
+                ++position;
+                return ADJACENT_SIBLING;
+            case '~':
+                ++position;
+                return GENERAL_SIBLING;
+            default:
+                return null;
+        }
+    }
+
+    private void parseCompound(List<DojCssSelector> result) {
+        int start = result.size();
+        if (position < length && selector.charAt(position) == '*') {
+            ++position;
+            result.add(UNIVERSAL);
+        } else if (isNameStart()) {
+            result.add(new DojCssSelector(DojCssSelector.Type.ELEMENT, parseName()));
+        }
+        while (position < length) {
+            char character = selector.charAt(position);
+            if (character == '#') {
+                ++position;
+                result.add(new DojCssSelector(DojCssSelector.Type.ID, parseNameWithColons()));
+            } else if (character == '.') {
+                ++position;
+                result.add(new DojCssSelector(DojCssSelector.Type.HTML_CLASS, parseNameWithColons()));
+            } else if (character == '[') {
+                ++position;
+                result.add(parseAttribute());
+            } else if (character == ':') {
+                ++position;
+                result.add(parsePseudoClass());
+            } else {
+                break;
+            }
+        }
+        if (result.size() == start) {
+            throw error(position == length ? "missing selector at the end" : "expected a selector instead of '" + selector.charAt(position) + "'");
+        }
+    }
+
+    private DojCssSelector parseAttribute() {
+        skipWhitespace();
+        String attribute = parseName().toLowerCase(Locale.ENGLISH);
+        skipWhitespace();
+        MatchType matchType;
+        String value = null;
+        if (position < length && selector.charAt(position) == ']') {
+            matchType = MatchType.EXISTING;
+        } else {
+            matchType = parseMatchType();
+            skipWhitespace();
+            value = (position < length && (selector.charAt(position) == '"' || selector.charAt(position) == '\'') ? parseString() : parseName());
+            skipWhitespace();
+        }
+        expect(']');
+        return new DojCssSelector(attribute, matchType, value);
+    }
+
+    private MatchType parseMatchType() {
+        char character = (position < length ? selector.charAt(position) : 0);
+        MatchType matchType;
+        switch (character) {
+            case '=':
+                ++position;
+                return MatchType.EQUALS;
+            case '~':
+                matchType = MatchType.CONTAINED_WITH_WHITESPACE;
+                break;
+            case '^':
+                matchType = MatchType.STARTING_WITH;
+                break;
+            case '$':
+                matchType = MatchType.ENDING_WITH;
+                break;
+            case '*':
+                matchType = MatchType.CONTAINING;
+                break;
+            case '|':
+                matchType = MatchType.CONTAINED_WITH_HYPHENS;
+                break;
+            default:
+                throw error("expected an attribute operator or ']'");
+        }
+        ++position;
+        expect('=');
+        return matchType;
+    }
+
+    private DojCssSelector parsePseudoClass() {
+        String name = parseName().toLowerCase(Locale.ENGLISH);
+        if ("first-child".equals(name)) {
+            return FIRST_CHILD;
+        }
+        if ("last-child".equals(name)) {
+            return LAST_CHILD;
+        }
+        if (!"nth-child".equals(name)) {
+            throw error("unsupported pseudo-class ':" + name + "'");
+        }
+        expect('(');
+        int start = position;
+        while (position < length && selector.charAt(position) != ')') {
+            ++position;
+        }
+        String expression = selector.substring(start, position).trim().toLowerCase(Locale.ENGLISH);
+        expect(')');
+        if ("odd".equals(expression)) {
+            return new DojCssSelector(2, 1);
+        }
+        if ("even".equals(expression)) {
+            return new DojCssSelector(2, 0);
+        }
+        Matcher matcher = NTH.matcher(expression);
+        if (!matcher.matches()) {
+            throw error("invalid :nth-child argument '" + expression + "'");
+        }
+        if (matcher.group(5) != null) {
+            return new DojCssSelector(0, Integer.parseInt(trimPlus(matcher.group(5))));
+        }
+        int step = (matcher.group(2).length() == 0 ? 1 : Integer.parseInt(matcher.group(2)));
+        step = ("-".equals(matcher.group(1)) ? -step : step);
+        int offset = (matcher.group(4) == null ? 0 : Integer.parseInt(matcher.group(4)));
+        offset = ("-".equals(matcher.group(3)) ? -offset : offset);
+        return new DojCssSelector(step, offset);
+    }
+
+    private String parseName() {
+        StringBuilder name = new StringBuilder();
+        while (position < length) {
+            char character = selector.charAt(position);
+            if (character == '\\' && position + 1 < length) {
+                name.append(selector.charAt(position + 1));
+                position += 2;
+            } else if (isNameCharacter(character)) {
+                name.append(character);
+                ++position;
+            } else {
+                break;
+            }
+        }
+        if (name.length() == 0) {
+            throw error(position == length ? "missing name at the end" : "expected a name instead of '" + selector.charAt(position) + "'");
+        }
+        return name.toString();
+    }
+
+    /**
+     * Parses a name, including every colon followed by a name that isn't a
+     * supported pseudo-class - as in the JSF id <code>form:name</code>.
+     */
+    private String parseNameWithColons() {
+        String name = parseName();
+        while (position < length && selector.charAt(position) == ':') {
+            int colon = position++;
+            if (!isNameStart()) {
+                position = colon;
+                break;
+            }
+            String next = parseName();
+            if (isPseudoClass(next.toLowerCase(Locale.ENGLISH))) {
+                position = colon;
+                break;
+            }
+            name = name + ':' + next;
+        }
+        return name;
+    }
+
+    private static boolean isPseudoClass(String name) {
+        return "first-child".equals(name) || "last-child".equals(name) || "nth-child".equals(name);
+    }
+
+    private String parseString() {
+        char quote = selector.charAt(position++);
+        StringBuilder value = new StringBuilder();
+        while (position < length && selector.charAt(position) != quote) {
+            char character = selector.charAt(position++);
+            if (character == '\\' && position < length) {
+                character = selector.charAt(position++);
+            }
+            value.append(character);
+        }
+        expect(quote);
+        return value.toString();
+    }
+
+    private boolean isNameStart() {
+        return position < length && (isNameCharacter(selector.charAt(position)) || selector.charAt(position) == '\\');
+    }
+
+    private static boolean isNameCharacter(char character) {
+        return !Character.isWhitespace(character) && SPECIAL_CHARACTERS.indexOf(character) < 0;
+    }
+
+    private static String trimPlus(String number) {
+        return number.startsWith("+") ? number.substring(1) : number;
+    }
+
+    /**
+     * Skips whitespace.
+     * @return true when there was whitespace to skip
+     */
+    private boolean skipWhitespace() {
+        int start = position;
+        while (position < length && Character.isWhitespace(selector.charAt(position))) {
+            ++position;
+        }
+        return position > start;
+    }
+
+    private void expect(char character) {
+        if (position == length || selector.charAt(position) != character) {
+            throw error("expected '" + character + "'");
+        }
+        ++position;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid selector \"" + selector + "\" at position " + position + ": " + message);
+    }
+
+}
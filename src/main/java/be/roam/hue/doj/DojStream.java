@@ -0,0 +1,551 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import net.sourceforge.htmlunit.cyberneko.parsers.SAXParser;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Extracts texts and attributes from HTML without building an HtmlPage.
+ * <p>
+ * The HTML is tokenized by the same (NekoHTML) parser HtmlUnit uses, but
+ * instead of building a DOM, the selectors are matched against the stack of
+ * currently open elements as the tags go by. Nothing is kept of elements
+ * that have been closed, so the memory used is bounded by the nesting depth
+ * of the page - plus the text of the matching elements that are still open
+ * or held back (see below).
+ * There's no JavaScript and no CSS: use it for bulk extraction from static
+ * pages.
+ * </p>
+ * <pre><code>
+ * final List&lt;String&gt; titles = new ArrayList&lt;String&gt;();
+ * DojStream.over(input, StandardCharsets.UTF_8)
+ *     .trimmedTexts("div.article &gt; h2", new DojStream.Listener() {
+ *         public void matched(String value) {
+ *             titles.add(value);
+ *         }
+ *     })
+ *     .run();
+ * </code></pre>
+ * <p>
+ * Only a subset of the selectors of {@link Doj#get(java.lang.String)} is
+ * supported: type, universal, class, id and attribute selectors combined
+ * with descendant and child combinators. Sibling combinators and
+ * pseudo-classes would require looking around or ahead in the stream and
+ * are rejected. Unlike on a Doj, an id selector is always matched like any
+ * other simple selector and the selectors are matched against the whole
+ * document, including the html element.
+ * </p>
+ * <p>
+ * Every open element keeps which compound selectors of the queries it
+ * matches along with the ones before them, and which of those its ancestors
+ * match. An element is matched against each compound selector once, using
+ * what its parent keeps instead of searching the ancestors again, so
+ * matching takes time linear to the size of the selectors - however deeply
+ * the elements are nested.
+ * </p>
+ * <p>
+ * Every listener gets its values in document order. Attribute values are
+ * passed as soon as the start tag of a matching element is seen, texts when
+ * its end tag is seen - the text of an element nested in another one
+ * matching the same query is held back until the text of the outer one has
+ * been passed. The values of different queries aren't ordered with respect
+ * to each other. A value is passed at most once per element and query, even
+ * when the element matches several groups of the selector.
+ * </p>
+ * <p>
+ * A DojStream can only be run once and is not thread-safe.
+ * </p>
+ */
+public final class DojStream {
+
+    /**
+     * Receives the values extracted from the stream.
+     */
+    public interface Listener {
+
+        /**
+         * Called for every matching element.
+         * @param value the text or attribute value of the element - an empty
+         * string if the element doesn't have the attribute
+         */
+        void matched(String value);
+
+    }
+
+    private final InputStream input;
+
+    private final Charset charset;
+
+    private final List<Query> queries = new ArrayList<Query>();
+
+    private boolean done;
+
+    private DojStream(InputStream input, Charset charset) {
+        this.input = input;
+        this.charset = charset;
+    }
+
+    /**
+     * Creates a DojStream over the given input.
+     * @param input the HTML - it isn't closed after running
+     * @param charset the encoding of the HTML, which overrides the one
+     * specified by the page itself
+     * @return new DojStream instance
+     */
+    public static DojStream over(InputStream input, Charset charset) {
+        if (input == null || charset == null) {
+            throw new IllegalArgumentException("The input and the charset can't be null");
+        }
+        return new DojStream(input, charset);
+    }
+
+    /**
+     * Passes the text content of the elements matching the selector to the
+     * listener, like {@link Doj#texts()}.
+     * @param selector the selector
+     * @param listener the listener
+     * @return this DojStream
+     * @throws IllegalArgumentException when the selector is invalid or not
+     * supported when streaming
+     */
+    public DojStream texts(String selector, Listener listener) {
+        return texts(DojCssSelector.compileCached(selector), listener);
+    }
+
+    /**
+     * Passes the text content of the elements matching the compiled selector
+     * to the listener, like {@link Doj#texts()}.
+     * @param selector the compiled selector
+     * @param listener the listener
+     * @return this DojStream
+     * @throws IllegalArgumentException when the selector is not supported
+     * when streaming
+     */
+    public DojStream texts(CompiledSelector selector, Listener listener) {
+        return add(new Query(selector, null, false, listener));
+    }
+
+    /**
+     * Passes the text content of the elements matching the selector to the
+     * listener, with whitespace normalized like {@link Doj#trimmedTexts()}.
+     * @param selector the selector
+     * @param listener the listener
+     * @return this DojStream
+     * @throws IllegalArgumentException when the selector is invalid or not
+     * supported when streaming
+     */
+    public DojStream trimmedTexts(String selector, Listener listener) {
+        return trimmedTexts(DojCssSelector.compileCached(selector), listener);
+    }
+
+    /**
+     * Passes the text content of the elements matching the compiled selector
+     * to the listener, with whitespace normalized like
+     * {@link Doj#trimmedTexts()}.
+     * @param selector the compiled selector
+     * @param listener the listener
+     * @return this DojStream
+     * @throws IllegalArgumentException when the selector is not supported
+     * when streaming
+     */
+    public DojStream trimmedTexts(CompiledSelector selector, Listener listener) {
+        return add(new Query(selector, null, true, listener));
+    }
+
+    /**
+     * Passes the value of the given attribute of the elements matching the
+     * selector to the listener, like {@link Doj#attributes(java.lang.String)}.
+     * @param selector the selector
+     * @param attribute the name of the attribute
+     * @param listener the listener
+     * @return this DojStream
+     * @throws IllegalArgumentException when the selector is invalid or not
+     * supported when streaming
+     */
+    public DojStream attributes(String selector, String attribute, Listener listener) {
+        return attributes(DojCssSelector.compileCached(selector), attribute, listener);
+    }
+
+    /**
+     * Passes the value of the given attribute of the elements matching the
+     * compiled selector to the listener, like
+     * {@link Doj#attributes(java.lang.String)}.
+     * @param selector the compiled selector
+     * @param attribute the name of the attribute
+     * @param listener the listener
+     * @return this DojStream
+     * @throws IllegalArgumentException when the selector is not supported
+     * when streaming
+     */
+    public DojStream attributes(CompiledSelector selector, String attribute, Listener listener) {
+        if (attribute == null) {
+            throw new IllegalArgumentException("The attribute can't be null");
+        }
+        return add(new Query(selector, attribute.toLowerCase(Locale.ENGLISH), false, listener));
+    }
+
+    private DojStream add(Query query) {
+        if (query.listener == null) {
+            throw new IllegalArgumentException("The listener can't be null");
+        }
+        queries.add(query);
+        return this;
+    }
+
+    /**
+     * Reads the whole input, passing the values to the listeners as the
+     * matching elements go by.
+     * @throws IOException when reading or parsing the input fails
+     * @throws IllegalStateException when this DojStream has already been run
+     */
+    public void run() throws IOException {
+        if (done) {
+            throw new IllegalStateException("A DojStream can only be run once");
+        }
+        done = true;
+        SAXParser parser = new SAXParser();
+        Handler handler = new Handler(queries);
+        try {
+            parser.setFeature("http://cyberneko.org/html/features/scanner/ignore-specified-charset", true);
+            parser.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+            parser.setProperty("http://cyberneko.org/html/properties/names/attrs", "lower");
+            parser.setContentHandler(handler);
+            InputSource source = new InputSource(input);
+            source.setEncoding(charset.name());
+            parser.parse(source);
+        } catch (SAXException e) {
+            throw new IOException("Unable to parse the HTML", e);
+        }
+    }
+
+    /**
+     * Checks whether the selectors only use what's supported when streaming.
+     * @throws IllegalArgumentException when they don't
+     */
+    static void verify(CompiledSelector selector) {
+        for (List<DojCssSelector> group : selector.getGroups()) {
+            for (DojCssSelector simpleSelector : group) {
+                switch (simpleSelector.getType()) {
+                    case ELEMENT:
+                    case HTML_CLASS:
+                    case ID:
+                    case DESCENDANT:
+                    case CHILD:
+                    case UNIVERSAL:
+                    case ATTRIBUTE:
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Selector \"" + selector.getSelector() + "\" is not supported when streaming: "
+                                + simpleSelector.getType() + " selectors can't be matched");
+                }
+            }
+        }
+    }
+
+    /**
+     * A selector with what to extract from its matches.
+     */
+    private static final class Query {
+
+        private final DojSelectorEngine.Chain[] chains;
+
+        /**
+         * The attribute to extract or null to extract the text.
+         */
+        private final String attribute;
+
+        private final boolean trim;
+
+        private final Listener listener;
+
+        Query(CompiledSelector selector, String attribute, boolean trim, Listener listener) {
+            if (selector == null) {
+                throw new IllegalArgumentException("The selector can't be null");
+            }
+            verify(selector);
+            this.chains = selector.getChains();
+            this.attribute = attribute;
+            this.trim = trim;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * An open element - only the attributes the queries need are kept.
+     */
+    private static final class Frame {
+
+        private String tag;
+
+        private final String[] values;
+
+        /**
+         * For each compound selector of the queries, whether the element
+         * matches it and its ancestors match the ones before it.
+         */
+        private final boolean[] matched;
+
+        /**
+         * For each compound selector of the queries, whether the element or
+         * one of its ancestors is matched by it.
+         */
+        private final boolean[] reached;
+
+        Frame(int attributeCount, int compoundCount) {
+            this.values = new String[attributeCount];
+            this.matched = new boolean[compoundCount];
+            this.reached = new boolean[compoundCount];
+        }
+    }
+
+    /**
+     * The text of an element matching a query.
+     */
+    private static final class TextCollector {
+
+        private final Query query;
+
+        /**
+         * The texts of the query waiting to be passed, this one included.
+         */
+        private final ArrayDeque<TextCollector> pending;
+
+        private final int depth;
+
+        private final StringBuilder text = new StringBuilder();
+
+        /**
+         * False once the element has been closed.
+         */
+        private boolean open = true;
+
+        TextCollector(Query query, ArrayDeque<TextCollector> pending, int depth) {
+            this.query = query;
+            this.pending = pending;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Matches the queries against the stack of open elements.
+     */
+    private static final class Handler extends DefaultHandler {
+
+        private final Query[] queries;
+
+        /**
+         * The names of the attributes kept for each open element.
+         */
+        private final String[] attributeNames;
+
+        /**
+         * The index in the states of a frame of the first compound selector
+         * of each chain of each query.
+         */
+        private final int[][] offsets;
+
+        private final int compoundCount;
+
+        private Frame[] stack = new Frame[32];
+
+        private int depth;
+
+        /**
+         * The collectors of the open elements, innermost last.
+         */
+        private final List<TextCollector> open = new ArrayList<TextCollector>();
+
+        /**
+         * For each query, its collectors of the open elements and of the
+         * closed elements whose text is held back, in document order.
+         */
+        private final List<ArrayDeque<TextCollector>> pending = new ArrayList<ArrayDeque<TextCollector>>();
+
+        Handler(List<Query> queries) {
+            this.queries = queries.toArray(new Query[queries.size()]);
+            for (int index = 0; index < this.queries.length; ++index) {
+                pending.add(new ArrayDeque<TextCollector>());
+            }
+            List<String> names = new ArrayList<String>(Arrays.asList("id", "class"));
+            offsets = new int[this.queries.length][];
+            int count = 0;
+            for (int index = 0; index < this.queries.length; ++index) {
+                offsets[index] = new int[this.queries[index].chains.length];
+                for (int chain = 0; chain < offsets[index].length; ++chain) {
+                    offsets[index][chain] = count;
+                    count += this.queries[index].chains[chain].size();
+                }
+            }
+            this.compoundCount = count;
+            for (Query query : this.queries) {
+                if (query.attribute != null && !names.contains(query.attribute)) {
+                    names.add(query.attribute);
+                }
+                for (DojSelectorEngine.Chain chain : query.chains) {
+                    for (int index = 0; index < chain.size(); ++index) {
+                        for (DojCssSelector selector : chain.getCompound(index)) {
+                            if (selector.getType() == DojCssSelector.Type.ATTRIBUTE && !names.contains(selector.getAttribute())) {
+                                names.add(selector.getAttribute());
+                            }
+                        }
+                    }
+                }
+            }
+            this.attributeNames = names.toArray(new String[names.size()]);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            Frame frame = stack[depth];
+            if (frame == null) {
+                frame = new Frame(attributeNames.length, compoundCount);
+                stack[depth] = frame;
+            }
+            frame.tag = qName.toLowerCase(Locale.ENGLISH);
+            for (int index = 0; index < attributeNames.length; ++index) {
+                String value = attributes.getValue(attributeNames[index]);
+                frame.values[index] = (value == null ? "" : value);
+            }
+            for (int index = 0; index < queries.length; ++index) {
+                Query query = queries[index];
+                if (!matches(query, offsets[index], frame, depth == 0 ? null : stack[depth - 1])) {
+                    continue;
+                }
+                if (query.attribute != null) {
+                    query.listener.matched(frame.values[indexOf(query.attribute)]);
+                } else {
+                    TextCollector collector = new TextCollector(query, pending.get(index), depth);
+                    collector.pending.add(collector);
+                    open.add(collector);
+                }
+            }
+            ++depth;
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (depth == 0) {
+                return;
+            }
+            --depth;
+            while (!open.isEmpty() && open.get(open.size() - 1).depth == depth) {
+                TextCollector closed = open.remove(open.size() - 1);
+                closed.open = false;
+                // Pass the texts of the query up to the first element that's still open
+                while (!closed.pending.isEmpty() && !closed.pending.peekFirst().open) {
+                    TextCollector collector = closed.pending.pollFirst();
+                    String text = collector.text.toString();
+                    collector.query.listener.matched(collector.query.trim ? Doj.normalizeWhitespace(text) : text);
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] characters, int start, int length) throws SAXException {
+            for (int index = 0, size = open.size(); index < size; ++index) {
+                open.get(index).text.append(characters, start, length);
+            }
+        }
+
+        /**
+         * Works out the states of the frame for the chains of the query and
+         * checks whether the element matches one of them.
+         * @param offsets the offsets of the chains in the states
+         * @param parent the frame of the parent or null for the root
+         */
+        private boolean matches(Query query, int[] offsets, Frame frame, Frame parent) {
+            boolean matches = false;
+            for (int chainIndex = 0; chainIndex < query.chains.length; ++chainIndex) {
+                DojSelectorEngine.Chain chain = query.chains[chainIndex];
+                int offset = offsets[chainIndex];
+                for (int index = 0; index < chain.size(); ++index) {
+                    int state = offset + index;
+                    boolean before;
+                    if (index == 0) {
+                        before = true;
+                    } else if (parent == null) {
+                        before = false;
+                    } else if (chain.getCombinator(index) == DojCssSelector.Type.CHILD) {
+                        before = parent.matched[state - 1];
+                    } else {
+                        before = parent.reached[state - 1];
+                    }
+                    boolean matched = before && matches(frame, chain.getCompound(index));
+                    frame.matched[state] = matched;
+                    frame.reached[state] = matched || (parent != null && parent.reached[state]);
+                }
+                matches |= (chain.size() > 0 && frame.matched[offset + chain.size() - 1]);
+            }
+            return matches;
+        }
+
+        private boolean matches(Frame frame, DojCssSelector[] compound) {
+            for (DojCssSelector selector : compound) {
+                switch (selector.getType()) {
+                    case ELEMENT:
+                        if (!selector.getValue().equalsIgnoreCase(frame.tag)) {
+                            return false;
+                        }
+                        break;
+                    case HTML_CLASS:
+                        if (!MatchType.CONTAINED_WITH_WHITESPACE.isMatch(frame.values[1], selector.getValue())) {
+                            return false;
+                        }
+                        break;
+                    case ID:
+                        if (!MatchType.EQUALS.isMatch(frame.values[0], selector.getValue())) {
+                            return false;
+                        }
+                        break;
+                    case ATTRIBUTE:
+                        if (!selector.getMatchType().isMatch(frame.values[indexOf(selector.getAttribute())], selector.getValue())) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return true;
+        }
+
+        private int indexOf(String attribute) {
+            for (int index = 0; index < attributeNames.length; ++index) {
+                if (attributeNames[index].equals(attribute)) {
+                    return index;
+                }
+            }
+            throw new IllegalStateException("Attribute " + attribute + " is not kept");
+        }
+    }
+
+}
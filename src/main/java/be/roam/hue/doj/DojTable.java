@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The values extracted by {@link Doj#extract(FieldSpec[])}: a row per
+ * context element and a column per field.
+ * <p>
+ * The values are stored by column. A table is immutable: the columns it
+ * returns are copies.
+ * </p>
+ */
+public final class DojTable {
+
+    private final String[] names;
+
+    private final Map<String, Integer> indices;
+
+    private final String[][] columns;
+
+    private final int rowCount;
+
+    /**
+     * Creates a table.
+     * @param names the names of the columns
+     * @param columns the values, by column - the arrays are not copied
+     * @param rowCount the number of rows
+     * @throws IllegalArgumentException when two columns have the same name
+     */
+    DojTable(String[] names, String[][] columns, int rowCount) {
+        this.names = names;
+        this.columns = columns;
+        this.rowCount = rowCount;
+        this.indices = new HashMap<String, Integer>(names.length * 2);
+        for (int index = 0; index < names.length; ++index) {
+            if (indices.put(names[index], index) != null) {
+                throw new IllegalArgumentException("There are two fields named " + names[index]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows.
+     * @return the number of rows - the number of context elements
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the number of columns.
+     * @return the number of columns - the number of fields
+     */
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    /**
+     * Returns the names of the columns.
+     * @return the names of the fields, in the order in which they were passed
+     */
+    public String[] getColumnNames() {
+        return names.clone();
+    }
+
+    /**
+     * Returns the values of a column.
+     * @param column the index of the column
+     * @return the values of the column, one per row
+     */
+    public String[] getColumn(int column) {
+        return columns[column].clone();
+    }
+
+    /**
+     * Returns the values of a column.
+     * @param name the name of the column
+     * @return the values of the column, one per row
+     * @throws IllegalArgumentException when there's no such column
+     */
+    public String[] getColumn(String name) {
+        return getColumn(indexOf(name));
+    }
+
+    /**
+     * Returns a single value.
+     * @param row the index of the row
+     * @param column the index of the column
+     * @return the value
+     */
+    public String get(int row, int column) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + ", row count " + rowCount);
+        }
+        return columns[column][row];
+    }
+
+    /**
+     * Returns a single value.
+     * @param row the index of the row
+     * @param name the name of the column
+     * @return the value
+     * @throws IllegalArgumentException when there's no such column
+     */
+    public String get(int row, String name) {
+        return get(row, indexOf(name));
+    }
+
+    /**
+     * Returns the values of a row.
+     * @param row the index of the row
+     * @return the values by the name of the column, in the order of the
+     * columns
+     */
+    public Map<String, String> getRow(int row) {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (int column = 0; column < names.length; ++column) {
+            values.put(names[column], get(row, column));
+        }
+        return values;
+    }
+
+    private int indexOf(String name) {
+        Integer index = indices.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException("There's no column named " + name);
+        }
+        return index;
+    }
+
+}
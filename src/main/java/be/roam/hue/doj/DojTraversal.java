@@ -0,0 +1,702 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Node;
+
+/**
+ * Turns context elements into new (unique) context elements, keeping only
+ * those accepted by a filter - the traversals and filters of Doj.
+ * <p>
+ * A Doj applies a single traversal or filter right away and reports it to
+ * the metrics (see {@link DojMetrics}) under its operation name, with the
+ * number of elements it examined. A lazy Doj (see {@link Doj#lazy()}) chains
+ * the same traversals and checks the filters following a traversal while it
+ * runs.
+ * </p>
+ */
+abstract class DojTraversal {
+
+    private static final HtmlElement[] NO_ELEMENTS = new HtmlElement[0];
+
+    /**
+     * Keeps the context elements themselves: used for filters that aren't
+     * preceded by another traversal.
+     */
+    static final DojTraversal CONTEXT = new ContextTraversal();
+
+    private final String operation;
+
+    /**
+     * @param operation the name of the Doj method, as reported to the metrics
+     */
+    DojTraversal(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * @return the name of the Doj method, as reported to the metrics
+     */
+    final String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Describes the arguments of the traversal for the metrics - only called
+     * when metrics are active.
+     * @return the selector, tag or attribute to report or null
+     */
+    abstract String describe();
+
+    /**
+     * Applies the traversal to the context elements.
+     * @param context the context elements
+     * @param filter the filter the resulting elements should pass or null
+     * @param visited the counter to add the number of elements examined to
+     * at index 0
+     * @return the unique resulting elements
+     */
+    abstract DojElements apply(DojElements context, DojFilter filter, int[] visited);
+
+    /**
+     * Returns the first element {@link #apply(DojElements, DojFilter, int[])}
+     * would return or null if there's none.
+     */
+    HtmlElement first(DojElements context, DojFilter filter, int[] visited) {
+        DojElements elements = apply(context, filter, visited);
+        return elements.size() == 0 ? null : elements.get(0);
+    }
+
+    /**
+     * See {@link Doj#get(be.roam.hue.doj.CompiledSelector)}.
+     */
+    static DojTraversal select(CompiledSelector selector) {
+        return new SelectorTraversal(selector);
+    }
+
+    /**
+     * See {@link Doj#getById(java.lang.String)}.
+     */
+    static DojTraversal byId(String id) {
+        return new IdTraversal(id);
+    }
+
+    /**
+     * See {@link Doj#getScopedById(java.lang.String)}.
+     */
+    static DojTraversal byScopedId(String id) {
+        return new ScopedIdTraversal(id);
+    }
+
+    /**
+     * See {@link Doj#getByTag(java.lang.String)}.
+     */
+    static DojTraversal byTag(String tag) {
+        return new TagTraversal(tag);
+    }
+
+    /**
+     * See {@link Doj#getByAttribute(java.lang.String, be.roam.hue.doj.MatchType, java.lang.String)}.
+     */
+    static DojTraversal byAttribute(String attribute, MatchType matchType, String value) {
+        return new AttributeTraversal(attribute, matchType, value);
+    }
+
+    /**
+     * See {@link Doj#getByAttributeMatching(java.lang.String, java.util.regex.Pattern)}.
+     */
+    static DojTraversal byAttributeMatching(String attribute, DojPattern pattern) {
+        return new AttributePatternTraversal(attribute, pattern);
+    }
+
+    /**
+     * See {@link Doj#next(java.lang.String)} and {@link Doj#previous(java.lang.String)}.
+     * @param next true for the next siblings, false for the previous ones
+     * @param tag the tag to match or null to match any element
+     */
+    static DojTraversal sibling(boolean next, String tag) {
+        return new SiblingTraversal(next, tag);
+    }
+
+    /**
+     * See {@link Doj#parent(java.lang.String)}.
+     * @param tag the tag to match or null for the direct parent
+     */
+    static DojTraversal parent(String tag) {
+        return new ParentTraversal(tag);
+    }
+
+    /**
+     * See {@link Doj#withTag(java.lang.String)}.
+     */
+    static Filter withTag(final String tag) {
+        return new Filter("withTag") {
+
+            String describe() {
+                return tag;
+            }
+
+            public boolean accept(HtmlElement element) {
+                return tag.equalsIgnoreCase(element.getTagName());
+            }
+        };
+    }
+
+    /**
+     * See {@link Doj#withAttribute(java.lang.String, be.roam.hue.doj.MatchType, java.lang.String)}.
+     */
+    static Filter withAttribute(final String key, final MatchType matchType, final String value) {
+        return new Filter("withAttribute") {
+
+            String describe() {
+                return DojTraversal.describe(key, matchType, value);
+            }
+
+            public boolean accept(HtmlElement element) {
+                return matchType.isMatch(element.getAttribute(key), value);
+            }
+        };
+    }
+
+    /**
+     * See {@link Doj#withAttributeMatching(java.lang.String, java.util.regex.Pattern)}.
+     */
+    static Filter withAttributeMatching(final String key, final DojPattern pattern) {
+        return new Filter("withAttributeMatching") {
+
+            String describe() {
+                return key + " " + pattern.getPattern().pattern();
+            }
+
+            public boolean accept(HtmlElement element) {
+                return pattern.matches(element.getAttribute(key));
+            }
+        };
+    }
+
+    /**
+     * See {@link Doj#withTextContaining(java.lang.String)}.
+     */
+    static Filter withTextContaining(final String textToContain) {
+        final DojPageState.Texts texts = new DojPageState.Texts();
+        return new Filter("withTextContaining") {
+
+            String describe() {
+                return textToContain;
+            }
+
+            public boolean accept(HtmlElement element) {
+                String text = texts.asText(element);
+                return text != null && text.contains(textToContain);
+            }
+        };
+    }
+
+    /**
+     * See {@link Doj#withTextMatching(java.util.regex.Pattern)}.
+     */
+    static Filter withTextMatching(final DojPattern pattern) {
+        final DojPageState.Texts texts = new DojPageState.Texts();
+        return new Filter("withTextMatching") {
+
+            String describe() {
+                return pattern.getPattern().pattern();
+            }
+
+            public boolean accept(HtmlElement element) {
+                String text = texts.asText(element);
+                return text != null && pattern.matches(text);
+            }
+        };
+    }
+
+    /**
+     * Returns a filter accepting the elements accepted by both filters.
+     */
+    static DojFilter both(final DojFilter first, final DojFilter second) {
+        return new DojFilter() {
+
+            public boolean accept(HtmlElement element) {
+                return first.accept(element) && second.accept(element);
+            }
+        };
+    }
+
+    /**
+     * Describes an attribute match for the metrics.
+     */
+    static String describe(String attribute, MatchType matchType, String value) {
+        return matchType == MatchType.EXISTING ? attribute : attribute + " " + matchType + " " + value;
+    }
+
+    /**
+     * A filter of Doj, named like a traversal.
+     */
+    abstract static class Filter implements DojFilter {
+
+        private final String operation;
+
+        /**
+         * @param operation the name of the Doj method, as reported to the
+         * metrics
+         */
+        Filter(String operation) {
+            this.operation = operation;
+        }
+
+        /**
+         * @return the name of the Doj method, as reported to the metrics
+         */
+        final String getOperation() {
+            return operation;
+        }
+
+        /**
+         * Describes the arguments of the filter for the metrics - only called
+         * when metrics are active.
+         * @return the tag, text, pattern or attribute to report
+         */
+        abstract String describe();
+    }
+
+    private static void addVisits(int[] visited, int count) {
+        if (visited != null) {
+            visited[0] += count;
+        }
+    }
+
+    /**
+     * Collects the unique elements accepted by a filter, in the order in
+     * which they are added.
+     */
+    private static final class Collector {
+
+        private final DojFilter filter;
+
+        private final Map<HtmlElement, Boolean> seen;
+
+        private final List<HtmlElement> elements = new ArrayList<HtmlElement>();
+
+        /**
+         * @param filter the filter to apply or null
+         * @param unique true when the elements are known to be added only once
+         */
+        Collector(DojFilter filter, boolean unique) {
+            this.filter = filter;
+            this.seen = (unique ? null : new IdentityHashMap<HtmlElement, Boolean>());
+        }
+
+        void add(HtmlElement element) {
+            if (element == null || (seen != null && seen.put(element, Boolean.TRUE) != null)) {
+                return;
+            }
+            if (filter == null || filter.accept(element)) {
+                elements.add(element);
+            }
+        }
+
+        DojElements toElements() {
+            return DojElements.of(elements.isEmpty() ? NO_ELEMENTS : elements.toArray(new HtmlElement[elements.size()]));
+        }
+    }
+
+    private static final class ContextTraversal extends DojTraversal {
+
+        ContextTraversal() {
+            super("context");
+        }
+
+        String describe() {
+            return null;
+        }
+
+        DojElements apply(DojElements context, DojFilter filter, int[] visited) {
+            addVisits(visited, context.size());
+            if (filter == null) {
+                return context;
+            }
+            Collector collector = new Collector(filter, true);
+            for (HtmlElement element : context) {
+                collector.add(element);
+            }
+            return collector.toElements();
+        }
+
+        HtmlElement first(DojElements context, DojFilter filter, int[] visited) {
+            int count = 0;
+            for (HtmlElement element : context) {
+                ++count;
+                if (filter == null || filter.accept(element)) {
+                    addVisits(visited, count);
+                    return element;
+                }
+            }
+            addVisits(visited, count);
+            return null;
+        }
+    }
+
+    private static final class SelectorTraversal extends DojTraversal {
+
+        private final CompiledSelector selector;
+
+        SelectorTraversal(CompiledSelector selector) {
+            super("get");
+            this.selector = selector;
+        }
+
+        String describe() {
+            return selector.getSelector();
+        }
+
+        DojElements apply(DojElements context, DojFilter filter, int[] visited) {
+            DojSelectorEngine.Chain[] chains = selector.getChains();
+            HtmlElement[] contextArray = context.asArray();
+            if (chains.length == 1) {
+                List<HtmlElement> selected = DojSelectorEngine.select(contextArray, chains[0], filter, visited);
+                return DojElements.of(selected.toArray(new HtmlElement[selected.size()]));
+            }
+            List<HtmlElement> selected = new ArrayList<HtmlElement>();
+            for (DojSelectorEngine.Chain chain : chains) {
+                selected.addAll(DojSelectorEngine.select(contextArray, chain, filter, visited));
+            }
+            return DojNodeNumbering.sortedElements(selected.toArray(new HtmlElement[selected.size()]));
+        }
+
+        HtmlElement first(DojElements context, DojFilter filter, int[] visited) {
+            return DojSelectorEngine.selectFirst(context.asArray(), selector.getChains(), filter, visited);
+        }
+    }
+
+    private static final class IdTraversal extends DojTraversal {
+
+        private final String id;
+
+        IdTraversal(String id) {
+            super("getById");
+            this.id = id;
+        }
+
+        String describe() {
+            return id;
+        }
+
+        DojElements apply(DojElements context, DojFilter filter, int[] visited) {
+            Collector collector = new Collector(filter, true);
+            collector.add(DojSelectorEngine.lookupId(context.asArray(), id, visited));
+            return collector.toElements();
+        }
+    }
+
+    private static final class ScopedIdTraversal extends DojTraversal {
+
+        private final String id;
+
+        ScopedIdTraversal(String id) {
+            super("getScopedById");
+            this.id = id;
+        }
+
+        String describe() {
+            return id;
+        }
+
+        DojElements apply(DojElements context, DojFilter filter, int[] visited) {
+            HtmlElement[] found = DojSelectorEngine.lookupIdWithin(context.asArray(), id, visited);
+            if (filter == null) {
+                return DojElements.of(found);
+            }
+            Collector collector = new Collector(filter, true);
+            for (HtmlElement element : found) {
+                collector.add(element);
+            }
+            return collector.toElements();
+        }
+    }
+
+    /**
+     * Walks the subtrees of the context elements - or uses the index of the
+     * page when it can - to find the descendants matching a condition. A
+     * subtree nested in that of another context element is only walked once.
+     */
+    private abstract static class DescendantTraversal extends DojTraversal {
+
+        DescendantTraversal(String operation) {
+            super(operation);
+        }
+
+        abstract boolean matches(HtmlElement element);
+
+        /**
+         * Returns the numbers of the elements that could match or null if the
+         * index can't help.
+         */
+        abstract int[] candidates(DojIndex index);
+
+        /**
+         * @return true when all candidates taken from the index match
+         */
+        boolean candidatesMatch() {
+            return false;
+        }
+
+        /**
+         * Returns the candidates taken from the index or null if the index
+         * can't help.
+         */
+        private DojElements indexed(HtmlElement[] context) {
+            DojIndex index = DojIndex.of(context);
+            int[] numbers = (index == null ? null : candidates(index));
+            return numbers == null ? null : index.descendantElements(context, numbers);
+        }
+
+        DojElements apply(DojElements context, DojFilter filter, int[] visited) {
+            HtmlElement[] contextArray = context.asArray();
+            DojElements indexed = indexed(contextArray);
+            if (indexed != null) {
+                addVisits(visited, indexed.size());
+                if (filter == null && candidatesMatch()) {
+                    return indexed;
+                }
+                Collector collector = new Collector(filter, true);
+                for (HtmlElement element : indexed) {
+                    if (matches(element)) {
+                        collector.add(element);
+                    }
+                }
+                return collector.toElements();
+            }
+            Collector collector = new Collector(filter, true);
+            Map<HtmlElement, Boolean> walked = DojSelectorEngine.walkedRoots(contextArray);
+            int count = 0;
+            for (HtmlElement root : contextArray) {
+                if (DojSelectorEngine.isWalked(root, walked)) {
+                    continue;
+                }
+                for (HtmlElement element = DojSelectorEngine.firstChildElement(root); element != null; element = DojSelectorEngine.nextElement(element, root, walked)) {
+                    ++count;
+                    if (matches(element)) {
+                        collector.add(element);
+                    }
+                }
+            }
+            addVisits(visited, count);
+            return collector.toElements();
+        }
+
+        HtmlElement first(DojElements context, DojFilter filter, int[] visited) {
+            HtmlElement[] contextArray = context.asArray();
+            DojElements indexed = indexed(contextArray);
+            int count = 0;
+            if (indexed != null) {
+                for (HtmlElement element : indexed) {
+                    ++count;
+                    if (matches(element) && (filter == null || filter.accept(element))) {
+                        addVisits(visited, count);
+                        return element;
+                    }
+                }
+                addVisits(visited, count);
+                return null;
+            }
+            Map<HtmlElement, Boolean> walked = DojSelectorEngine.walkedRoots(contextArray);
+            for (HtmlElement root : contextArray) {
+                if (DojSelectorEngine.isWalked(root, walked)) {
+                    continue;
+                }
+                for (HtmlElement element = DojSelectorEngine.firstChildElement(root); element != null; element = DojSelectorEngine.nextElement(element, root, walked)) {
+                    ++count;
+                    if (matches(element) && (filter == null || filter.accept(element))) {
+                        addVisits(visited, count);
+                        return element;
+                    }
+                }
+            }
+            addVisits(visited, count);
+            return null;
+        }
+    }
+
+    private static final class TagTraversal extends DescendantTraversal {
+
+        private final String tag;
+
+        TagTraversal(String tag) {
+            super("getByTag");
+            this.tag = tag;
+        }
+
+        String describe() {
+            return tag;
+        }
+
+        boolean matches(HtmlElement element) {
+            // Like HtmlElement.getElementsByTagName(tag)
+            return tag.equalsIgnoreCase(element.getLocalName());
+        }
+
+        int[] candidates(DojIndex index) {
+            return index.byTag(tag);
+        }
+
+        boolean candidatesMatch() {
+            return true;
+        }
+    }
+
+    private static final class AttributeTraversal extends DescendantTraversal {
+
+        private final String attribute;
+
+        private final MatchType matchType;
+
+        private final String value;
+
+        AttributeTraversal(String attribute, MatchType matchType, String value) {
+            super("getByAttribute");
+            this.attribute = attribute;
+            this.matchType = matchType;
+            this.value = value;
+        }
+
+        String describe() {
+            return DojTraversal.describe(attribute, matchType, value);
+        }
+
+        boolean matches(HtmlElement element) {
+            return matchType.isMatch(element.getAttribute(attribute), value);
+        }
+
+        int[] candidates(DojIndex index) {
+            return index.candidates(attribute, matchType, value);
+        }
+    }
+
+    private static final class AttributePatternTraversal extends DescendantTraversal {
+
+        private final String attribute;
+
+        private final DojPattern pattern;
+
+        AttributePatternTraversal(String attribute, DojPattern pattern) {
+            super("getByAttributeMatching");
+            this.attribute = attribute;
+            this.pattern = pattern;
+        }
+
+        String describe() {
+            return attribute + " " + pattern.getPattern().pattern();
+        }
+
+        boolean matches(HtmlElement element) {
+            return pattern.matches(element.getAttribute(attribute));
+        }
+
+        int[] candidates(DojIndex index) {
+            // The pattern might match the empty value of a missing attribute
+            return null;
+        }
+    }
+
+    /**
+     * Takes the first (matching) sibling of each context element. Without a
+     * tag, the context elements count as examined; with one, every sibling
+     * node passed does.
+     */
+    private static final class SiblingTraversal extends DojTraversal {
+
+        private final boolean next;
+
+        private final String tag;
+
+        SiblingTraversal(boolean next, String tag) {
+            super(next ? "next" : "previous");
+            this.next = next;
+            this.tag = tag;
+        }
+
+        String describe() {
+            return tag;
+        }
+
+        DojElements apply(DojElements context, DojFilter filter, int[] visited) {
+            Collector collector = new Collector(filter, false);
+            int count = 0;
+            for (HtmlElement element : context) {
+                DomNode node = sibling(element);
+                while (node != null && (node.getNodeType() != Node.ELEMENT_NODE || (tag != null && !node.getNodeName().equalsIgnoreCase(tag)))) {
+                    ++count;
+                    node = sibling(node);
+                }
+                if (node != null) {
+                    ++count;
+                    collector.add((HtmlElement) node);
+                }
+            }
+            addVisits(visited, tag == null ? context.size() : count);
+            return collector.toElements();
+        }
+
+        private DomNode sibling(DomNode node) {
+            return next ? node.getNextSibling() : node.getPreviousSibling();
+        }
+    }
+
+    /**
+     * Takes the parent or first ancestor with the tag of each context
+     * element. Without a tag, the context elements count as examined; with
+     * one, every ancestor passed does.
+     */
+    private static final class ParentTraversal extends DojTraversal {
+
+        private final String tag;
+
+        ParentTraversal(String tag) {
+            super("parent");
+            this.tag = tag;
+        }
+
+        String describe() {
+            return tag;
+        }
+
+        DojElements apply(DojElements context, DojFilter filter, int[] visited) {
+            Collector collector = new Collector(filter, false);
+            int count = 0;
+            for (HtmlElement element : context) {
+                HtmlElement parent = (HtmlElement) element.getParentNode();
+                while (tag != null && parent != null && !parent.getTagName().equalsIgnoreCase(tag)) {
+                    ++count;
+                    parent = (HtmlElement) parent.getParentNode();
+                }
+                if (parent != null) {
+                    ++count;
+                    collector.add(parent);
+                }
+            }
+            addVisits(visited, tag == null ? context.size() : count);
+            return collector.toElements();
+        }
+    }
+
+}
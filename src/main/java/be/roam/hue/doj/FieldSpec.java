@@ -0,0 +1,144 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+
+/**
+ * Describes a column extracted by {@link Doj#extract(FieldSpec[])}: which
+ * value to take from each context element - its text, trimmed text or an
+ * attribute - and optionally the selector of the descendant to take it from.
+ * <pre><code>
+ * DojTable products = Doj.on(page).get("#products tr").extract(
+ *      FieldSpec.trimmedText("name", "td.name"),
+ *      FieldSpec.attribute("link", "td.name a", "href"),
+ *      FieldSpec.attribute("id", null, "data-id"));
+ * </code></pre>
+ * <p>
+ * The value is taken from the first element matching the selector within the
+ * context element, as with {@link Doj#getFirst(java.lang.String)}; it's null
+ * when there's no such element. Without a selector, it's taken from the
+ * context element itself.
+ * </p>
+ */
+public final class FieldSpec {
+
+    private enum Source {
+        TEXT, TRIMMED_TEXT, ATTRIBUTE
+    }
+
+    private final String name;
+
+    private final CompiledSelector selector;
+
+    private final Source source;
+
+    private final String key;
+
+    private FieldSpec(String name, String selector, Source source, String key) {
+        if (name == null) {
+            throw new IllegalArgumentException("A field needs a name");
+        }
+        this.name = name;
+        this.selector = (selector == null ? null : DojCssSelector.compileCached(selector));
+        this.source = source;
+        this.key = key;
+    }
+
+    /**
+     * Creates a field holding the text (see {@link Doj#text()}).
+     * @param name the name of the field
+     * @param selector the selector of the element to take the text from
+     * within the context element or null to take the text of the context
+     * element itself
+     * @return the field
+     * @throws IllegalArgumentException when the selector is invalid
+     */
+    public static FieldSpec text(String name, String selector) {
+        return new FieldSpec(name, selector, Source.TEXT, null);
+    }
+
+    /**
+     * Creates a field holding the trimmed text (see {@link Doj#trimmedText()}).
+     * @param name the name of the field
+     * @param selector the selector of the element to take the text from
+     * within the context element or null to take the text of the context
+     * element itself
+     * @return the field
+     * @throws IllegalArgumentException when the selector is invalid
+     */
+    public static FieldSpec trimmedText(String name, String selector) {
+        return new FieldSpec(name, selector, Source.TRIMMED_TEXT, null);
+    }
+
+    /**
+     * Creates a field holding the value of an attribute (see
+     * {@link Doj#attribute(java.lang.String)}).
+     * @param name the name of the field
+     * @param selector the selector of the element to take the attribute
+     * from within the context element or null to take the attribute of the
+     * context element itself
+     * @param key the name of the attribute
+     * @return the field
+     * @throws IllegalArgumentException when the selector is invalid
+     */
+    public static FieldSpec attribute(String name, String selector, String key) {
+        return new FieldSpec(name, selector, Source.ATTRIBUTE, key);
+    }
+
+    /**
+     * Returns the name of the field.
+     * @return the name of the field
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the selector of the element the value is taken from.
+     * @return the selector or null when the value is taken from the context
+     * element itself
+     */
+    public String getSelector() {
+        return selector == null ? null : selector.getSelector();
+    }
+
+    CompiledSelector getCompiledSelector() {
+        return selector;
+    }
+
+    /**
+     * Returns the value of the field for the element it's taken from.
+     */
+    String valueOf(HtmlElement element) {
+        switch (source) {
+            case TEXT:
+                return element.getTextContent();
+            case TRIMMED_TEXT: {
+                String text = element.getTextContent();
+                return text == null ? null : Doj.normalizeWhitespace(text);
+            }
+            default:
+                return element.getAttribute(key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + source + (key == null ? "" : "[" + key + "]") + (selector == null ? "" : " of " + selector.getSelector());
+    }
+
+}
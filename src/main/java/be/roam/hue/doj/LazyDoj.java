@@ -0,0 +1,426 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Doj that records traversals and filters instead of executing them right
+ * away - see {@link Doj#lazy()}.
+ * <p>
+ * The recorded pipeline consists of stages: a traversal followed by the
+ * filters to apply to its result. The filters of a stage are checked while
+ * the traversal runs, so elements that are filtered out never end up in an
+ * intermediate array or Doj instance.
+ * </p>
+ * <p>
+ * The pipeline is executed once, by the first method that needs the context
+ * elements. All methods that aren't traversals or filters work on the
+ * result of that execution.
+ * </p>
+ */
+final class LazyDoj extends Doj {
+
+    private static final Stage[] NO_STAGES = new Stage[0];
+
+    private final Doj source;
+
+    private final Stage[] stages;
+
+    private volatile Doj result;
+
+    LazyDoj(Doj source) {
+        this(source, NO_STAGES);
+    }
+
+    private LazyDoj(Doj source, Stage[] stages) {
+        this.source = source;
+        this.stages = stages;
+    }
+
+    /**
+     * Returns a new pipeline with the traversal added as a new stage. Once
+     * this pipeline has been executed, the new one starts from its result.
+     */
+    private LazyDoj then(DojTraversal traversal) {
+        Doj evaluated = result;
+        if (evaluated != null) {
+            return new LazyDoj(evaluated, new Stage[]{new Stage(traversal, null)});
+        }
+        Stage[] newStages = Arrays.copyOf(stages, stages.length + 1);
+        newStages[stages.length] = new Stage(traversal, null);
+        return new LazyDoj(source, newStages);
+    }
+
+    /**
+     * Returns a new pipeline with the filter fused into the last stage. Once
+     * this pipeline has been executed, the new one starts from its result.
+     */
+    private Doj filter(DojTraversal.Filter filter) {
+        Doj evaluated = result;
+        if (evaluated != null) {
+            return new LazyDoj(evaluated, new Stage[]{new Stage(filter)});
+        }
+        if (stages.length == 0) {
+            return new LazyDoj(source, new Stage[]{new Stage(filter)});
+        }
+        Stage[] newStages = stages.clone();
+        newStages[stages.length - 1] = stages[stages.length - 1].with(filter);
+        return new LazyDoj(source, newStages);
+    }
+
+    /**
+     * Executes the pipeline - only the first time it's called.
+     * @return the resulting (non-lazy) Doj instance
+     */
+    Doj evaluate() {
+        Doj evaluated = result;
+        if (evaluated == null) {
+            evaluated = onUnique(execute(stages.length));
+            result = evaluated;
+        }
+        return evaluated;
+    }
+
+    /**
+     * Executes the given number of stages of the pipeline, reporting each
+     * stage to the metrics, if any.
+     */
+    private DojElements execute(int stageCount) {
+        DojMetrics metrics = DojMetrics.active();
+        DojElements elements = source.elements();
+        for (int index = 0; index < stageCount && elements.size() > 0; ++index) {
+            Stage stage = stages[index];
+            long start = (metrics == null ? 0L : System.nanoTime());
+            int[] visited = new int[1];
+            DojElements stageResult = stage.traversal.apply(elements, stage.filter, visited);
+            if (metrics != null) {
+                metrics.record(stage.getOperation(), stage.describe(), elements.size(), visited[0], stageResult.size(), System.nanoTime() - start);
+            }
+            elements = stageResult;
+        }
+        return elements;
+    }
+
+    /**
+     * Executes the pipeline, but lets the last stage stop at the first
+     * element - unless the pipeline has been executed already.
+     */
+    public Doj findFirst() {
+        return findFirst(null);
+    }
+
+    /**
+     * Executes the pipeline, but lets the last stage stop at the first
+     * element - unless the pipeline has been executed already.
+     * @param operation the name to report the last stage under or null to
+     * use the name of its traversal or filter
+     */
+    private Doj findFirst(String operation) {
+        Doj evaluated = result;
+        if (evaluated != null || stages.length == 0) {
+            return (evaluated != null ? evaluated : source).first();
+        }
+        DojElements elements = execute(stages.length - 1);
+        if (elements.size() == 0) {
+            return EMPTY;
+        }
+        Stage last = stages[stages.length - 1];
+        DojMetrics metrics = DojMetrics.active();
+        long start = (metrics == null ? 0L : System.nanoTime());
+        int[] visited = new int[1];
+        HtmlElement first = last.traversal.first(elements, last.filter, visited);
+        if (metrics != null) {
+            metrics.record(operation == null ? last.getOperation() : operation, last.describe(), elements.size(), visited[0], first == null ? 0 : 1, System.nanoTime() - start);
+        }
+        return first == null ? EMPTY : onUnique(new HtmlElement[]{first});
+    }
+
+    public Doj lazy() {
+        return this;
+    }
+
+    public Doj unique() {
+        // The result of every stage is unique
+        return this;
+    }
+
+    public Doj indexed() {
+        source.indexed();
+        return this;
+    }
+
+    public Doj textCached() {
+        source.textCached();
+        return this;
+    }
+
+    public Doj get(String selector) {
+        return get(DojCssSelector.compileCached(selector));
+    }
+
+    public Doj get(CompiledSelector selector) {
+        return then(DojTraversal.select(selector));
+    }
+
+    public Doj getFirst(CompiledSelector selector) {
+        return then(DojTraversal.select(selector)).findFirst("getFirst");
+    }
+
+    public Doj getById(String id) {
+        return then(DojTraversal.byId(id));
+    }
+
+    public Doj getScopedById(String id) {
+        return then(DojTraversal.byScopedId(id));
+    }
+
+    public Doj getByTag(String tag) {
+        return then(DojTraversal.byTag(tag));
+    }
+
+    public Doj getByAttribute(String attribute, MatchType matchType, String value) {
+        return then(DojTraversal.byAttribute(attribute, matchType, value));
+    }
+
+    public Doj getByAttributeMatching(String attribute, String pattern) {
+        return then(DojTraversal.byAttributeMatching(attribute, DojPattern.compileCached(pattern)));
+    }
+
+    public Doj getByAttributeMatching(String attribute, Pattern pattern) {
+        return then(DojTraversal.byAttributeMatching(attribute, DojPattern.of(pattern)));
+    }
+
+    public Doj next() {
+        return then(DojTraversal.sibling(true, null));
+    }
+
+    public Doj next(String tag) {
+        return then(DojTraversal.sibling(true, tag));
+    }
+
+    public Doj previous() {
+        return then(DojTraversal.sibling(false, null));
+    }
+
+    public Doj previous(String tag) {
+        return then(DojTraversal.sibling(false, tag));
+    }
+
+    public Doj parent() {
+        return then(DojTraversal.parent(null));
+    }
+
+    public Doj parent(String tag) {
+        return then(DojTraversal.parent(tag));
+    }
+
+    public Doj withTag(String tag) {
+        return filter(DojTraversal.withTag(tag));
+    }
+
+    public Doj withAttribute(String key, MatchType matchType, String value) {
+        return filter(DojTraversal.withAttribute(key, matchType, value));
+    }
+
+    public Doj withAttributeMatching(String key, String pattern) {
+        return filter(DojTraversal.withAttributeMatching(key, DojPattern.compileCached(pattern)));
+    }
+
+    public Doj withAttributeMatching(String key, Pattern pattern) {
+        return filter(DojTraversal.withAttributeMatching(key, DojPattern.of(pattern)));
+    }
+
+    public Doj withTextContaining(String textToContain) {
+        return filter(DojTraversal.withTextContaining(textToContain));
+    }
+
+    public Doj withTextMatching(String pattern) {
+        return filter(DojTraversal.withTextMatching(DojPattern.compileCached(pattern)));
+    }
+
+    public Doj withTextMatching(Pattern pattern) {
+        return filter(DojTraversal.withTextMatching(DojPattern.of(pattern)));
+    }
+
+    public Doj get(int index) {
+        return evaluate().get(index);
+    }
+
+    public HtmlElement getElement(int index) {
+        return evaluate().getElement(index);
+    }
+
+    public Doj remove(int index) {
+        return evaluate().remove(index);
+    }
+
+    public boolean hasClass(String valueToContain) {
+        return evaluate().hasClass(valueToContain);
+    }
+
+    public boolean is(String tag) {
+        return evaluate().is(tag);
+    }
+
+    public Page check() {
+        return evaluate().check();
+    }
+
+    public Page uncheck() {
+        return evaluate().uncheck();
+    }
+
+    public Page select() {
+        return evaluate().select();
+    }
+
+    public Page deselect() {
+        return evaluate().deselect();
+    }
+
+    public boolean hasAttribute(String key, MatchType matchType, String value) {
+        return evaluate().hasAttribute(key, matchType, value);
+    }
+
+    public String text() {
+        return evaluate().text();
+    }
+
+    public String[] texts() {
+        return evaluate().texts();
+    }
+
+    public String trimmedText() {
+        return evaluate().trimmedText();
+    }
+
+    public String[] trimmedTexts() {
+        return evaluate().trimmedTexts();
+    }
+
+    public String attribute(String key) {
+        return evaluate().attribute(key);
+    }
+
+    public String[] attributes(String key) {
+        return evaluate().attributes(key);
+    }
+
+    public Doj attribute(String key, String value) {
+        evaluate().attribute(key, value);
+        return this;
+    }
+
+    public String value() {
+        return evaluate().value();
+    }
+
+    public Doj value(String value) {
+        evaluate().value(value);
+        return this;
+    }
+
+    public String[] values() {
+        return evaluate().values();
+    }
+
+    public Page click() throws IOException, ClassCastException {
+        return evaluate().click();
+    }
+
+    public int size() {
+        return evaluate().size();
+    }
+
+    public boolean isEmpty() {
+        return evaluate().isEmpty();
+    }
+
+    public Doj first() {
+        return evaluate().first();
+    }
+
+    public Doj last() {
+        return evaluate().last();
+    }
+
+    public Doj slice(int startIndex, int nrItems) {
+        return evaluate().slice(startIndex, nrItems);
+    }
+
+    public HtmlElement[] sliceElements(int startIndex, int nrItems) {
+        return evaluate().sliceElements(startIndex, nrItems);
+    }
+
+    public HtmlElement[] allElements() {
+        return evaluate().allElements();
+    }
+
+    public Doj verifyNotEmpty() throws DojIsEmptyException {
+        evaluate().verifyNotEmpty();
+        return this;
+    }
+
+    /**
+     * A traversal and the filters to apply while it runs.
+     * <p>
+     * A stage is reported to the metrics as a whole: under the name of its
+     * traversal or - if it only filters the context elements - under the
+     * name of its first filter.
+     * </p>
+     */
+    private static final class Stage {
+
+        private final DojTraversal traversal;
+
+        private final DojTraversal.Filter leadingFilter;
+
+        private final DojFilter filter;
+
+        Stage(DojTraversal traversal, DojFilter filter) {
+            this(traversal, null, filter);
+        }
+
+        Stage(DojTraversal.Filter filter) {
+            this(DojTraversal.CONTEXT, filter, filter);
+        }
+
+        private Stage(DojTraversal traversal, DojTraversal.Filter leadingFilter, DojFilter filter) {
+            this.traversal = traversal;
+            this.leadingFilter = leadingFilter;
+            this.filter = filter;
+        }
+
+        Stage with(DojFilter additionalFilter) {
+            return new Stage(traversal, leadingFilter, filter == null ? additionalFilter : DojTraversal.both(filter, additionalFilter));
+        }
+
+        String getOperation() {
+            return leadingFilter == null ? traversal.getOperation() : leadingFilter.getOperation();
+        }
+
+        String describe() {
+            return leadingFilter == null ? traversal.describe() : leadingFilter.describe();
+        }
+    }
+
+}
@@ -20,6 +20,11 @@ import org.apache.commons.lang3.StringUtils;
 /**
  * Enumeration of the possible match types for attribute selectors as defined
  * in the current version of the W3C CSS 3 working draft.
+ * <p>
+ * Matching never allocates: the (cheap) comparison is made first and a blank
+ * value - which never matches - is only ruled out when the comparison
+ * succeeds.
+ * </p>
  * @author Kevin Wetzels
  */
 public enum MatchType {
@@ -35,46 +40,68 @@ public enum MatchType {
 
         @Override
         public boolean isMatch(String value, String valueToLookFor) {
-            return !StringUtils.isBlank(value) && value.equals(valueToLookFor);
+            return value != null && value.equals(valueToLookFor) && !StringUtils.isBlank(value);
         }
     },
     CONTAINED_WITH_WHITESPACE() {
 
         @Override
         public boolean isMatch(String value, String valueToLookFor) {
-            return !StringUtils.isBlank(value) && (" " + value + " ").contains(" " + valueToLookFor + " ");
+            return value != null && containsDelimited(value, String.valueOf(valueToLookFor), ' ') && !StringUtils.isBlank(value);
         }
     },
     STARTING_WITH() {
 
         @Override
         public boolean isMatch(String value, String valueToLookFor) {
-            return !StringUtils.isBlank(value) && value.startsWith(valueToLookFor);
+            return value != null && valueToLookFor != null && value.startsWith(valueToLookFor) && !StringUtils.isBlank(value);
         }
     },
     ENDING_WITH() {
 
         @Override
         public boolean isMatch(String value, String valueToLookFor) {
-            return !StringUtils.isBlank(value) && value.endsWith(valueToLookFor);
+            return value != null && valueToLookFor != null && value.endsWith(valueToLookFor) && !StringUtils.isBlank(value);
         }
     },
     CONTAINING() {
 
         @Override
         public boolean isMatch(String value, String valueToLookFor) {
-            return !StringUtils.isBlank(value) && value.contains(valueToLookFor);
+            return value != null && valueToLookFor != null && value.contains(valueToLookFor) && !StringUtils.isBlank(value);
         }
     },
     CONTAINED_WITH_HYPHENS() {
 
         @Override
         public boolean isMatch(String value, String valueToLookFor) {
-            return !StringUtils.isBlank(value) && ("-" + value + "-").contains("-" + valueToLookFor + "-");
+            return value != null && containsDelimited(value, String.valueOf(valueToLookFor), '-') && !StringUtils.isBlank(value);
         }
     };
 
     public boolean isMatch(String value, String valueToLookFor) {
         return false;
     }
+
+    /**
+     * Checks whether the token occurs in the value, delimited on both sides
+     * by the delimiter or the start/end of the value - which is the same as
+     * checking whether <code>delimiter + value + delimiter</code> contains
+     * <code>delimiter + token + delimiter</code>, without building either.
+     */
+    private static boolean containsDelimited(String value, String token, char delimiter) {
+        int valueLength = value.length();
+        int tokenLength = token.length();
+        for (int index = value.indexOf(token); index >= 0; index = value.indexOf(token, index + 1)) {
+            int end = index + tokenLength;
+            if ((index == 0 || value.charAt(index - 1) == delimiter)
+                    && (end == valueLength || value.charAt(end) == delimiter)) {
+                return true;
+            }
+            if (end >= valueLength) {
+                return false;
+            }
+        }
+        return false;
+    }
 }
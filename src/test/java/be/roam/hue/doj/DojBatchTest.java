@@ -0,0 +1,187 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test for {@link DojBatch}.
+ */
+public class DojBatchTest {
+
+    private static List<HtmlPage> pages;
+
+    @Test
+    public void fields() {
+        Map<String, String> selectors = new LinkedHashMap<String, String>();
+        selectors.put("title", "h2 a");
+        selectors.put("select", "#sidebar select");
+        selectors.put("missing", "bdo");
+        DojBatch batch = DojBatch.forkJoin(2);
+        DojBatch.Results<Map<String, String>> results = batch.run(pages, DojBatch.fields(selectors));
+        Set<HtmlPage> seen = new HashSet<HtmlPage>();
+        while (results.hasNext()) {
+            DojBatch.Result<Map<String, String>> result = results.next();
+            assertFalse(result.isFailed());
+            assertTrue(seen.add(result.getPage()));
+            Map<String, String> values = result.getValue();
+            assertEquals("Article title 1", values.get("title"));
+            assertEquals(Doj.on(result.getPage()).get("#sidebar select").first().trimmedText(), values.get("select"));
+            assertNull(values.get("missing"));
+            assertTrue(values.containsKey("missing"));
+        }
+        assertEquals(pages.size(), seen.size());
+        assertEquals(pages.size(), results.getMetrics().getPages());
+        assertEquals(0, results.getMetrics().getFailures());
+        batch.shutdown();
+    }
+
+    @Test
+    public void failuresAreIsolated() {
+        final HtmlPage failing = pages.get(2);
+        DojBatch batch = DojBatch.virtualThreads(3);
+        DojBatch.Results<Integer> results = batch.run(pages, new DojBatch.Extractor<Integer>() {
+
+            public Integer extract(Doj page) {
+                if (page.firstElement().getPage() == failing) {
+                    throw new IllegalStateException("Failing on purpose");
+                }
+                return page.get("li").size();
+            }
+        });
+        int failures = 0;
+        while (results.hasNext()) {
+            DojBatch.Result<Integer> result = results.next();
+            if (result.isFailed()) {
+                ++failures;
+                assertSame(failing, result.getPage());
+                assertTrue(result.getFailure() instanceof IllegalStateException);
+                assertNull(result.getValue());
+            } else {
+                assertEquals(Integer.valueOf(Doj.on(result.getPage()).get("li").size()), result.getValue());
+            }
+        }
+        assertEquals(1, failures);
+        DojBatch.Metrics metrics = results.getMetrics();
+        assertEquals(pages.size(), metrics.getPages());
+        assertEquals(1, metrics.getFailures());
+        assertTrue(metrics.getMaximumLatencyNanos() >= metrics.getLatencyPercentileNanos(50.0));
+        assertTrue(metrics.getThroughput() > 0.0);
+        batch.shutdown();
+    }
+
+    @Test
+    public void errorsAreRethrown() {
+        DojBatch batch = DojBatch.forkJoin(2);
+        DojBatch.Results<Integer> results = batch.run(pages, new DojBatch.Extractor<Integer>() {
+
+            public Integer extract(Doj page) {
+                throw new AssertionError("Fatal on purpose");
+            }
+        });
+        Error error = null;
+        try {
+            results.next();
+        } catch (AssertionError e) {
+            error = e;
+        } finally {
+            batch.shutdown();
+        }
+        // A fork-join pool rethrows a copy of the error, caused by the original
+        assertNotNull(error);
+    }
+
+    @Test
+    public void backPressure() throws Exception {
+        final AtomicInteger extracted = new AtomicInteger();
+        final AtomicInteger requested = new AtomicInteger();
+        Iterable<HtmlPage> counting = new Iterable<HtmlPage>() {
+
+            public Iterator<HtmlPage> iterator() {
+                final Iterator<HtmlPage> iterator = pages.iterator();
+                return new Iterator<HtmlPage>() {
+
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    public HtmlPage next() {
+                        requested.incrementAndGet();
+                        return iterator.next();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        DojBatch batch = new DojBatch(executor, 2);
+        DojBatch.Results<String> results = batch.run(counting, new DojBatch.Extractor<String>() {
+
+            public String extract(Doj page) {
+                extracted.incrementAndGet();
+                return page.getFirst("h2").trimmedText();
+            }
+        });
+        Thread.sleep(100);
+        assertEquals(2, requested.get());
+        assertEquals(2, extracted.get());
+        results.next();
+        assertEquals(3, requested.get());
+        int count = 1;
+        while (results.hasNext()) {
+            results.next();
+            ++count;
+        }
+        assertEquals(pages.size(), count);
+        assertFalse(results.hasNext());
+        batch.shutdown();
+        // The executor wasn't created by the batch
+        assertFalse(executor.isShutdown());
+        executor.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maximumPendingShouldBePositive() {
+        new DojBatch(Executors.newSingleThreadExecutor(), 0);
+    }
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        pages = new ArrayList<HtmlPage>();
+        for (int index = 0; index < 6; ++index) {
+            pages.add((HtmlPage) client.getPage(DojBatchTest.class.getResource("/test.html")));
+        }
+    }
+}
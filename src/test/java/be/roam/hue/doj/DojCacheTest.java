@@ -0,0 +1,108 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test for {@link DojCache}.
+ */
+public class DojCacheTest {
+
+    @Test
+    public void getAndPut() {
+        DojCache<String, String> cache = new DojCache<String, String>(4);
+        assertNull(cache.get("a"));
+        cache.put("a", "A");
+        assertEquals("A", cache.get("a"));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        DojCache<String, String> cache = new DojCache<String, String>(2);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        // Touch "a" so "b" becomes the least recently used entry
+        cache.get("a");
+        cache.put("c", "C");
+        assertEquals(2, cache.size());
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("C", cache.get("c"));
+    }
+
+    @Test
+    public void keepsEntriesInUseWhileSweeping() {
+        DojCache<String, String> cache = new DojCache<String, String>(100);
+        cache.put("hot", "HOT");
+        for (int count = 0; count < 10000; ++count) {
+            cache.put(String.valueOf(count), "");
+            assertEquals("HOT", cache.get("hot"));
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(100, cache.size());
+        // Older entries are evicted, even though only a few are sampled
+        assertNull(cache.get("0"));
+        assertEquals("", cache.get("9999"));
+    }
+
+    @Test
+    public void clear() {
+        DojCache<String, String> cache = new DojCache<String, String>(2);
+        cache.put("a", "A");
+        cache.get("a");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void staysBoundedUnderConcurrentUse() throws Exception {
+        final DojCache<String, String> cache = new DojCache<String, String>(16);
+        Thread[] threads = new Thread[4];
+        for (int index = 0; index < threads.length; ++index) {
+            final int offset = index;
+            threads[index] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int count = 0; count < 10000; ++count) {
+                        String key = String.valueOf((count * 7 + offset) % 64);
+                        if (cache.get(key) == null) {
+                            cache.put(key, key);
+                        }
+                    }
+                }
+            };
+            threads[index].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.size() <= 16);
+        assertEquals(4 * 10000, cache.getHits() + cache.getMisses());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void maximumSizeShouldBePositive() {
+        new DojCache<String, String>(0);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for {@link DojCorpus}.
+ */
+public class DojCorpusTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] DELIMITER = "\n--\n".getBytes(UTF_8);
+
+    private File file;
+
+    private Map<String, String> selectors;
+
+    @Before
+    public void before() throws IOException {
+        file = File.createTempFile("doj-corpus", ".dat");
+        selectors = new LinkedHashMap<String, String>();
+        selectors.put("title", "h1");
+        selectors.put("price", "#product > .price");
+    }
+
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    @Test
+    public void scan() throws IOException {
+        StringBuilder corpus = new StringBuilder("\n--\n");
+        for (int index = 0; index < 50; ++index) {
+            corpus.append("<html><body><h1> Product ").append(index).append(" </h1>");
+            if (index % 2 == 0) {
+                corpus.append("<div id='product'><span class='price'>").append(index * 10).append("</span></div>");
+            }
+            corpus.append("</body></html>\n--\n");
+            if (index % 10 == 0) {
+                // Empty records are skipped
+                corpus.append("\n--\n");
+            }
+        }
+        write(corpus.toString());
+        CollectingSink sink = new CollectingSink();
+        // Small windows, so records are split over windows
+        long records = new DojCorpus(selectors, DELIMITER, UTF_8, 256).scan(file, 2, sink);
+        assertEquals(50, records);
+        assertEquals(50, sink.records.size());
+        assertEquals(0, sink.failures);
+        int index = 0;
+        for (Map<String, String> fields : sink.records.values()) {
+            assertEquals("Product " + index, fields.get("title"));
+            assertEquals(index % 2 == 0 ? String.valueOf(index * 10) : null, fields.get("price"));
+            ++index;
+        }
+    }
+
+    @Test
+    public void lastRecordWithoutDelimiter() throws IOException {
+        write("<h1>One</h1>\n--\n<h1>Two</h1>");
+        CollectingSink sink = new CollectingSink();
+        assertEquals(2, new DojCorpus(selectors, DELIMITER, UTF_8).scan(file, 1, sink));
+        assertEquals("Two", sink.records.get(16L).get("title"));
+    }
+
+    @Test
+    public void failuresGoToTheSink() throws IOException {
+        write("<h1>One</h1>\n--\n<h1>Two</h1>");
+        CollectingSink sink = new CollectingSink() {
+
+            @Override
+            public synchronized void record(long offset, Map<String, String> fields) {
+                throw new IllegalStateException("Full");
+            }
+        };
+        assertEquals(2, new DojCorpus(selectors, DELIMITER, UTF_8).scan(file, 1, sink));
+        assertEquals(2, sink.failures);
+    }
+
+    @Test(expected=IOException.class)
+    public void recordLargerThanWindow() throws IOException {
+        write("<h1>One</h1>\n--\n<h1>A title that doesn't fit in the window</h1>\n--\n<h1>Three</h1>");
+        new DojCorpus(selectors, DELIMITER, UTF_8, 32).scan(file, 1, new CollectingSink());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void unsupportedSelector() {
+        selectors.put("next", "h1 + p");
+        new DojCorpus(selectors, DELIMITER, UTF_8);
+    }
+
+    private void write(String content) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content.getBytes(UTF_8));
+        } finally {
+            output.close();
+        }
+    }
+
+    private static class CollectingSink implements DojCorpus.Sink {
+
+        private final Map<Long, Map<String, String>> records = new TreeMap<Long, Map<String, String>>();
+
+        private int failures;
+
+        public synchronized void record(long offset, Map<String, String> fields) {
+            records.put(offset, fields);
+        }
+
+        public synchronized void failed(long offset, Exception failure) {
+            ++failures;
+        }
+    }
+}
@@ -60,6 +60,143 @@ public class DojCssSelectorTest {
         assertMatch(groupedSelector, 2, "div", "#socks", " ", "a", ".off");
     }
 
+    @Test
+    public void compileCached() {
+        final String selector = "div.totally p.rocks.your, div#socks a.off";
+        CompiledSelector compiled = DojCssSelector.compileCached(selector);
+        assertSame(compiled, DojCssSelector.compileCached(selector));
+        assertEquals(selector, compiled.getSelector());
+        assertEquals(2, compiled.getGroups().size());
+        assertMatch(compiled.getGroups().get(0), "div", ".totally", " ", "p", ".rocks", ".your");
+        assertMatch(compiled.getGroups().get(1), "div", "#socks", " ", "a", ".off");
+    }
+
+    @Test
+    public void compileCached_countsHitsAndMisses() {
+        DojCache<String, CompiledSelector> cache = DojCssSelector.getCache();
+        final String selector = "blockquote.compile-cached-" + System.nanoTime();
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+        DojCssSelector.compileCached(selector);
+        assertTrue(cache.getMisses() > misses);
+        DojCssSelector.compileCached(selector);
+        assertTrue(cache.getHits() > hits);
+    }
+
+    @Test
+    public void withCombinators() {
+        List<DojCssSelector> selectors = new DojCssSelector().compile("ul.items > li+li ~ * a").get(0);
+        assertEquals(10, selectors.size());
+        assertSame(DojCssSelector.Type.CHILD, selectors.get(2).getType());
+        assertSame(DojCssSelector.Type.ADJACENT_SIBLING, selectors.get(4).getType());
+        assertSame(DojCssSelector.Type.GENERAL_SIBLING, selectors.get(6).getType());
+        assertSame(DojCssSelector.Type.UNIVERSAL, selectors.get(7).getType());
+        assertSame(DojCssSelector.Type.DESCENDANT, selectors.get(8).getType());
+    }
+
+    @Test
+    public void attributes() {
+        List<DojCssSelector> selectors = new DojCssSelector().compile("input[TYPE][name = q][title~=\"a b\"][href^='/x'][href$='.pdf'][title*=of][lang|=en]").get(0);
+        assertEquals(8, selectors.size());
+        assertAttribute(selectors.get(1), "type", MatchType.EXISTING, null);
+        assertAttribute(selectors.get(2), "name", MatchType.EQUALS, "q");
+        assertAttribute(selectors.get(3), "title", MatchType.CONTAINED_WITH_WHITESPACE, "a b");
+        assertAttribute(selectors.get(4), "href", MatchType.STARTING_WITH, "/x");
+        assertAttribute(selectors.get(5), "href", MatchType.ENDING_WITH, ".pdf");
+        assertAttribute(selectors.get(6), "title", MatchType.CONTAINING, "of");
+        assertAttribute(selectors.get(7), "lang", MatchType.CONTAINED_WITH_HYPHENS, "en");
+    }
+
+    @Test
+    public void structuralPseudoClasses() {
+        List<DojCssSelector> selectors = new DojCssSelector().compile("li:first-child:last-child:nth-child(odd):nth-child(even):nth-child(-n+3):nth-child(4):nth-child(n)").get(0);
+        assertSame(DojCssSelector.Type.FIRST_CHILD, selectors.get(1).getType());
+        assertSame(DojCssSelector.Type.LAST_CHILD, selectors.get(2).getType());
+        assertNth(selectors.get(3), 2, 1);
+        assertNth(selectors.get(4), 2, 0);
+        assertNth(selectors.get(5), -1, 3);
+        assertNth(selectors.get(6), 0, 4);
+        assertNth(selectors.get(7), 1, 0);
+    }
+
+    @Test
+    public void escapedCharacters() {
+        assertMatch("#form\\:name .a\\.b", "#form:name", " ", ".a.b");
+    }
+
+    @Test
+    public void colonsInIdsAndClasses() {
+        assertMatch("#a:b", "#a:b");
+        assertMatch("#form:name p.x:y:z", "#form:name", " ", "p", ".x:y:z");
+        List<DojCssSelector> selectors = new DojCssSelector().compileSingle("#a:b:first-child");
+        assertEquals(2, selectors.size());
+        assertEquals("a:b", selectors.get(0).getValue());
+        assertSame(DojCssSelector.Type.FIRST_CHILD, selectors.get(1).getType());
+    }
+
+    @Test
+    public void emptyGroupsAreSkipped() {
+        assertEquals(2, new DojCssSelector().compile(" , div p,, a ").size());
+        assertTrue(new DojCssSelector().compileSingle("  ").isEmpty());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalid_danglingCombinator() {
+        new DojCssSelector().compile("div >");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalid_unclosedAttribute() {
+        new DojCssSelector().compile("a[href");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalid_unsupportedPseudoClass() {
+        new DojCssSelector().compile("a:hover");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalid_nthChildArgument() {
+        new DojCssSelector().compile("li:nth-child(2x)");
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void compiledSelectorIsImmutable() {
+        new CompiledSelector("div p").getGroups().get(0).clear();
+    }
+
+    protected void assertAttribute(DojCssSelector selector, String attribute, MatchType matchType, String value) {
+        assertSame(DojCssSelector.Type.ATTRIBUTE, selector.getType());
+        assertEquals(attribute, selector.getAttribute());
+        assertSame(matchType, selector.getMatchType());
+        assertEquals(value, selector.getValue());
+    }
+
+    @Test
+    public void toStringIsCss() {
+        assertEquals("div.a > p[href$=\"x\"]:nth-child(2n+1) + *#b ~ li:first-child [title]:last-child",
+                render(new DojCssSelector().compile("div.a>p[href$=x]:nth-child(odd) + *#b~li:first-child [title]:last-child").get(0)));
+        String[] selectors = {"div", "#main .article h2 > a", "ul li:nth-child(-n+3)", "[lang|='en']", "a[class~=x] ~ b[href^=\"/\"]", "p[title*=a]"};
+        for (String selector : selectors) {
+            String rendered = render(new DojCssSelector().compile(selector).get(0));
+            assertEquals(rendered, render(new DojCssSelector().compile(rendered).get(0)));
+        }
+    }
+
+    private static String render(List<DojCssSelector> selectors) {
+        StringBuilder builder = new StringBuilder();
+        for (DojCssSelector selector : selectors) {
+            builder.append(selector);
+        }
+        return builder.toString();
+    }
+
+    protected void assertNth(DojCssSelector selector, int step, int offset) {
+        assertSame(DojCssSelector.Type.NTH_CHILD, selector.getType());
+        assertEquals(step, selector.getStep());
+        assertEquals(offset, selector.getOffset());
+    }
+
     protected void assertMatch(String selectorUnderTest, String... expectedSelectors) {
         assertMatch(selectorUnderTest, 0, expectedSelectors);
     }
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test for {@link DojElements}.
+ */
+public class DojElementsTest {
+
+    private static DojNodeNumbering numbering;
+
+    @Test
+    public void backingsAreEquivalent() {
+        int[] numbers = {1, 3, 4, 8, 9, 10, 15};
+        HtmlElement[] expected = new HtmlElement[numbers.length];
+        BitSet dense = new BitSet();
+        for (int index = 0; index < numbers.length; ++index) {
+            expected[index] = numbering.get(numbers[index]);
+            dense.set(numbers[index]);
+        }
+        DojElements[] sets = {
+            DojElements.of(expected.clone()),
+            DojElements.numbered(numbering, numbers, 0, numbers.length),
+            DojElements.numbered(numbering, dense)
+        };
+        for (DojElements set : sets) {
+            assertEquals(numbers.length, set.size());
+            assertArrayEquals(expected, set.toArray());
+            assertEquals(Arrays.asList(expected), set.asList());
+            assertArrayEquals(Arrays.copyOfRange(expected, 2, 5), set.slice(2, 3).toArray());
+            assertArrayEquals(Arrays.copyOfRange(expected, 3, 4), set.slice(2, 3).slice(1, 1).toArray());
+            assertSame(set, set.slice(0, numbers.length));
+            List<HtmlElement> removed = new ArrayList<HtmlElement>(Arrays.asList(expected));
+            removed.remove(3);
+            assertEquals(removed, set.remove(3).asList());
+            assertEquals(removed.subList(1, removed.size()), set.remove(3).remove(0).asList());
+            // Random access in reverse order
+            for (int index = numbers.length - 1; index >= 0; --index) {
+                assertSame(expected[index], set.get(index));
+            }
+        }
+    }
+
+    @Test
+    public void manySuccessiveRemovals() throws InterruptedException {
+        HtmlElement[] array = new HtmlElement[30000];
+        for (int index = 0; index < array.length; ++index) {
+            array[index] = numbering.get(index % numbering.size());
+        }
+        final List<HtmlElement> expected = new ArrayList<HtmlElement>(Arrays.asList(array));
+        DojElements set = DojElements.of(array);
+        for (int removal = 0; removal < 20000; ++removal) {
+            int index = (removal % 3 == 0 ? 1 : expected.size() / 2);
+            set = set.remove(index);
+            expected.remove(index);
+            if (removal % 1000 == 0) {
+                set = set.slice(1, set.size() - 1);
+                expected.remove(0);
+            }
+        }
+        // Looking up an element shouldn't take a stack frame per removal
+        final DojElements removed = set;
+        final List<Object> result = new ArrayList<Object>();
+        Thread thread = new Thread(null, new Runnable() {
+
+            public void run() {
+                try {
+                    result.add(removed.asList().equals(expected));
+                } catch (StackOverflowError e) {
+                    result.add(e);
+                }
+            }
+        }, "small-stack", 128 * 1024);
+        thread.start();
+        thread.join();
+        assertEquals(Arrays.<Object>asList(Boolean.TRUE), result);
+    }
+
+    @Test
+    public void removalsMadeFromTheSameSet() {
+        HtmlElement[] array = new HtmlElement[numbering.size()];
+        for (int index = 0; index < array.length; ++index) {
+            array[index] = numbering.get(index);
+        }
+        Random random = new Random(42);
+        List<HtmlElement> expected = new ArrayList<HtmlElement>(Arrays.asList(array));
+        DojElements set = DojElements.of(array);
+        for (int removal = 0; removal < array.length / 2; ++removal) {
+            int index = 1 + random.nextInt(expected.size() - 2);
+            DojElements removed = set.remove(index);
+            // A second removal from the same set shares its log with the first
+            int otherIndex = 1 + random.nextInt(expected.size() - 2);
+            DojElements other = set.remove(otherIndex);
+            List<HtmlElement> otherExpected = new ArrayList<HtmlElement>(expected);
+            otherExpected.remove(otherIndex);
+            expected.remove(index);
+            assertEquals(otherExpected, other.asList());
+            assertEquals(expected, removed.asList());
+            set = removed;
+        }
+    }
+
+    @Test
+    public void denseBitSet() {
+        BitSet all = new BitSet();
+        all.set(0, numbering.size());
+        DojElements set = DojElements.numbered(numbering, all);
+        assertEquals(numbering.size(), set.size());
+        int index = 0;
+        for (HtmlElement element : set) {
+            assertSame(numbering.get(index), element);
+            assertSame(element, set.get(index));
+            ++index;
+        }
+        assertSame(numbering.get(7), set.get(7));
+        assertSame(numbering.get(3), set.get(3));
+    }
+
+    @Test
+    public void asArraySharesWholeArrays() {
+        HtmlElement[] array = {numbering.get(0), numbering.get(1)};
+        DojElements set = DojElements.of(array);
+        assertSame(array, set.asArray());
+        assertNotSame(array, set.toArray());
+        assertArrayEquals(new HtmlElement[]{array[1]}, set.slice(1, 1).asArray());
+    }
+
+    @Test
+    public void sortedElements() {
+        HtmlElement[] elements = {numbering.get(5), numbering.get(2), numbering.get(5), numbering.get(0)};
+        assertArrayEquals(new HtmlElement[]{numbering.get(0), numbering.get(2), numbering.get(5)},
+                DojNodeNumbering.sortedElements(elements).toArray());
+    }
+
+    @Test
+    public void documentOrderAndAncestry() {
+        for (int first = 0; first < numbering.size(); first += 3) {
+            for (int second = 0; second < numbering.size(); second += 2) {
+                HtmlElement firstElement = numbering.get(first);
+                HtmlElement secondElement = numbering.get(second);
+                assertEquals(Integer.signum(first - second), Integer.signum(numbering.documentOrder().compare(firstElement, secondElement)));
+                boolean ancestor = false;
+                for (DomNode node = secondElement.getParentNode(); node != null && !ancestor; node = node.getParentNode()) {
+                    ancestor = (node == firstElement);
+                }
+                assertEquals(ancestor, numbering.isAncestor(first, second));
+            }
+        }
+        HtmlElement detached = (HtmlElement) numbering.get(3).cloneNode(true);
+        assertTrue(numbering.documentOrder().compare(numbering.get(numbering.size() - 1), detached) < 0);
+        assertTrue(numbering.documentOrder().compare(detached, numbering.get(0)) > 0);
+        HtmlElement[] elements = {detached, numbering.get(5), numbering.get(2)};
+        Arrays.sort(elements, numbering.documentOrder());
+        assertArrayEquals(new HtmlElement[]{numbering.get(2), numbering.get(5), detached}, elements);
+    }
+
+    @Test
+    public void documentOrderOfDetachedTrees() {
+        List<HtmlElement> expected = new ArrayList<HtmlElement>();
+        for (int number = 0; number < numbering.size(); ++number) {
+            expected.add(numbering.get(number));
+        }
+        List<List<HtmlElement>> trees = new ArrayList<List<HtmlElement>>();
+        for (int number = 0; number < numbering.size(); number += 2) {
+            HtmlElement root = (HtmlElement) numbering.get(number).cloneNode(true);
+            List<HtmlElement> tree = new ArrayList<HtmlElement>();
+            tree.add(root);
+            for (HtmlElement descendant : root.getHtmlElementDescendants()) {
+                tree.add(descendant);
+            }
+            trees.add(tree);
+        }
+        List<HtmlElement> elements = new ArrayList<HtmlElement>(expected);
+        for (List<HtmlElement> tree : trees) {
+            elements.addAll(tree);
+        }
+        Collections.shuffle(elements, new Random(42));
+        Collections.sort(elements, numbering.documentOrder());
+        assertEquals(expected, elements.subList(0, expected.size()));
+        // Each detached tree is kept together, in document order
+        int position = expected.size();
+        while (position < elements.size()) {
+            List<HtmlElement> tree = null;
+            for (List<HtmlElement> candidate : trees) {
+                if (candidate.get(0) == elements.get(position)) {
+                    tree = candidate;
+                }
+            }
+            assertNotNull(tree);
+            assertEquals(tree, elements.subList(position, position + tree.size()));
+            position += tree.size();
+        }
+        for (int index = 0; index + 7 < elements.size(); index += 7) {
+            HtmlElement first = elements.get(index);
+            HtmlElement second = elements.get(index + 7);
+            assertTrue(numbering.documentOrder().compare(first, second) < 0);
+            assertTrue(numbering.documentOrder().compare(second, first) > 0);
+        }
+    }
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        HtmlPage page = client.getPage(DojElementsTest.class.getResource("/test.html"));
+        numbering = DojPageState.of(page).getNumbering();
+    }
+}
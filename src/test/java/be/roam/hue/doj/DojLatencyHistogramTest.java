@@ -0,0 +1,64 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test for {@link DojLatencyHistogram}.
+ */
+public class DojLatencyHistogramTest {
+
+    @Test
+    public void buckets() {
+        int previous = -1;
+        for (long value = 0; value < 100000; ++value) {
+            int bucket = DojLatencyHistogram.bucketOf(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(value <= DojLatencyHistogram.highestValueIn(bucket));
+            assertTrue(bucket == 0 || value > DojLatencyHistogram.highestValueIn(bucket - 1));
+            previous = bucket;
+        }
+        Random random = new Random(42);
+        for (int count = 0; count < 10000; ++count) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            long highest = DojLatencyHistogram.highestValueIn(DojLatencyHistogram.bucketOf(value));
+            assertTrue(value <= highest);
+            assertTrue(highest - value <= value / DojLatencyHistogram.SUB_BUCKET_COUNT);
+        }
+        assertEquals(Long.MAX_VALUE, DojLatencyHistogram.highestValueIn(DojLatencyHistogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles() {
+        DojLatencyHistogram histogram = new DojLatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99.0));
+        for (int value = 1000; value >= 1; --value) {
+            histogram.record(value * 1000L);
+        }
+        assertEquals(1000000, histogram.getMaximum());
+        assertEquals(1000000, histogram.getPercentile(100.0));
+        long median = histogram.getPercentile(50.0);
+        assertTrue(median >= 500000 && median - 500000 <= 500000 / DojLatencyHistogram.SUB_BUCKET_COUNT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentile() {
+        new DojLatencyHistogram().getPercentile(-1.0);
+    }
+}
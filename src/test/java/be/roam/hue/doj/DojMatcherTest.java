@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Node;
+
+/**
+ * Test for {@link DojMatcher}.
+ */
+public class DojMatcherTest {
+
+    private static HtmlPage page;
+
+    @Test
+    public void sameResultAsInterpreted() {
+        String[] selectors = {"div", "DIV", "*", ".col-3", ".col-3.module", "#content", "div#main.col-2", "li:first-child",
+            "li:last-child", "li:nth-child(odd)", "li:nth-child(-n+2)", "li:nth-child(3)", "a[title]", "a[title=Homepage]",
+            "a[title~=this]", "a[href^='/link']", "a[href$='-2']", "a[href*=article]", "ol[class|=ol]", "*.article:first-child",
+            "ol[lang][class~=ol-simple]", "bdo"};
+        for (String selector : selectors) {
+            DojCssSelector[] compound = compound(selector);
+            DojMatcher matcher = DojMatcher.compile(compound, 0);
+            int matches = 0;
+            for (HtmlElement element : page.getHtmlElementDescendants()) {
+                boolean expected = interpret(element, compound);
+                assertEquals(selector + " on " + element, expected, matcher.matches(element));
+                matches += (expected ? 1 : 0);
+            }
+            assertEquals(selector, "bdo".equals(selector), matches == 0);
+        }
+    }
+
+    @Test
+    public void offset() {
+        DojCssSelector[] compound = compound("#content.col-3");
+        assertTrue(DojMatcher.compile(compound, 1).matches(page.getHtmlElementById("sidebar").getEnclosingElement("div")));
+        assertFalse(DojMatcher.compile(compound, 0).matches(page.getHtmlElementById("sidebar")));
+        assertSame(DojMatcher.ANY, DojMatcher.compile(compound("*"), 0));
+        assertSame(DojMatcher.ANY, DojMatcher.compile(compound, 2));
+    }
+
+    @Test
+    public void blankValuesNeverMatch() {
+        DojMatcher matcher = DojMatcher.compile(new DojCssSelector[]{new DojCssSelector("title", MatchType.EQUALS, " ")}, 0);
+        for (HtmlElement element : page.getHtmlElementDescendants()) {
+            assertFalse(matcher.matches(element));
+        }
+    }
+
+    /**
+     * Checks whether the element matches the simple selectors of the
+     * compound selector by interpreting them one by one - the reference the
+     * compiled matchers are verified against.
+     */
+    private static boolean interpret(HtmlElement element, DojCssSelector[] compound) {
+        for (DojCssSelector selector : compound) {
+            switch (selector.getType()) {
+                case ELEMENT:
+                    if (!selector.getValue().equalsIgnoreCase(element.getTagName())) {
+                        return false;
+                    }
+                    break;
+                case HTML_CLASS:
+                    if (!MatchType.CONTAINED_WITH_WHITESPACE.isMatch(element.getAttribute("class"), selector.getValue())) {
+                        return false;
+                    }
+                    break;
+                case ID:
+                    if (!MatchType.EQUALS.isMatch(element.getAttribute("id"), selector.getValue())) {
+                        return false;
+                    }
+                    break;
+                case UNIVERSAL:
+                    break;
+                case ATTRIBUTE:
+                    if (!selector.getMatchType().isMatch(element.getAttribute(selector.getAttribute()), selector.getValue())) {
+                        return false;
+                    }
+                    break;
+                case FIRST_CHILD:
+                    if (sibling(element, false) != null) {
+                        return false;
+                    }
+                    break;
+                case LAST_CHILD:
+                    if (sibling(element, true) != null) {
+                        return false;
+                    }
+                    break;
+                case NTH_CHILD:
+                    int position = 1;
+                    for (DomNode sibling = sibling(element, false); sibling != null; sibling = sibling(sibling, false)) {
+                        ++position;
+                    }
+                    if (!DojSelectorEngine.isNth(position, selector.getStep(), selector.getOffset())) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static DomNode sibling(DomNode node, boolean next) {
+        DomNode sibling = next ? node.getNextSibling() : node.getPreviousSibling();
+        while (sibling != null && sibling.getNodeType() != Node.ELEMENT_NODE) {
+            sibling = next ? sibling.getNextSibling() : sibling.getPreviousSibling();
+        }
+        return sibling;
+    }
+
+    private static DojCssSelector[] compound(String selector) {
+        List<DojCssSelector> selectors = new DojCssSelector().compileSingle(selector);
+        return selectors.toArray(new DojCssSelector[selectors.size()]);
+    }
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        page = client.getPage(DojMatcherTest.class.getResource("/test.html"));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test for {@link DojMetricsRecorder}.
+ */
+public class DojMetricsRecorderTest {
+
+    @After
+    public void after() {
+        DojMetrics.install(null);
+    }
+
+    @Test
+    public void percentiles() {
+        DojMetricsRecorder recorder = new DojMetricsRecorder();
+        for (int value = 1; value <= 1000; ++value) {
+            recorder.record("get", "div", 1, 10, 2, value * 1000L);
+        }
+        DojMetricsRecorder.Operation operation = recorder.getOperation("get");
+        assertEquals(1000, operation.getCalls());
+        assertEquals(10000, operation.getVisited());
+        assertEquals(2000, operation.getResults());
+        assertEquals(500500, operation.getMeanLatencyNanos());
+        assertEquals(1000000, operation.getMaximumLatencyNanos());
+        assertEquals(1000000, operation.getLatencyPercentileNanos(100.0));
+        assertWithin(500000, operation.getLatencyPercentileNanos(50.0));
+        assertWithin(990000, operation.getLatencyPercentileNanos(99.0));
+        assertWithin(1000, operation.getLatencyPercentileNanos(0.0));
+        assertNull(recorder.getOperation("getFirst"));
+        recorder.reset();
+        assertTrue(recorder.getOperations().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentile() {
+        new DojMetricsRecorder.Operation("get").getLatencyPercentileNanos(101.0);
+    }
+
+    @Test
+    public void operationsReport() throws Exception {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        HtmlPage page = client.getPage(getClass().getResource("/test.html"));
+        Doj root = Doj.on(page);
+        int elements = root.get("*").size();
+        DojMetricsRecorder recorder = new DojMetricsRecorder();
+        DojMetrics.install(recorder);
+        assertSame(recorder, DojMetrics.installed());
+        Doj divs = root.get("div");
+        Doj items = root.getByTag("li");
+        divs.withClass("nonexisting");
+        root.getById("sidebar");
+        Doj.EMPTY.get("div");
+        DojMetrics.install(null);
+        assertSame(DojMetrics.NONE, DojMetrics.installed());
+        root.get("div");
+
+        DojMetricsRecorder.Operation get = recorder.getOperation("get");
+        assertEquals(1, get.getCalls());
+        assertEquals(1, get.getContextElements());
+        assertEquals(elements, get.getVisited());
+        assertEquals(divs.size(), get.getResults());
+        assertEquals(elements, recorder.getOperation("getByTag").getVisited());
+        assertEquals(items.size(), recorder.getOperation("getByTag").getResults());
+        DojMetricsRecorder.Operation withAttribute = recorder.getOperation("withAttribute");
+        assertEquals(divs.size(), withAttribute.getVisited());
+        assertEquals(0, withAttribute.getResults());
+        assertEquals(1, recorder.getOperation("getById").getResults());
+        assertTrue(recorder.toString().contains("getByTag: 1 calls"));
+    }
+
+    @Test
+    public void lazyStagesReport() throws Exception {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        HtmlPage page = client.getPage(getClass().getResource("/test.html"));
+        Doj root = Doj.on(page);
+        int elements = root.get("*").size();
+        Doj divs = root.get("div");
+        Doj articles = divs.withClass("article");
+        DojMetricsRecorder recorder = new DojMetricsRecorder();
+        DojMetrics.install(recorder);
+        Doj lazy = root.lazy().get("div").withClass("article").getByTag("h2");
+        assertTrue(recorder.getOperations().isEmpty());
+        int headers = lazy.size();
+        root.lazy().getFirst("li");
+        divs.lazy().withClass("article").size();
+        DojMetrics.install(null);
+
+        // The filter is checked while the selector runs: one fused stage
+        DojMetricsRecorder.Operation get = recorder.getOperation("get");
+        assertEquals(1, get.getCalls());
+        assertEquals(1, get.getContextElements());
+        assertEquals(elements, get.getVisited());
+        assertEquals(articles.size(), get.getResults());
+        DojMetricsRecorder.Operation getByTag = recorder.getOperation("getByTag");
+        assertEquals(articles.size(), getByTag.getContextElements());
+        assertEquals(headers, getByTag.getResults());
+        assertEquals(1, recorder.getOperation("getFirst").getResults());
+        DojMetricsRecorder.Operation withAttribute = recorder.getOperation("withAttribute");
+        assertEquals(divs.size(), withAttribute.getVisited());
+        assertEquals(articles.size(), withAttribute.getResults());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " ~ " + actual, actual >= expected && actual - expected <= expected / DojLatencyHistogram.SUB_BUCKET_COUNT);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import java.util.regex.Pattern;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test for {@link DojPattern}.
+ */
+public class DojPatternTest {
+
+    private static final String[] REGEXES = {"", "abc", "a.c", "ab?c", "ab*c", "ab+c", "a{2}b", "a{1,}?b", "x\\.y", "\\d+ items",
+        "Item #[0-9]", "[]a]bc", "[^]a]bc", "(ab)+cd", "(a[)]b)cd", "a(b|c)d", "(?i)abc", "ab|cd", "\\Qa.b\\E", "\\p{L}bc",
+        "a\\tb", "(a)\\1", ".*/3", "\\s*Item [24]\\s*", "^abc$", "ab++c", "abc?+d", "a\\\\b", "[a[b]]c", "\\u0041bc",
+        "a\uD83D\uDE00?b"};
+
+    private static final String[] TEXTS = {"", "abc", "ac", "abbc", "aXc", "aac", "aab", "aaab", "x.y", "xzy", "12 items",
+        " items", "Item #3", "Item #x", "]bc", "bbc", "ababcd", "a)bcd", "abd", "ABC", "cd", "a.b", "ébc", "a\tb",
+        "aa", "/sections/1/3", " Item 2 ", "a\\b", "cc", "Abc", "abcd", "abbbc",
+        "ab", "a\uD83D\uDE00b", "a\uD83Db"};
+
+    @Test
+    public void sameResultAsPattern() {
+        for (String regex : REGEXES) {
+            Pattern pattern = Pattern.compile(regex);
+            DojPattern dojPattern = DojPattern.compileCached(regex);
+            for (String text : TEXTS) {
+                assertEquals(regex + " on " + text, pattern.matcher(text).matches(), dojPattern.matches(text));
+            }
+        }
+    }
+
+    @Test
+    public void literals() {
+        assertLiterals("abc", "abc", "abc");
+        assertLiterals("ab?cd", "a", "cd");
+        assertLiterals("\\d+ items", "", " items");
+        assertLiterals("Item #[0-9]", "Item #", "Item #");
+        assertLiterals("x\\.y+z", "x.y", "x.y");
+        assertLiterals("(ab)+cdef", "", "cdef");
+        assertLiterals("a(b|c)d", "", "");
+        assertLiterals("(?i)abc", "", "");
+        assertLiterals("a\\1", "", "");
+        // A quantifier applies to the whole supplementary character, not its low surrogate
+        assertLiterals("a\uD83D\uDE00?b", "a", "a");
+        assertEquals("", DojPattern.of(Pattern.compile("abc", Pattern.CASE_INSENSITIVE)).getLiteral());
+    }
+
+    @Test
+    public void cached() {
+        assertSame(DojPattern.compileCached("a.*b"), DojPattern.compileCached("a.*b"));
+    }
+
+    private static void assertLiterals(String regex, String prefix, String literal) {
+        DojPattern pattern = DojPattern.compileCached(regex);
+        assertEquals(regex, prefix, pattern.getPrefix());
+        assertEquals(regex, literal, pattern.getLiteral());
+    }
+}
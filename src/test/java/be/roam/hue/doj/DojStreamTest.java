@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test for {@link DojStream}.
+ */
+public class DojStreamTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static Doj onPage;
+
+    @Test
+    public void sameResultAsDoj() throws IOException {
+        String[] selectors = {"div", "div.article > h2", "ol.ol-simple li", "#sidebar form legend", "div > ol[lang] > li", "p", "bdo"};
+        for (String selector : selectors) {
+            Collector texts = new Collector();
+            Collector trimmedTexts = new Collector();
+            InputStream input = open();
+            try {
+                DojStream.over(input, UTF_8).texts(selector, texts).trimmedTexts(selector, trimmedTexts).run();
+            } finally {
+                input.close();
+            }
+            assertArrayEquals(selector, onPage.get(selector).texts(), texts.toArray());
+            assertArrayEquals(selector, onPage.get(selector).trimmedTexts(), trimmedTexts.toArray());
+        }
+    }
+
+    @Test
+    public void attributes() throws IOException {
+        Collector hrefs = new Collector();
+        Collector titles = new Collector();
+        Collector classes = new Collector();
+        InputStream input = open();
+        try {
+            DojStream.over(input, UTF_8)
+                    .attributes("a[href^='/link']", "href", hrefs)
+                    .attributes("#navigation a, ul a", "TITLE", titles)
+                    .attributes("div.col-3 > div", "class", classes)
+                    .run();
+        } finally {
+            input.close();
+        }
+        assertArrayEquals(onPage.get("a[href^='/link']").attributes("href"), hrefs.toArray());
+        assertArrayEquals(onPage.get("#navigation a").attributes("title"), titles.toArray());
+        assertArrayEquals(new String[]{"col-2", "col-1"}, classes.toArray());
+    }
+
+    @Test
+    public void nestedMatches() throws IOException {
+        Collector texts = new Collector();
+        String html = "<div class='a'>1<div class='a'>2</div>3</div>";
+        DojStream.over(new ByteArrayInputStream(html.getBytes(UTF_8)), UTF_8).texts(".a", texts).run();
+        assertArrayEquals(new String[]{"123", "2"}, texts.toArray());
+    }
+
+    @Test
+    public void manyHeldBackTexts() throws IOException {
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (int index = 0; index < 20000; ++index) {
+            html.append("<p>").append(index).append("</p>");
+        }
+        html.append("</body></html>");
+        Collector texts = new Collector();
+        Collector paragraphs = new Collector();
+        DojStream.over(new ByteArrayInputStream(html.toString().getBytes(UTF_8)), UTF_8)
+                .texts("body, p", texts)
+                .texts("p", paragraphs)
+                .run();
+        String[] values = texts.toArray();
+        assertEquals(20001, values.length);
+        assertTrue(values[0].startsWith("0123"));
+        assertEquals("19999", values[20000]);
+        assertEquals(20000, paragraphs.toArray().length);
+        assertEquals("0", paragraphs.toArray()[0]);
+    }
+
+    @Test
+    public void deeplyNestedDescendants() throws IOException {
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (int index = 0; index < 200; ++index) {
+            html.append("<div>");
+        }
+        html.append("x");
+        for (int index = 0; index < 200; ++index) {
+            html.append("</div>");
+        }
+        html.append("</body></html>");
+        Collector none = new Collector();
+        Collector nested = new Collector();
+        // Matching each div against its ancestors one by one would take
+        // forever: every combination of ancestors would be tried
+        DojStream.over(new ByteArrayInputStream(html.toString().getBytes(UTF_8)), UTF_8)
+                .texts("p div div div div div div div div div", none)
+                .texts("body > div div div div div div div div div div", nested)
+                .run();
+        assertEquals(0, none.toArray().length);
+        assertEquals(191, nested.toArray().length);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void siblingCombinatorsAreNotSupported() {
+        DojStream.over(new ByteArrayInputStream(new byte[0]), UTF_8).texts("h2 + div", new Collector());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void pseudoClassesAreNotSupported() {
+        DojStream.over(new ByteArrayInputStream(new byte[0]), UTF_8).texts("li:first-child", new Collector());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void runOnce() throws IOException {
+        DojStream stream = DojStream.over(new ByteArrayInputStream(new byte[0]), UTF_8).texts("p", new Collector());
+        stream.run();
+        stream.run();
+    }
+
+    private static InputStream open() {
+        return DojStreamTest.class.getResourceAsStream("/test.html");
+    }
+
+    private static class Collector implements DojStream.Listener {
+
+        private final List<String> values = new ArrayList<String>();
+
+        public void matched(String value) {
+            values.add(value);
+        }
+
+        String[] toArray() {
+            return values.toArray(new String[values.size()]);
+        }
+    }
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        HtmlPage page = client.getPage(DojStreamTest.class.getResource("/test.html"));
+        onPage = Doj.on(page);
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import com.gargoylesoftware.htmlunit.BrowserVersion;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.DomText;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.html.HtmlSelect;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test for {@link Doj}, API version 1.3.
+ */
+public class DojVersion1Dot3Test {
+
+    private static HtmlPage page;
+    private static Doj onPage;
+
+    @Test
+    public void get_compiledSelector() {
+        CompiledSelector selector = DojCssSelector.compileCached("div.article h2 a");
+        Doj articleHeaderLinks = onPage.get(selector);
+        assertEquals(3, articleHeaderLinks.size());
+        assertArrayEquals(onPage.get("div.article h2 a").allElements(), articleHeaderLinks.allElements());
+        assertEquals(3, onPage.get(new CompiledSelector("#header  , #sidebar, #footer")).size());
+        assertTrue(onPage.get("bdo").get(selector).isEmpty());
+    }
+
+    @Test
+    public void unique_leavesTheDomUntouched() {
+        Doj items = onPage.get("li");
+        HtmlElement first = items.firstElement();
+        HtmlElement second = items.getElement(1);
+        Doj duplicates = Doj.on(second, first, second, first);
+        assertEquals(2, duplicates.size());
+        assertSame(second, duplicates.firstElement());
+        assertSame(first, duplicates.lastElement());
+        for (HtmlElement element : page.getHtmlElementDescendants()) {
+            assertFalse(element.hasAttribute("data-doj-id"));
+        }
+    }
+
+    @Test
+    public void get_sameResultAsStepByStep() {
+        assertSameElements(onPage.getById("content").getByTag("div").getByTag("li"), onPage.get("#content div li"));
+        assertSameElements(onPage.getByTag("div").withClass("article").getByTag("h2").getByTag("a"), onPage.get("div.article h2 a"));
+        assertSameElements(onPage.getByTag("div").getByTag("div").getByTag("ol"), onPage.get("div div ol"));
+        assertSameElements(onPage.getByClass("col-3").withClass("module"), onPage.get(".col-3.module"));
+        assertSameElements(onPage.getById("sidebar").getByTag("form").getByTag("input"), onPage.get("#sidebar form input"));
+        assertSameElements(onPage.getByTag("div").withId("main").getByTag("div"), onPage.get("div#main div"));
+        // Id selectors at the start of a compound selector are looked up page-wide
+        assertSameElements(onPage.getById("footer").getById("header"), onPage.get("#footer #header"));
+        assertSameElements(onPage.getByTag("ol").getById("header"), onPage.get("ol #header"));
+        assertTrue(onPage.get("bdo #header").isEmpty());
+        // So are those of the compound selectors before another id selector
+        Doj footer = onPage.getById("footer");
+        assertSameElements(footer.getById("content").getById("keywords"), footer.get("#content #keywords"));
+        assertSameElements(footer.getById("main").getByTag("div").getById("sidebar").getByTag("input"), footer.get("#main div #sidebar input"));
+        assertTrue(footer.get("#main bdo #sidebar input").isEmpty());
+        assertTrue(onPage.get("#header.nono").isEmpty());
+    }
+
+    @Test
+    public void get_combinators() {
+        assertSameElements(onPage.getById("container"), onPage.get("body > div"));
+        assertSameElements(onPage.getById("header").getByTag("h1"), onPage.get("#header > *"));
+        assertSameElements(onPage.getById("main").merge(onPage.getById("sidebar")), onPage.get("#content > div"));
+        assertSameElements(onPage.getById("sidebar").getByTag("ol"), onPage.get("div > ol"));
+        assertTrue(onPage.get("#main > div > p").isEmpty());
+        // The nearest div doesn't have a div.col-3 parent, one further up does
+        assertSameElements(onPage.getById("main").getByTag("p"), onPage.get("div.col-3 > div p"));
+        assertSameElements(onPage.getByTag("h2").next(), onPage.get("h2 + div"));
+        assertSameElements(onPage.getByTag("hr").next().withTag("div"), onPage.get("hr + div"));
+        assertSameElements(onPage.getByTag("hr"), onPage.get("div.article ~ hr"));
+        assertSameElements(onPage.getById("keywords").merge(onPage.getById("checker2")), onPage.get("#keywords, label + br ~ #checker2"));
+        assertTrue(onPage.get("h1 ~ *").isEmpty());
+    }
+
+    @Test
+    public void get_attributesAndPseudoClasses() {
+        Doj anchors = onPage.getByTag("a");
+        assertSameElements(anchors.withAttribute("title", MatchType.EXISTING, null), onPage.get("a[title]"));
+        assertSameElements(anchors.withAttribute("href", MatchType.STARTING_WITH, "/link"), onPage.get("a[href^='/link']"));
+        assertSameElements(anchors.withAttribute("title", MatchType.CONTAINED_WITH_WHITESPACE, "this"), onPage.get("a[title~=this]"));
+        assertSameElements(onPage.getByTag("input").withType("checkbox"), onPage.get("input[type=checkbox]"));
+        assertSameElements(onPage.getByTag("ol").withAttribute("class", MatchType.CONTAINED_WITH_HYPHENS, "ol"), onPage.get("ol[class|=ol]"));
+        assertEquals(onPage.getByTag("ol").size(), onPage.get("ol li:first-child").size());
+        assertSameElements(onPage.getByTag("ol").getByTag("li").withTextContaining("#4"), onPage.get("ol li:last-child"));
+        assertSameElements(onPage.get("ol li:nth-child(odd)"), onPage.get("ol li:nth-child(2n+1)"));
+        assertSameElements(onPage.get("ol li:nth-child(-n+2)"), onPage.get("ol li:first-child, ol li:nth-child(2)"));
+        assertEquals(10, onPage.get("ol li:nth-child(even)").size());
+        assertTrue(onPage.get("li:nth-child(5)").isEmpty());
+        assertSameElements(onPage.getById("sidebar").getByTag("form"), onPage.get("#sidebar > :first-child"));
+        int descendants = 0;
+        for (HtmlElement element : page.getDocumentElement().getHtmlElementDescendants()) {
+            ++descendants;
+        }
+        assertEquals(descendants, onPage.get("*").size());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void get_invalidSelector() {
+        onPage.get("div > > p");
+    }
+
+    @Test
+    public void get_nestedContext() {
+        Doj divs = onPage.get("div");
+        assertSameElements(divs.getByTag("p"), divs.get("p"));
+        assertSameElements(divs.getByTag("div").getByClass("content"), divs.get("div .content"));
+    }
+
+    @Test
+    public void merge_documentOrder() {
+        Doj footer = onPage.get("#footer");
+        Doj header = onPage.get("#header");
+        Doj merged = footer.merge(header).merge(footer);
+        assertEquals(2, merged.size());
+        assertArrayEquals(new String[]{"header", "footer"}, merged.ids());
+        assertArrayEquals(new String[]{"header", "sidebar", "footer"}, onPage.get("#footer, #sidebar, #header").ids());
+        assertSameElements(onPage.get("div"), onPage.get("div.article, div, #footer"));
+    }
+
+    @Test
+    public void mergeAll() {
+        Doj merged = Doj.mergeAll(onPage.get("#sidebar ol"), Doj.EMPTY, onPage.get("#sidebar"), onPage.get("#sidebar li"), null);
+        assertEquals(1 + 5 + 20, merged.size());
+        assertEquals("sidebar", merged.id());
+        assertTrue(merged.get(1).is("ol"));
+        assertTrue(merged.get(2).is("li"));
+        assertTrue(Doj.mergeAll().isEmpty());
+        assertTrue(Doj.mergeAll(Doj.EMPTY, Doj.EMPTY).isEmpty());
+    }
+
+    @Test
+    public void merge_afterDomChange() throws Exception {
+        HtmlPage otherPage = loadPage();
+        Doj footer = Doj.on(otherPage).get("#footer");
+        Doj header = Doj.on(otherPage).get("#header");
+        assertArrayEquals(new String[]{"header", "footer"}, footer.merge(header).ids());
+        // Move the footer in front of the header
+        HtmlElement container = otherPage.getHtmlElementById("container");
+        container.insertBefore(footer.firstElement(), container.getFirstChild());
+        assertArrayEquals(new String[]{"footer", "header"}, header.merge(footer).ids());
+    }
+
+    @Test
+    public void setOperations() {
+        Doj inputs = onPage.get("#sidebar form input");
+        Doj radios = onPage.get("input[type=radio]");
+        assertSameElements(radios, inputs.intersect(radios));
+        assertSameElements(onPage.get("#sidebar form input[type=text], input[type=checkbox]"), inputs.except(radios));
+        assertSameElements(inputs, radios.union(inputs));
+        assertSameElements(inputs, inputs.except(Doj.EMPTY).except(null));
+        assertTrue(inputs.intersect(Doj.EMPTY).isEmpty());
+        assertTrue(inputs.intersect(onPage.get("li")).isEmpty());
+        assertTrue(Doj.EMPTY.except(inputs).isEmpty());
+        // The result is in document order, whatever the order of the operands
+        Doj reversed = Doj.on(inputs.get(2).firstElement(), inputs.get(1).firstElement(), inputs.get(0).firstElement());
+        assertSameElements(inputs.slice(0, 3), reversed.intersect(inputs));
+        assertSameElements(inputs.slice(0, 3), reversed.lazy().intersect(inputs.lazy()));
+    }
+
+    @Test
+    public void setOperations_otherPage() throws Exception {
+        Doj otherInputs = Doj.on(loadPage()).get("#sidebar form input");
+        Doj inputs = onPage.get("#sidebar form input");
+        assertTrue(inputs.intersect(otherInputs).isEmpty());
+        assertSameElements(inputs, inputs.except(otherInputs));
+        assertEquals(2 * inputs.size(), inputs.union(otherInputs).size());
+    }
+
+    @Test
+    public void not() {
+        Doj inputs = onPage.get("#sidebar form input");
+        assertSameElements(inputs.except(onPage.get("input[type=radio]")), inputs.not("[type=radio]"));
+        assertSameElements(inputs.except(onPage.get("input[type=radio], #keywords")), inputs.not("[type=radio], #keywords"));
+        assertSameElements(onPage.get("li").except(onPage.get("#sidebar li")), onPage.get("li").not("#sidebar li"));
+        assertSameElements(onPage.get("div").except(onPage.get("div > div")), onPage.get("div").not("div > div"));
+        assertSameElements(inputs, inputs.not("li"));
+        assertTrue(Doj.EMPTY.not("li").isEmpty());
+    }
+
+    @Test
+    public void normalizeWhitespace() {
+        String[] texts = {"", " ", "a", "a b", " a ", "a  b", "a\tb", "\n\t a \r\n b\u000B c \f", "a \u0001 b",
+            "\u0001 a \u0001", "a\u00a0 b", "  ", "a \t", "\t a"};
+        for (String text : texts) {
+            assertEquals(text.replaceAll("\\s+", " ").trim(), Doj.normalizeWhitespace(text));
+        }
+        String unchanged = "Item #1";
+        assertSame(unchanged, Doj.normalizeWhitespace(unchanged));
+        for (String text : onPage.get("*").texts()) {
+            assertEquals(text.replaceAll("\\s+", " ").trim(), Doj.normalizeWhitespace(text));
+        }
+    }
+
+    @Test
+    public void textCached() throws Exception {
+        HtmlPage otherPage = loadPage();
+        Doj items = Doj.on(otherPage).textCached().get("li");
+        Doj expected = onPage.get("li").withTextContaining("Item #2");
+        assertArrayEquals(expected.texts(), items.withTextContaining("Item #2").texts());
+        assertEquals(expected.size(), items.lazy().withTextMatching("Item #[2]").size());
+        // Changing the text drops the cache
+        HtmlElement item = items.withTextContaining("Item #2").firstElement();
+        ((DomText) item.getFirstChild()).setData("Item #5");
+        assertEquals(expected.size() - 1, items.withTextContaining("Item #2").size());
+        assertEquals(1, items.withTextContaining("Item #5").size());
+        // So does changing the DOM
+        item.appendChild(otherPage.createElement("b")).setTextContent("bold");
+        assertEquals(1, items.withTextContaining("bold").size());
+        // And changing attributes, which determine the visibility
+        item.setAttribute("hidden", "hidden");
+        assertEquals(0, items.withTextContaining("bold").size());
+        // The texts of form controls depend on state that isn't in the DOM
+        Doj form = Doj.on(otherPage).textCached().get("form");
+        Doj checkbox = form.getById("checker1");
+        assertEquals(1, checkbox.withTextContaining("unchecked").size());
+        assertEquals(1, form.withTextContaining("unchecked Check").size());
+        checkbox.check();
+        assertEquals(0, checkbox.withTextContaining("unchecked").size());
+        assertEquals(0, form.withTextContaining("unchecked Check").size());
+        Doj select = form.getById("the_plain_select");
+        HtmlSelect element = (HtmlSelect) select.firstElement();
+        assertEquals(1, select.withTextContaining(element.asText()).size());
+        element.setSelectedAttribute(element.getOption(0), true);
+        assertEquals(1, select.withTextContaining(element.asText()).size());
+    }
+
+    @Test
+    public void project() {
+        Doj links = onPage.get("a");
+        String[][] columns = links.project("href", "title", "missing");
+        assertEquals(3, columns.length);
+        assertArrayEquals(links.attributes("href"), columns[0]);
+        assertArrayEquals(links.attributes("title"), columns[1]);
+        assertArrayEquals(links.attributes("missing"), columns[2]);
+        assertEquals(0, Doj.EMPTY.project("href")[0].length);
+    }
+
+    @Test
+    public void extract() {
+        Doj divs = onPage.get("div");
+        DojTable table = divs.lazy().extract(
+                FieldSpec.attribute("id", null, "id"),
+                FieldSpec.trimmedText("heading", "h2"),
+                FieldSpec.text("rawHeading", "h2"),
+                FieldSpec.attribute("link", "h2 a, p a", "href"),
+                FieldSpec.trimmedText("item", "li:nth-child(2)"));
+        assertEquals(divs.size(), table.getRowCount());
+        assertEquals(5, table.getColumnCount());
+        assertArrayEquals(new String[]{"id", "heading", "rawHeading", "link", "item"}, table.getColumnNames());
+        assertArrayEquals(divs.ids(), table.getColumn("id"));
+        for (int row = 0; row < divs.size(); ++row) {
+            Doj div = divs.get(row);
+            assertEquals(div.getFirst("h2").isEmpty() ? null : div.getFirst("h2").trimmedText(), table.get(row, "heading"));
+            assertEquals(div.getFirst("h2").isEmpty() ? null : div.getFirst("h2").text(), table.get(row, 2));
+            assertEquals(div.getFirst("h2 a, p a").isEmpty() ? null : div.getFirst("h2 a, p a").attribute("href"), table.get(row, "link"));
+            assertEquals(div.getFirst("li:nth-child(2)").isEmpty() ? null : div.getFirst("li:nth-child(2)").trimmedText(), table.getRow(row).get("item"));
+        }
+        assertEquals("Item #2", table.get(Arrays.asList(divs.ids()).indexOf("sidebar"), "item"));
+        assertEquals(0, Doj.EMPTY.extract(FieldSpec.text("text", null)).getRowCount());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void extract_duplicateNames() {
+        onPage.get("div").extract(FieldSpec.text("text", null), FieldSpec.attribute("text", null, "id"));
+    }
+
+    @Test
+    public void nestedContexts() {
+        List<HtmlElement> divs = new ArrayList<HtmlElement>(Arrays.asList(onPage.get("div").allElements()));
+        // Descendants before their ancestors as well as after them
+        Collections.reverse(divs.subList(0, divs.size() / 2));
+        Doj context = Doj.on(divs);
+        List<HtmlElement> items = new ArrayList<HtmlElement>();
+        List<HtmlElement> titled = new ArrayList<HtmlElement>();
+        for (HtmlElement div : divs) {
+            for (HtmlElement descendant : div.getHtmlElementDescendants()) {
+                if (descendant.getLocalName().equals("li")) {
+                    items.add(descendant);
+                }
+                if (!descendant.getAttribute("title").isEmpty()) {
+                    titled.add(descendant);
+                }
+            }
+        }
+        assertSameElements(Doj.on(items), context.getByTag("li"));
+        assertSameElements(Doj.on(items), context.lazy().getByTag("li"));
+        assertSameElements(Doj.on(items), context.get("li"));
+        assertSameElements(Doj.on(items).first(), context.getFirst("li"));
+        assertSameElements(Doj.on(titled), context.getByAttribute("title", MatchType.EXISTING, null));
+        assertSameElements(Doj.on(titled), context.lazy().getByAttribute("title", MatchType.EXISTING, null));
+        assertSameElements(Doj.on(titled), context.getByAttributeMatching("title", ".+"));
+    }
+
+    @Test
+    public void indexed() throws Exception {
+        HtmlPage otherPage = loadPage();
+        Doj plain = Doj.on(otherPage);
+        String[] selectors = {"div", "li", "div.article h2 a", "#content div li", ".col-3.module", "div div ol",
+            "ol.ol-simple li", "#sidebar form input", "bdo", ".nono", "div.col-3 > div p", "a[href^='/link']",
+            "ol[class|=ol] > li:nth-child(odd)", "hr + div h2"};
+        Doj[] expected = new Doj[selectors.length];
+        for (int index = 0; index < selectors.length; ++index) {
+            expected[index] = plain.get(selectors[index]);
+        }
+        Doj expectedClass = plain.getByClass("ol-simple");
+        Doj expectedAttribute = plain.getByAttribute("class", MatchType.STARTING_WITH, "ol");
+        Doj expectedNested = plain.get("div").getByTag("p");
+
+        Doj indexed = Doj.on(otherPage).indexed();
+        for (int index = 0; index < selectors.length; ++index) {
+            assertSameElements(expected[index], indexed.get(selectors[index]));
+        }
+        assertSameElements(expectedClass, indexed.getByClass("ol-simple"));
+        assertSameElements(expectedAttribute, indexed.getByAttribute("class", MatchType.STARTING_WITH, "ol"));
+        assertSameElements(expectedNested, indexed.get("div").getByTag("p"));
+        assertEquals(1, indexed.getByAttribute("lang", MatchType.EXISTING, null).size());
+    }
+
+    @Test
+    public void indexed_afterDomChange() throws Exception {
+        HtmlPage otherPage = loadPage();
+        Doj indexed = Doj.on(otherPage).indexed();
+        assertEquals(3, indexed.get(".article").size());
+        HtmlElement article = otherPage.getHtmlElementById("article-3");
+        article.setAttribute("class", "not-an-article");
+        assertEquals(2, indexed.get(".article").size());
+        assertEquals(1, indexed.getByClass("not-an-article").size());
+        article.remove();
+        assertEquals(0, indexed.getByClass("not-an-article").size());
+        assertEquals(2, indexed.get("#sidebar form select").size());
+    }
+
+    @Test
+    public void lazy_sameResultAsEager() {
+        Doj lazy = onPage.lazy();
+        assertSameElements(onPage.get("div").withClass("article").get("a"), lazy.get("div").withClass("article").get("a"));
+        assertSameElements(onPage.getById("sidebar").get("form").withTag("form").get("input").withAttribute("type", MatchType.EQUALS, "text"),
+                lazy.getById("sidebar").get("form").withTag("form").get("input").withAttribute("type", MatchType.EQUALS, "text"));
+        assertSameElements(onPage.get("li").withTextContaining("1").parent().next("ol"), lazy.get("li").withTextContaining("1").parent().next("ol"));
+        assertSameElements(onPage.get("li").parent("div").previous(), lazy.get("li").parent("div").previous());
+        assertSameElements(onPage.get("div").getByTag("p"), lazy.get("div").getByTag("p"));
+        assertSameElements(onPage.getByClass("col-3").getByAttribute("class", MatchType.STARTING_WITH, "ol"),
+                lazy.getByClass("col-3").getByAttribute("class", MatchType.STARTING_WITH, "ol"));
+        assertSameElements(onPage.getByAttributeMatching("id", "article-\\d").withTextMatching("(?s).*article 1.*"),
+                lazy.getByAttributeMatching("id", "article-\\d").withTextMatching("(?s).*article 1.*"));
+        assertSameElements(onPage.get("#footer, #sidebar, #header").withAttributeMatching("id", "s.*"),
+                lazy.get("#footer, #sidebar, #header").withAttributeMatching("id", "s.*"));
+        assertSameElements(onPage.get("li").withClass("nono"), onPage.get("li").lazy().withClass("nono"));
+        assertArrayEquals(onPage.get("#sidebar select").names(), lazy.get("#sidebar select").names());
+        assertTrue(Doj.EMPTY.lazy().isEmpty());
+    }
+
+    @Test
+    public void lazy_executedOnce() throws Exception {
+        HtmlPage otherPage = loadPage();
+        Doj articles = Doj.on(otherPage).lazy().get("div").withClass("article");
+        // Nothing happens until the context elements are needed
+        otherPage.getHtmlElementById("article-3").setAttribute("class", "not-an-article");
+        assertEquals(2, articles.size());
+        otherPage.getHtmlElementById("article-2").setAttribute("class", "not-an-article");
+        assertEquals(2, articles.size());
+        assertEquals(2, articles.unique().size());
+        int count = 0;
+        for (Doj article : articles) {
+            assertTrue(article.is("div"));
+            ++count;
+        }
+        assertEquals(2, count);
+        // Traversing further starts from the result
+        assertEquals(2, articles.getByTag("h2").size());
+    }
+
+    @Test
+    public void getFirst() {
+        String[] selectors = {"li", "div.article h2 a", "#sidebar li", "#footer, #sidebar, #header", "ol li, h2",
+            "#content div li", "ol #header", "bdo", ".nono", "#nono li"};
+        for (String selector : selectors) {
+            assertSameElements(onPage.get(selector).first(), onPage.getFirst(selector));
+            assertSameElements(onPage.get("div").get(selector).first(), onPage.get("div").getFirst(selector));
+            assertEquals(!onPage.get(selector).isEmpty(), onPage.exists(selector));
+        }
+        assertEquals(1, onPage.getFirst("li").size());
+        assertTrue(Doj.EMPTY.getFirst("li").isEmpty());
+        assertFalse(Doj.EMPTY.exists("li"));
+    }
+
+    @Test
+    public void findFirst() {
+        Doj lazy = onPage.lazy();
+        assertSameElements(onPage.get("li").withTextContaining("1").first(), lazy.get("li").withTextContaining("1").findFirst());
+        assertSameElements(onPage.get("div").withClass("article").getByTag("p").first(), lazy.get("div").withClass("article").getByTag("p").findFirst());
+        assertSameElements(onPage.get("li").parent().first(), lazy.get("li").parent().findFirst());
+        assertSameElements(onPage.get("li").withClass("nono").first(), lazy.get("li").withClass("nono").findFirst());
+        assertSameElements(onPage.get("#sidebar").getFirst("ol li, h2"), lazy.get("#sidebar").getFirst("ol li, h2"));
+        assertSameElements(onPage.first(), lazy.findFirst());
+        assertTrue(lazy.get("div").exists("form input"));
+        assertFalse(lazy.get("div").exists("bdo"));
+        assertSameElements(onPage.get("li").first(), onPage.get("li").findFirst());
+    }
+
+    @Test
+    public void explain() throws Exception {
+        DojPlan plan = onPage.explain("#sidebar li");
+        assertSameElements(onPage.get("#sidebar li"), plan.getResult());
+        assertEquals(1, plan.getContextSize());
+        assertEquals(2, plan.getSteps().size());
+        assertStep(plan.getSteps().get(0), DojPlan.Strategy.ID_LOOKUP, "#sidebar", 1, 1, 1);
+        int sidebarElements = onPage.get("#sidebar *").size();
+        assertStep(plan.getSteps().get(1), DojPlan.Strategy.WALK, "li", sidebarElements, sidebarElements, plan.getResult().size());
+        assertEquals(1 + sidebarElements, plan.getVisited());
+        assertTrue(plan.toString().startsWith("#sidebar li on 1 elements"));
+
+        plan = onPage.explain("div #sidebar ul li");
+        assertSameElements(onPage.get("div #sidebar ul li"), plan.getResult());
+        DojPlan.Step prefix = plan.getSteps().get(0);
+        assertSame(DojPlan.Strategy.WALK, prefix.getStrategy());
+        assertEquals("div", prefix.getSelector());
+        assertEquals(1, prefix.getResultSize());
+        assertTrue(prefix.getVisited() < prefix.getEstimatedVisited());
+        assertSame(DojPlan.Strategy.ID_LOOKUP, plan.getSteps().get(1).getStrategy());
+        assertEquals("ul li", plan.getSteps().get(2).getSelector());
+
+        plan = onPage.explain("h2, li");
+        assertSameElements(onPage.get("h2, li"), plan.getResult());
+        assertEquals(3, plan.getSteps().size());
+        assertEquals(1, plan.getSteps().get(1).getGroup());
+        assertStep(plan.getSteps().get(2), DojPlan.Strategy.MERGE, null, plan.getResult().size(), plan.getResult().size(), plan.getResult().size());
+
+        Doj indexed = Doj.on(loadPage()).indexed();
+        plan = indexed.explain("li.nono, #sidebar a[href]");
+        assertTrue(plan.getResult().isEmpty());
+        assertStep(plan.getSteps().get(0), DojPlan.Strategy.INDEX, "li.nono", 0, 0, 0);
+        assertSame(DojPlan.Strategy.INDEX, plan.getSteps().get(2).getStrategy());
+        assertEquals("a[href]", plan.getSteps().get(2).getSelector());
+
+        assertTrue(Doj.EMPTY.explain("li").getSteps().isEmpty());
+    }
+
+    @Test
+    public void optimizedSameResult() throws Exception {
+        String[] selectors = {"div#main.col-2 li", "#sidebar > ul li", "div #sidebar > ul > li", "div.article#article-2 p a",
+            "#content div.article h2", "div .ol-simple li", "div.col-3 > div p", "hr + div h2", "ol ~ ul li", "li#nono a",
+            "#content li#nono", "div li.nono", "body *", "#main > div:first-child p", "#footer, #sidebar li, div ol li",
+            "div[id] .article > h2 a[href]", "#container #content #main h2"};
+        HtmlPage otherPage = loadPage();
+        List<HtmlElement> all = new ArrayList<HtmlElement>();
+        for (HtmlElement element : otherPage.getDocumentElement().getHtmlElementDescendants()) {
+            all.add(element);
+        }
+        List<List<HtmlElement>> expected = new ArrayList<List<HtmlElement>>();
+        for (String selector : selectors) {
+            // Every element is in scope of the document element
+            DojSelectorEngine.Chain[] chains = DojCssSelector.compileCached(selector).getChains();
+            List<HtmlElement> matching = new ArrayList<HtmlElement>();
+            for (HtmlElement element : all) {
+                for (DojSelectorEngine.Chain chain : chains) {
+                    if (DojSelectorEngine.matches(element, chain)) {
+                        matching.add(element);
+                        break;
+                    }
+                }
+            }
+            expected.add(matching);
+            assertEquals(selector, matching, Arrays.asList(Doj.on(otherPage).get(selector).allElements()));
+        }
+        assertSame(DojPlan.Strategy.ID_LOOKUP, Doj.on(otherPage).explain("div#main.col-2 li").getSteps().get(0).getStrategy());
+        assertSame(DojPlan.Strategy.ID_LOOKUP, Doj.on(otherPage).explain("#sidebar > ul li").getSteps().get(0).getStrategy());
+        assertSame(DojPlan.Strategy.WALK, Doj.on(otherPage).explain("div .ol-simple li").getSteps().get(0).getStrategy());
+        assertTrue(Doj.on(otherPage).get("#sidebar").get("div#main li").isEmpty());
+
+        Doj indexed = Doj.on(otherPage).indexed();
+        for (int index = 0; index < selectors.length; ++index) {
+            assertEquals(selectors[index], expected.get(index), Arrays.asList(indexed.get(selectors[index]).allElements()));
+        }
+        DojPlan.Step pivot = indexed.explain("div .ol-simple li").getSteps().get(0);
+        assertSame(DojPlan.Strategy.INDEX, pivot.getStrategy());
+        assertEquals(".ol-simple", pivot.getSelector());
+    }
+
+    @Test
+    public void getScopedById() throws Exception {
+        List<HtmlElement> divs = new ArrayList<HtmlElement>(Arrays.asList(onPage.get("div").allElements()));
+        Collections.reverse(divs.subList(0, divs.size() / 2));
+        Doj[] contexts = {onPage, onPage.get("div"), Doj.on(divs), onPage.get("#sidebar"), onPage.get("li"), onPage.get("#header")};
+        String[] ids = {"container", "header", "sidebar", "keywords", "article-2", "footer", "nono"};
+        for (Doj context : contexts) {
+            for (String id : ids) {
+                assertSameElements(context.getByAttribute("id", id), context.getScopedById(id));
+                assertSameElements(context.getByAttribute("id", id), context.lazy().getScopedById(id));
+            }
+        }
+        // Unlike getById, the context is taken into account
+        assertEquals(1, onPage.getById("header").getById("header").size());
+        assertTrue(onPage.getById("header").getScopedById("header").isEmpty());
+        assertTrue(onPage.getScopedById("").isEmpty());
+        assertTrue(Doj.EMPTY.getScopedById("header").isEmpty());
+
+        HtmlPage otherPage = loadPage();
+        Doj other = Doj.on(otherPage);
+        // Ids set after loading and (invalid) duplicate ids
+        HtmlElement item = other.get("#sidebar li").firstElement();
+        item.setAttribute("id", "article-1");
+        assertSameElements(other.get("#sidebar li").first(), other.get("#sidebar").getScopedById("article-1"));
+        Doj context = Doj.on(other.get("#sidebar").firstElement(), otherPage.getHtmlElementById("content"));
+        assertEquals(2, context.getScopedById("article-1").size());
+        assertSameElements(context.getByAttribute("id", "article-1"), context.getScopedById("article-1"));
+        assertSameElements(context.getByAttribute("id", "article-1"), context.indexed().getScopedById("article-1"));
+    }
+
+    @Test
+    public void contains() throws Exception {
+        Doj sidebar = onPage.get("#sidebar");
+        assertTrue(sidebar.contains(sidebar.get("li")));
+        assertTrue(onPage.get("div").contains(onPage.get("li")));
+        assertTrue(onPage.get("li").parent().contains(onPage.get("li")));
+        assertFalse(sidebar.contains(sidebar));
+        assertFalse(sidebar.contains(onPage.get("li")));
+        assertFalse(sidebar.contains(Doj.EMPTY));
+        assertFalse(Doj.EMPTY.contains(onPage));
+        assertTrue(onPage.contains(onPage.get("div")));
+        assertTrue(onPage.get("div").lazy().contains(onPage.get("li").lazy()));
+
+        HtmlPage otherPage = loadPage();
+        assertFalse(onPage.contains(Doj.on(otherPage).get("li")));
+        Doj otherSidebar = Doj.on(otherPage).get("#sidebar");
+        // Elements that aren't part of the page
+        HtmlElement list = (HtmlElement) otherSidebar.get("li").firstElement().getParentNode();
+        Doj items = Doj.on(list).getByTag("li");
+        list.remove();
+        assertFalse(otherSidebar.contains(items));
+        assertTrue(Doj.on(list).contains(items));
+    }
+
+    @Test
+    public void sortedInDocumentOrder() throws Exception {
+        List<HtmlElement> divs = new ArrayList<HtmlElement>(Arrays.asList(onPage.get("div").allElements()));
+        Collections.reverse(divs);
+        Doj context = Doj.on(divs);
+        assertSameElements(onPage.get("div"), context.sortedInDocumentOrder());
+        assertSameElements(onPage.get("div li"), context.get("li").sortedInDocumentOrder());
+        assertSameElements(Doj.EMPTY, Doj.EMPTY.sortedInDocumentOrder());
+
+        Doj otherItems = Doj.on(loadPage()).get("li");
+        Doj mixed = Doj.on(onPage.get("li").last().firstElement(), otherItems.last().firstElement(),
+                onPage.get("li").firstElement(), otherItems.firstElement());
+        assertSameElements(Doj.on(onPage.get("li").firstElement(), onPage.get("li").last().firstElement(),
+                otherItems.firstElement(), otherItems.last().firstElement()), mixed.sortedInDocumentOrder());
+    }
+
+    @Test
+    public void smallMergesDontNumberThePage() throws Exception {
+        HtmlPage otherPage = loadPage();
+        List<HtmlElement> items = new ArrayList<HtmlElement>();
+        for (HtmlElement element : otherPage.getHtmlElementById("sidebar").getHtmlElementDescendants()) {
+            if ("li".equals(element.getLocalName())) {
+                items.add(element);
+            }
+        }
+        HtmlElement detached = (HtmlElement) items.get(0).cloneNode(true);
+        Doj merged = Doj.mergeAll(Doj.on(items.get(3), detached), Doj.on(items.get(1)), Doj.on(items.get(0), items.get(3)));
+        assertSameElements(Doj.on(items.get(0), items.get(1), items.get(3), detached), merged);
+        Doj reversed = Doj.on(items.get(2), items.get(1), items.get(0));
+        assertSameElements(Doj.on(items.subList(0, 3)), reversed.sortedInDocumentOrder());
+        assertNull(DojPageState.peek(items.get(0)));
+        assertSameElements(Doj.on(items), Doj.mergeAll(Doj.on(items).sortedInDocumentOrder()));
+    }
+
+    protected HtmlPage loadPage() throws Exception {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        return client.getPage(DojVersion1Dot3Test.class.getResource("/test.html"));
+    }
+
+    protected void assertSameElements(Doj expected, Doj actual) {
+        assertEquals(expected.size(), actual.size());
+        assertArrayEquals(expected.allElements(), actual.allElements());
+    }
+
+    private static void assertStep(DojPlan.Step step, DojPlan.Strategy strategy, String selector, long estimated, int visited, int found) {
+        assertSame(strategy, step.getStrategy());
+        assertEquals(selector, step.getSelector());
+        assertEquals(estimated, step.getEstimatedVisited());
+        assertEquals(visited, step.getVisited());
+        assertEquals(found, step.getResultSize());
+    }
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        WebClient client = new WebClient(BrowserVersion.FIREFOX_52);
+        page = client.getPage(DojVersion1Dot3Test.class.getResource("/test.html"));
+        onPage = Doj.on(page);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2009 Roam - roam.be
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.roam.hue.doj;
+
+import org.apache.commons.lang3.StringUtils;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Test for {@link MatchType}.
+ */
+public class MatchTypeTest {
+
+    private static final String[] VALUES = {null, "", " ", "  ", "a", "ab", "a b", " a ", "a  b", "ab a", "b-a-c",
+        "a-", "-a", "en-US", "ol-simple dummy", "ol simple", "  ol-simple  "};
+
+    private static final String[] TOKENS = {"", " ", "a", "b", "ab", "a b", "en", "US", "ol", "simple", "ol-simple", "-"};
+
+    @Test
+    public void containedWithWhitespace() {
+        for (String value : VALUES) {
+            for (String token : TOKENS) {
+                boolean expected = !StringUtils.isBlank(value) && (" " + value + " ").contains(" " + token + " ");
+                assertEquals(value + " ~= " + token, expected, MatchType.CONTAINED_WITH_WHITESPACE.isMatch(value, token));
+            }
+        }
+    }
+
+    @Test
+    public void containedWithHyphens() {
+        for (String value : VALUES) {
+            for (String token : TOKENS) {
+                boolean expected = !StringUtils.isBlank(value) && ("-" + value + "-").contains("-" + token + "-");
+                assertEquals(value + " |= " + token, expected, MatchType.CONTAINED_WITH_HYPHENS.isMatch(value, token));
+            }
+        }
+    }
+
+    @Test
+    public void blankValuesNeverMatch() {
+        for (MatchType matchType : MatchType.values()) {
+            assertFalse(matchType.isMatch(null, "a"));
+            assertFalse(matchType.isMatch("", ""));
+            assertFalse(matchType.isMatch("  ", "  "));
+            assertFalse(matchType.isMatch("  ", null));
+        }
+    }
+
+    @Test
+    public void otherMatchTypes() {
+        assertTrue(MatchType.EXISTING.isMatch("a", null));
+        assertTrue(MatchType.EQUALS.isMatch("ab", "ab"));
+        assertFalse(MatchType.EQUALS.isMatch("ab", " ab"));
+        assertTrue(MatchType.STARTING_WITH.isMatch("ol-simple", "ol"));
+        assertFalse(MatchType.STARTING_WITH.isMatch("ol-simple", "simple"));
+        assertTrue(MatchType.ENDING_WITH.isMatch("ol-simple", "simple"));
+        assertFalse(MatchType.ENDING_WITH.isMatch("ol-simple", "ol"));
+        assertTrue(MatchType.CONTAINING.isMatch("ol-simple", "-si"));
+        assertFalse(MatchType.CONTAINING.isMatch("ol-simple", null));
+    }
+}